@@ -0,0 +1,213 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.model.TableSchema;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates records shaped like the ones uploaded to jenkins_usage (census) and plugin_extensions, with sizes and
+ * nesting similar to the real data. The same seed gives the same records, so runs are comparable.
+ *
+ * @author Vivek Pandey
+ */
+class BenchmarkRecords {
+    static final String CENSUS = "census";
+    static final String EXTENSION = "extension";
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final String[] MONTHS = {"Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+            "Nov", "Dec"};
+    private static final String[] OS = {"Linux", "Windows 7", "Mac OS X", "SunOS", "FreeBSD"};
+    private static final String[] JOB_TYPES = {"hudson-model-FreeStyleProject", "hudson-maven-MavenModuleSet",
+            "hudson-matrix-MatrixProject", "org-jenkinsci-plugins-workflow-job-WorkflowJob",
+            "hudson-model-ExternalJob", "com-cloudbees-hudson-plugins-folder-Folder"};
+    private static final String[] EXTENSION_POINTS = {"hudson.tasks.Builder", "hudson.tasks.Publisher",
+            "hudson.model.RootAction", "hudson.scm.SCM", "hudson.model.JobProperty", "hudson.slaves.Cloud"};
+
+    private final Random random;
+
+    BenchmarkRecords(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param shape {@link #CENSUS} for census records as they are before the census transform, or {@link #EXTENSION}
+     */
+    List<String> generate(String shape, int count) throws IOException {
+        List<String> records = new ArrayList<>(count);
+        for(int i=0; i < count; i++){
+            records.add(CENSUS.equals(shape) ? census() : extension());
+        }
+        return records;
+    }
+
+    /**
+     * Top level field that identifies a record of given shape, as given with -insertIdField
+     */
+    static String insertIdField(String shape){
+        return CENSUS.equals(shape) ? "install" : "gav";
+    }
+
+    /**
+     * Schema of the table records of given shape are uploaded to
+     */
+    static TableSchema schema(String shape) throws IOException {
+        String name = CENSUS.equals(shape) ? "usage-schema.json" : "jenkins-extensions-schema.json";
+        try (InputStream is = BenchmarkRecords.class.getResourceAsStream("/" + name)) {
+            if(is == null){
+                throw new IOException("Schema not found on classpath: " + name);
+            }
+            return new JacksonFactory().fromInputStream(is, StandardCharsets.UTF_8, TableSchema.class);
+        }
+    }
+
+    /**
+     * Checks that records, census records after the census transform, are valid for the table schema, so that
+     * benchmarks measure records BigQuery would accept
+     */
+    static void check(String shape, List<String> records) throws IOException {
+        SchemaValidator validator = SchemaValidator.compile(schema(shape));
+        RowTransformer transformer = CENSUS.equals(shape) ? new CensusRowTransformer() : null;
+        for(String record : records){
+            List<String> errors = validator.validate(transformer == null ? record : transformer.transform(record));
+            if(!errors.isEmpty()){
+                throw new IllegalStateException("Generated " + shape + " record is not valid: " + errors
+                        + ": " + record);
+            }
+        }
+    }
+
+    private String census() throws IOException {
+        StringWriter w = new StringWriter(4096);
+        try (JsonGenerator g = JSON.createGenerator(w)) {
+            g.writeStartObject();
+            g.writeStringField("install", hex(64));
+            g.writeStringField("timestamp", String.format("%02d/%s/%d:%02d:%02d:%02d %s", 1 + random.nextInt(28),
+                    MONTHS[random.nextInt(12)], 2010 + random.nextInt(8), random.nextInt(24), random.nextInt(60),
+                    random.nextInt(60), random.nextBoolean() ? "+0000" : "-0800"));
+            g.writeStringField("version", "1." + (400 + random.nextInt(250)));
+            g.writeNumberField("stat", 1 + random.nextInt(100));
+            g.writeStringField("servletContainer", "jetty/winstone-2.9");
+            g.writeArrayFieldStart("nodes");
+            int nodes = 1 + random.nextInt(random.nextInt(10) == 0 ? 40 : 3);
+            for(int i=0; i < nodes; i++){
+                g.writeStartObject();
+                g.writeStringField("os", OS[random.nextInt(OS.length)]);
+                g.writeStringField("jvm-name", "Java HotSpot(TM) 64-Bit Server VM");
+                g.writeStringField("jvm-version", "1." + (6 + random.nextInt(3)) + ".0_" + random.nextInt(200));
+                g.writeStringField("jvm-vendor", "Oracle Corporation");
+                g.writeNumberField("executors", random.nextInt(8));
+                if(i == 0){
+                    g.writeBooleanField("master", true);
+                }
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeArrayFieldStart("plugins");
+            int plugins = random.nextInt(80);
+            for(int i=0; i < plugins; i++){
+                g.writeStartObject();
+                g.writeStringField("name", word(4 + random.nextInt(16)) + "-plugin");
+                g.writeStringField("version", random.nextInt(5) + "." + random.nextInt(30));
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeObjectFieldStart("jobs");
+            for(String type : JOB_TYPES){
+                if(random.nextBoolean()){
+                    g.writeNumberField(type, random.nextInt(500));
+                }
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+        }
+        return w.toString();
+    }
+
+    private String extension() throws IOException {
+        StringWriter w = new StringWriter(8192);
+        try (JsonGenerator g = JSON.createGenerator(w)) {
+            String artifact = word(4 + random.nextInt(12));
+            g.writeStartObject();
+            g.writeStringField("gav", "org.jenkins_ci.plugins:" + artifact + ":" + random.nextInt(5) + "."
+                    + random.nextInt(20));
+            g.writeStringField("displayName", word(6) + " " + word(8) + " Plugin");
+            g.writeStringField("url", "https://wiki.jenkins-ci.org/display/JENKINS/" + artifact);
+            g.writeNumberField("viewScore", random.nextDouble());
+            writeExtensions(g, "extensions", artifact, 1 + random.nextInt(8), true);
+            writeExtensions(g, "extensionPoints", artifact, random.nextInt(3), true);
+            writeExtensions(g, "uses", artifact, random.nextInt(5), true);
+            writeExtensions(g, "actions", artifact, random.nextInt(3), false);
+            g.writeEndObject();
+        }
+        return w.toString();
+    }
+
+    private void writeExtensions(JsonGenerator g, String field, String artifact, int count,
+                                 boolean extensionPoint) throws IOException {
+        g.writeArrayFieldStart(field);
+        for(int i=0; i < count; i++){
+            String className = "org.jenkinsci.plugins." + artifact + "." + word(10);
+            g.writeStartObject();
+            g.writeStringField("artifact", artifact);
+            g.writeStringField("className", className);
+            if(extensionPoint){
+                g.writeStringField("extensionPoint", EXTENSION_POINTS[random.nextInt(EXTENSION_POINTS.length)]);
+            }
+            g.writeNumberField("lineNumber", 1 + random.nextInt(1000));
+            g.writeStringField("sourceFile", className.replace('.', '/') + ".java");
+            if(random.nextBoolean()){
+                g.writeStringField("javadoc", sentence(10 + random.nextInt(60)));
+            }
+            boolean hasView = random.nextBoolean();
+            g.writeBooleanField("hasView", hasView);
+            g.writeArrayFieldStart("views");
+            if(hasView){
+                g.writeStartObject();
+                g.writeStringField("name", "config.jelly");
+                g.writeStringField("source", "<j:jelly xmlns:j=\"jelly:core\">\n  <f:entry title=\"" + word(8)
+                        + "\"/>\n</j:jelly>");
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+    }
+
+    private String hex(int length){
+        StringBuilder b = new StringBuilder(length);
+        for(int i=0; i < length; i++){
+            b.append(Character.forDigit(random.nextInt(16), 16));
+        }
+        return b.toString();
+    }
+
+    private String word(int length){
+        StringBuilder b = new StringBuilder(length);
+        for(int i=0; i < length; i++){
+            b.append((char) ('a' + random.nextInt(26)));
+        }
+        return b.toString();
+    }
+
+    private String sentence(int words){
+        StringBuilder b = new StringBuilder();
+        for(int i=0; i < words; i++){
+            if(i > 0){
+                b.append(' ');
+            }
+            b.append(word(2 + random.nextInt(8)));
+        }
+        return b.append('.').toString();
+    }
+}
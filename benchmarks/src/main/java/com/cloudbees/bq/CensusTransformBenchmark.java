@@ -0,0 +1,50 @@
+package com.cloudbees.bq;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.cloudbees.bq.RowPathBenchmark.ROWS;
+
+/**
+ * Measures {@link CensusRowTransformer} over raw census records, scores are in rows per second.
+ *
+ * @author Vivek Pandey
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CensusTransformBenchmark {
+    private final RowTransformer transformer = new CensusRowTransformer();
+    private List<String> records;
+
+    @Setup
+    public void setup() throws IOException {
+        records = new BenchmarkRecords(42).generate(BenchmarkRecords.CENSUS, ROWS);
+        BenchmarkRecords.check(BenchmarkRecords.CENSUS, records);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void transform(Blackhole bh) throws IOException {
+        for(String record : records){
+            bh.consume(transformer.transform(record));
+        }
+    }
+}
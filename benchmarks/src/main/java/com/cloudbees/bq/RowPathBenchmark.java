@@ -0,0 +1,211 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.common.base.Utf8;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per row work of an upload, the way {@link StreamingUploader} and {@link BigQueryJobUploader} do it.
+ *
+ * Each invocation processes {@value #ROWS} records, so scores are in rows per second. Run with -prof gc to get the
+ * allocation rate per row (gc.alloc.rate.norm divided by {@value #ROWS}).
+ *
+ * @author Vivek Pandey
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowPathBenchmark {
+    static final int ROWS = 1000;
+    private static final int BATCH_ROWS = BigQueryConfig.DEFAULT_MAX_BATCH_ROWS;
+
+    @Param({BenchmarkRecords.CENSUS, BenchmarkRecords.EXTENSION})
+    public String shape;
+
+    private final ObjectMapper om = new ObjectMapper();
+    private final JacksonFactory jsonFactory = new JacksonFactory();
+    private List<String> records;
+    private String insertIdField;
+    private InsertIdExtractor insertIdExtractor;
+    private InsertIdExtractor insertIdHasher;
+    private final ByteArrayOutputStream requestBuffer = new ByteArrayOutputStream();
+    private byte[] content;
+
+    @Setup
+    public void setup() throws IOException {
+        List<String> generated = new BenchmarkRecords(42).generate(shape, ROWS);
+        BenchmarkRecords.check(shape, generated);
+        records = new ArrayList<>(ROWS);
+        CensusRowTransformer transformer = new CensusRowTransformer();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(String record : generated){
+            // census rows are uploaded after the census transform
+            String row = BenchmarkRecords.CENSUS.equals(shape) ? transformer.transform(record) : record;
+            records.add(row);
+            out.write(row.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        }
+        content = out.toByteArray();
+        insertIdField = BenchmarkRecords.insertIdField(shape);
+        insertIdExtractor = new InsertIdExtractor(insertIdField);
+        insertIdHasher = new InsertIdExtractor(null, Collections.<String>emptyList());
+    }
+
+    /**
+     * Parsing a line in to a map, as done for each streamed row
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void parse(Blackhole bh) throws IOException {
+        for(String record : records){
+            bh.consume(om.readValue(record, new TypeReference<Map<String,Object>>() {}));
+        }
+    }
+
+    /**
+     * Getting the insertId of a line, parsing it in to a map first
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void insertId(Blackhole bh) throws IOException {
+        for(String record : records){
+            Map<String,Object> m = om.readValue(record, new TypeReference<Map<String,Object>>() {});
+            bh.consume(m.get(insertIdField));
+        }
+    }
+
+    /**
+     * Getting the insertId of a line with a token scan, as {@link StreamingUploader} does
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void insertIdScan(Blackhole bh) throws IOException {
+        for(String record : records){
+            bh.consume(insertIdExtractor.extract(record));
+        }
+    }
+
+    /**
+     * Deriving the insertId of a line from a hash of the whole line during the token scan, as -insertIdHash line does
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void insertIdHash(Blackhole bh) throws IOException {
+        for(String record : records){
+            bh.consume(insertIdHasher.extract(record));
+        }
+    }
+
+    /**
+     * Building insertAll requests of {@link BigQueryConfig#DEFAULT_MAX_BATCH_ROWS} rows from lines parsed in to maps and
+     * serializing them, as the HTTP client does when sending them
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void insertAllRequest(Blackhole bh) throws IOException {
+        List<TableDataInsertAllRequest.Rows> rows = new ArrayList<>(BATCH_ROWS);
+        for(String record : records){
+            Map<String,Object> m = om.readValue(record, new TypeReference<Map<String,Object>>() {});
+            TableDataInsertAllRequest.Rows r = new TableDataInsertAllRequest.Rows();
+            r.setInsertId((String) m.get(insertIdField));
+            r.setJson(m);
+            rows.add(r);
+            if(rows.size() == BATCH_ROWS){
+                writeRequest(rows, bh);
+                rows = new ArrayList<>(BATCH_ROWS);
+            }
+        }
+        if(!rows.isEmpty()){
+            writeRequest(rows, bh);
+        }
+    }
+
+    /**
+     * Building insertAll requests the way {@link StreamingUploader} does, lines are spliced in to a reused request
+     * buffer as they are
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void rawInsertAllRequest(Blackhole bh) throws IOException {
+        InsertAllBatch batch = new InsertAllBatch();
+        for(String record : records){
+            long size = Utf8.encodedLength(record);
+            if(batch.isFull(BATCH_ROWS, BigQueryConfig.DEFAULT_MAX_BATCH_BYTES, size)){
+                writeRequest(batch, bh);
+                batch = new InsertAllBatch();
+            }
+            batch.add(record, insertIdExtractor.extract(record), 0, size);
+        }
+        if(!batch.isEmpty()){
+            writeRequest(batch, bh);
+        }
+    }
+
+    private void writeRequest(InsertAllBatch batch, Blackhole bh) throws IOException {
+        List<Integer> rows = new ArrayList<>(batch.size());
+        for(int i=0; i < batch.size(); i++){
+            rows.add(i);
+        }
+        CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        new InsertAllContent(requestBuffer, null, batch, rows).writeTo(out);
+        bh.consume(out.getByteCount());
+    }
+
+    private void writeRequest(List<TableDataInsertAllRequest.Rows> rows, Blackhole bh) throws IOException {
+        TableDataInsertAllRequest request = new TableDataInsertAllRequest()
+                .setIgnoreUnknownValues(true)
+                .setRows(rows);
+        CountingOutputStream out = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        new JsonHttpContent(jsonFactory, request).writeTo(out);
+        bh.consume(out.getByteCount());
+    }
+
+    /**
+     * Gzip compressing record file content while it is sent with -compressUpload
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long gzip() throws IOException {
+        byte[] buf = new byte[64*1024];
+        long size = 0;
+        try (InputStream in = new GzipCompressingInputStream(new ByteArrayInputStream(content))) {
+            int n;
+            while((n = in.read(buf)) != -1){
+                size += n;
+            }
+        }
+        return size;
+    }
+}
@@ -1,7 +1,5 @@
 #!/usr/bin/ruby
-require 'json'
 require 'time'
-require 'zlib'
 
 class CensusFile
   attr_reader :timestamp
@@ -16,72 +14,6 @@ class CensusFile
     @name = x[x.size - 2]
     @timestamp = Time.strptime(@name, "%Y%m%d")
   end
-
-  #
-  # Transforms usage JSON file's jobs element in to big query friendly records
-  #
-  def transform
-    return if File.exist?("./census/#{@name}")
-    dest = File.open("./census/#{@name}", 'w', :external_encoding=>'utf-8')
-    uncompress_name = "./uncompressed-data/#{@name}.raw"
-    uncompress(uncompress_name)
-    File.open(uncompress_name, 'r').each do|line|
-      if block_given?
-        line = yield line
-      end
-      dest.puts line
-    end
-    dest.close
-  end
-
-  private
-  def uncompress(n)
-    return if File.exist?(n)
-    ufile = File.open(n, 'w', :external_encoding=>'utf-8')
-    Zlib::GzipReader.open(@path) do |gz|
-      ufile.puts gz.read
-    end
-    ufile.close
-  end
-end
-
-#
-# Transforms each json record's jobs element in to bigquery friendly json structure
-#
-# {'jobs': {'hudson-matrix-MatrixProject':2}} is converted to
-#
-# {'jobs': [{'type':'hudson_matrix_MatrixProject', 'count':2}]}
-#
-filter = lambda do |line|
-  usage = JSON.parse(line)
-  jobs = []
-  if usage['jobs']
-    usage['jobs'].each do |k,v|
-      jobs << {'type'=>k.gsub('-','_'), 'count'=>v}
-    end
-  end
-
-  nodes = []
-  if usage['nodes']
-    usage['nodes'].each do |h|
-      h.map{|k,v| [k.gsub('-','_'),] }
-      map = {}
-      h.each do |k,v|
-        k = k.gsub('-','_')
-        map[k]=v
-      end  
-      nodes << map
-    end
-  end
-
-
-  # convert to UTC timestamp that bigquery understands
-  if usage['timestamp']
-    usage['timestamp'] = Time.strptime(usage['timestamp'], "%d/%b/%Y:%T %Z").utc
-  end
-  usage['jobs'] = jobs
-  usage['nodes'] = nodes
-  usage.to_json
 end
 
 def sort(path, descending=true)
@@ -114,10 +46,11 @@ def upload f
                         -projectId jenkins-user-stats \
                         -datasetId jenkinsstats \
                         -tableId jenkins_usage \
-                        -bqFile  ./census/#{f.name}  \
+                        -bqFile  #{f.path}  \
                         -schemaFile ./schema/usage-schema.json \
                         -credentialFile ./gapipk.json \
                         -uploadType census \
+                        -transform census \
                         -createTable"
 end
 
@@ -132,15 +65,14 @@ else
   order = true
 end
 
+# The uploader decompresses and transforms the census file itself
 latest_file=sort(path, order).first
-latest_file.transform(&filter)
 upload latest_file
 
 # count = 0
 # sort(path, order).each do |f|    
 #     if (f.timestamp >= Time.strptime("20130107000000", "%Y%m%d")) and (f.timestamp <= Time.strptime("20130107000000", "%Y%m%d"))
 #       puts f.inspect    
-#       f.transform(&filter)
 #       upload f
 #     end
 # end
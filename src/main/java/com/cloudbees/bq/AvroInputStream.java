@@ -0,0 +1,125 @@
+package com.cloudbees.bq;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+
+/**
+ * Gives the records of the wrapped record file as an Avro data file of deflate compressed blocks, converted by an
+ * {@link AvroRowConverter} as they are read, so a load job can upload them as Avro without writing a converted copy
+ * first. Only a block of records and its compressed bytes are held in memory at a time, whatever the size of the file.
+ *
+ * Records are transformed and validated by a {@link RowProcessor} first. Records that fail either or can not be
+ * converted are left out.
+ *
+ * @author Vivek Pandey
+ */
+class AvroInputStream extends InputStream {
+    /** uncompressed size of a block of records */
+    private static final int BLOCK_SIZE = 1024*1024;
+    private static final int DEFLATE_LEVEL = 6;
+
+    private final ParallelRowReader rows;
+    private final RowProcessor processor;
+    private final AvroRowConverter converter;
+    private final DataFileWriter<Object[]> writer;
+    /** bytes written by the Avro writer, not read yet */
+    private final Buffer buf = new Buffer();
+    private int pos;
+    private boolean eof;
+
+    /**
+     * @param sync sync marker of the data file, 16 bytes, the same record file must always be given the same marker for
+     *             its content to be the same
+     * @param threads number of threads processing records
+     */
+    AvroInputStream(InputStream in, RowProcessor processor, AvroRowConverter converter, byte[] sync, int threads,
+                    UploadMetrics metrics, MemoryBudget budget) throws IOException {
+        this.rows = new ParallelRowReader(new LineReader(in), processor, threads, metrics, budget);
+        this.processor = processor;
+        this.converter = converter;
+        this.writer = new DataFileWriter<>(converter)
+                .setCodec(CodecFactory.deflateCodec(DEFLATE_LEVEL))
+                .setSyncInterval(BLOCK_SIZE);
+        writer.create(converter.getSchema(), buf, sync);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()){
+            return -1;
+        }
+        return buf.get(pos++) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0){
+            return 0;
+        }
+        if(!fill()){
+            return -1;
+        }
+        int n = Math.min(len, buf.size() - pos);
+        buf.copy(pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Makes sure there are bytes left in buf, converting records until the writer writes out a block if needed.
+     *
+     * @return false at the end of the data file
+     */
+    private boolean fill() throws IOException {
+        while(pos == buf.size() && !eof){
+            buf.reset();
+            pos = 0;
+            while(buf.size() == 0 && !eof){
+                ParallelRowReader.Row row = rows.next();
+                if(row == null){
+                    writer.close();
+                    eof = true;
+                    break;
+                }
+                Object[] values;
+                try {
+                    values = converter.convert(row.row);
+                } catch (IOException e) {
+                    processor.reject(row.lineNumber, row.row,
+                            Collections.singletonList("failed to convert to Avro: " + e.getMessage()));
+                    continue;
+                }
+                try {
+                    writer.append(values);
+                } catch (AvroRuntimeException e) {
+                    throw new IOException("Failed to write line " + row.lineNumber + " as Avro: " + e.getMessage(), e);
+                }
+            }
+        }
+        return pos < buf.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        rows.close();
+    }
+
+    /**
+     * Gives access to the written bytes without copying them
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        private byte get(int index){
+            return buf[index];
+        }
+
+        private void copy(int from, byte[] b, int off, int len){
+            System.arraycopy(buf, from, b, off, len);
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableSchema;
+import com.google.common.io.BaseEncoding;
+import org.apache.avro.JsonProperties;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Converts JSON records to Avro records of a table schema, so that a load job can upload compact Avro blocks instead of
+ * newline delimited JSON that BigQuery is slower to parse.
+ *
+ * NULLABLE fields are unions with null, REPEATED fields are arrays, empty when the field is missing or null, and RECORD
+ * fields are nested records. TIMESTAMP, DATE, TIME and NUMERIC fields are converted to the Avro logical types BigQuery
+ * loads them from with useAvroLogicalTypes, DATETIME is a string with BigQuery's datetime logical type. Values are
+ * converted the way BigQuery converts JSON values, a record it would reject can not be converted. Fields not in the
+ * schema are ignored.
+ *
+ * A record is converted in to an array of the values of its fields in schema order, nested records are arrays too, and
+ * then written by the {@link DatumWriter} of the converter. Instances are thread safe.
+ *
+ * @author Vivek Pandey
+ */
+class AvroRowConverter implements DatumWriter<Object[]> {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private static final Pattern TIMESTAMP = Pattern.compile("(\\d{4})-(\\d{1,2})-(\\d{1,2})"
+            + "(?:[ T](\\d{1,2}):(\\d{1,2})(?::(\\d{1,2})(?:\\.(\\d{1,6}))?)?)?"
+            + "\\s*(Z|UTC|([+-])(\\d{1,2})(?::?(\\d{2}))?)?");
+    private static final Pattern DATE = Pattern.compile("(\\d{4})-(\\d{1,2})-(\\d{1,2})");
+    private static final Pattern TIME = Pattern.compile("(\\d{1,2}):(\\d{1,2}):(\\d{1,2})(?:\\.(\\d{1,6}))?");
+
+    /** BigQuery NUMERIC, as an Avro decimal */
+    private static final int NUMERIC_PRECISION = 38;
+    private static final int NUMERIC_SCALE = 9;
+
+    private enum Type {STRING, BYTES, INTEGER, FLOAT, NUMERIC, BOOLEAN, TIMESTAMP, DATE, TIME, DATETIME, RECORD}
+
+    private final Record root;
+    private final Schema schema;
+
+    AvroRowConverter(TableSchema schema) {
+        this.root = compile(schema.getFields());
+        this.schema = toAvro(root, "Row");
+    }
+
+    /**
+     * @return Avro schema of the converted records
+     */
+    Schema getSchema() {
+        return schema;
+    }
+
+    private static Record compile(List<TableFieldSchema> schema){
+        Record record = new Record();
+        if(schema == null){
+            return record;
+        }
+        for(TableFieldSchema s : schema){
+            Field f = new Field();
+            f.name = s.getName();
+            f.index = record.ordered.size();
+            f.type = toType(s.getType());
+            f.required = "REQUIRED".equals(s.getMode());
+            f.repeated = "REPEATED".equals(s.getMode());
+            if(f.type == Type.RECORD){
+                f.record = compile(s.getFields());
+            }
+            record.fields.put(f.name.toLowerCase(Locale.ENGLISH), f);
+            record.ordered.add(f);
+        }
+        return record;
+    }
+
+    private static Type toType(String type){
+        switch (type == null ? "" : type){
+            case "BYTES": return Type.BYTES;
+            case "INTEGER": case "INT64": return Type.INTEGER;
+            case "FLOAT": case "FLOAT64": return Type.FLOAT;
+            case "NUMERIC": return Type.NUMERIC;
+            case "BOOLEAN": case "BOOL": return Type.BOOLEAN;
+            case "TIMESTAMP": return Type.TIMESTAMP;
+            case "DATE": return Type.DATE;
+            case "TIME": return Type.TIME;
+            case "DATETIME": return Type.DATETIME;
+            case "RECORD": case "STRUCT": return Type.RECORD;
+            // GEOGRAPHY is loaded from its WKT text
+            default: return Type.STRING;
+        }
+    }
+
+    /**
+     * @param name name of the Avro record, nested records are named after the path to them as names must be unique
+     */
+    private static Schema toAvro(Record record, String name){
+        List<Schema.Field> fields = new ArrayList<>();
+        for(Field f : record.ordered){
+            Schema s = toAvro(f, name);
+            if(f.repeated){
+                fields.add(new Schema.Field(f.name, Schema.createArray(s), null, (Object) null));
+            }else if(f.required){
+                fields.add(new Schema.Field(f.name, s, null, (Object) null));
+            }else{
+                fields.add(new Schema.Field(f.name, Schema.createUnion(Schema.create(Schema.Type.NULL), s), null,
+                        JsonProperties.NULL_VALUE));
+            }
+        }
+        return Schema.createRecord(name, null, null, false, fields);
+    }
+
+    private static Schema toAvro(Field f, String parent){
+        switch (f.type){
+            case BYTES: return Schema.create(Schema.Type.BYTES);
+            case INTEGER: return Schema.create(Schema.Type.LONG);
+            case FLOAT: return Schema.create(Schema.Type.DOUBLE);
+            case NUMERIC:
+                return LogicalTypes.decimal(NUMERIC_PRECISION, NUMERIC_SCALE)
+                        .addToSchema(Schema.create(Schema.Type.BYTES));
+            case BOOLEAN: return Schema.create(Schema.Type.BOOLEAN);
+            case TIMESTAMP: return LogicalTypes.timestampMicros().addToSchema(Schema.create(Schema.Type.LONG));
+            case DATE: return LogicalTypes.date().addToSchema(Schema.create(Schema.Type.INT));
+            case TIME: return LogicalTypes.timeMicros().addToSchema(Schema.create(Schema.Type.LONG));
+            case DATETIME:
+                Schema datetime = Schema.create(Schema.Type.STRING);
+                datetime.addProp("logicalType", "datetime");
+                return datetime;
+            case RECORD: return toAvro(f.record, parent + "_" + f.name);
+            default: return Schema.create(Schema.Type.STRING);
+        }
+    }
+
+    /**
+     * @param row JSON record
+     * @return values of the fields of the record, in schema order
+     * @throws IOException if the record can not be converted, with the reason as its message
+     */
+    Object[] convert(String row) throws IOException {
+        try (JsonParser p = JSON.createParser(row)) {
+            if(p.nextToken() != JsonToken.START_OBJECT){
+                throw new IOException("record is not a JSON object");
+            }
+            Object[] values = convertRecord(p, root, "");
+            if(p.nextToken() != null){
+                throw new IOException("unexpected content after record");
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Converts fields of a JSON object, the parser is at its START_OBJECT and is left at its END_OBJECT
+     */
+    private Object[] convertRecord(JsonParser p, Record record, String path) throws IOException {
+        Object[] values = new Object[record.ordered.size()];
+        while(p.nextToken() == JsonToken.FIELD_NAME){
+            Field f = record.fields.get(p.getCurrentName().toLowerCase(Locale.ENGLISH));
+            p.nextToken();
+            if(f == null){
+                p.skipChildren();
+                continue;
+            }
+            values[f.index] = convertField(p, f, path + f.name);
+        }
+        for(Field f : record.ordered){
+            if(f.required && values[f.index] == null){
+                throw new IOException(path + f.name + ": required field is missing");
+            }
+        }
+        return values;
+    }
+
+    private Object convertField(JsonParser p, Field f, String path) throws IOException {
+        JsonToken token = p.getCurrentToken();
+        if(token == JsonToken.VALUE_NULL){
+            if(f.required){
+                throw new IOException(path + ": required field is null");
+            }
+            return null;
+        }
+        if(!f.repeated){
+            return convertValue(p, f, path);
+        }
+        if(token != JsonToken.START_ARRAY){
+            throw new IOException(path + ": expected array of " + f.type + ", got " + token);
+        }
+        List<Object> values = new ArrayList<>();
+        while(p.nextToken() != JsonToken.END_ARRAY){
+            if(p.getCurrentToken() == JsonToken.VALUE_NULL){
+                throw new IOException(path + "[" + values.size() + "]: repeated field can not have null elements");
+            }
+            values.add(convertValue(p, f, path + "[" + values.size() + "]"));
+        }
+        return values;
+    }
+
+    private Object convertValue(JsonParser p, Field f, String path) throws IOException {
+        JsonToken token = p.getCurrentToken();
+        if(f.type == Type.RECORD){
+            if(token != JsonToken.START_OBJECT){
+                throw new IOException(path + ": expected RECORD, got " + token);
+            }
+            return convertRecord(p, f.record, path + ".");
+        }
+        if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+            throw new IOException(path + ": expected " + f.type + ", got " + token);
+        }
+        String text = p.getText();
+        try {
+            switch (f.type){
+                case INTEGER:
+                    if(token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_STRING){
+                        return Long.parseLong(text.startsWith("+") ? text.substring(1) : text);
+                    }
+                    break;
+                case FLOAT:
+                    if(token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT
+                            || token == JsonToken.VALUE_STRING){
+                        return Double.parseDouble(text);
+                    }
+                    break;
+                case NUMERIC:
+                    if(token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT
+                            || token == JsonToken.VALUE_STRING){
+                        return new BigDecimal(text).setScale(NUMERIC_SCALE, RoundingMode.HALF_UP).unscaledValue()
+                                .toByteArray();
+                    }
+                    break;
+                case BOOLEAN:
+                    if(token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE
+                            || token == JsonToken.VALUE_STRING
+                            && (text.equalsIgnoreCase("true") || text.equalsIgnoreCase("false"))){
+                        return Boolean.parseBoolean(text);
+                    }
+                    break;
+                case TIMESTAMP:
+                    if(token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT){
+                        // seconds since the epoch
+                        return new BigDecimal(text).movePointRight(6).setScale(0, RoundingMode.HALF_UP)
+                                .longValueExact();
+                    }else if(token == JsonToken.VALUE_STRING){
+                        Long micros = toTimestampMicros(text.trim());
+                        if(micros != null){
+                            return micros;
+                        }
+                    }
+                    break;
+                case DATE:
+                    Matcher date = DATE.matcher(text);
+                    if(token == JsonToken.VALUE_STRING && date.matches()){
+                        return (int) toEpochDay(date);
+                    }
+                    break;
+                case TIME:
+                    Matcher time = TIME.matcher(text);
+                    if(token == JsonToken.VALUE_STRING && time.matches()){
+                        return toMicrosOfDay(time.group(1), time.group(2), time.group(3), time.group(4));
+                    }
+                    break;
+                case BYTES:
+                    if(token == JsonToken.VALUE_STRING){
+                        return BaseEncoding.base64().decode(text);
+                    }
+                    break;
+                default:
+                    // STRING and DATETIME take the text of any scalar value
+                    return text;
+            }
+        } catch (IllegalArgumentException | ArithmeticException | DateTimeException e) {
+            // not a valid value, NumberFormatException is an IllegalArgumentException
+        }
+        throw new IOException(path + ": expected " + f.type + ", got " + text);
+    }
+
+    /**
+     * @return microseconds since the epoch of a BigQuery timestamp string, null if it is not one
+     */
+    private static Long toTimestampMicros(String s){
+        Matcher m = TIMESTAMP.matcher(s);
+        if(!m.matches()){
+            return null;
+        }
+        long micros = toEpochDay(m) * 86400L * 1000000L;
+        if(m.group(4) != null){
+            micros += toMicrosOfDay(m.group(4), m.group(5), m.group(6), m.group(7));
+        }
+        if(m.group(9) != null){
+            long offset = Integer.parseInt(m.group(10)) * 3600L
+                    + (m.group(11) == null ? 0 : Integer.parseInt(m.group(11)) * 60L);
+            micros -= (m.group(9).equals("-") ? -offset : offset) * 1000000L;
+        }
+        return micros;
+    }
+
+    private static long toEpochDay(Matcher m){
+        return LocalDate.of(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)))
+                .toEpochDay();
+    }
+
+    private static long toMicrosOfDay(String hours, String minutes, String seconds, String fraction){
+        long micros = (Integer.parseInt(hours) * 3600L + Integer.parseInt(minutes) * 60L
+                + (seconds == null ? 0 : Integer.parseInt(seconds))) * 1000000L;
+        if(fraction != null){
+            micros += Long.parseLong((fraction + "00000").substring(0, 6));
+        }
+        return micros;
+    }
+
+    @Override
+    public void setSchema(Schema schema) {
+        // records are always written with the schema of the converter
+    }
+
+    @Override
+    public void write(Object[] values, Encoder out) throws IOException {
+        writeRecord(root, values, out);
+    }
+
+    private void writeRecord(Record record, Object[] values, Encoder out) throws IOException {
+        for(Field f : record.ordered){
+            Object value = values[f.index];
+            if(f.repeated){
+                List<?> elements = value == null ? Collections.emptyList() : (List<?>) value;
+                out.writeArrayStart();
+                out.setItemCount(elements.size());
+                for(Object e : elements){
+                    out.startItem();
+                    writeValue(f, e, out);
+                }
+                out.writeArrayEnd();
+            }else if(f.required){
+                writeValue(f, value, out);
+            }else if(value == null){
+                out.writeIndex(0);
+                out.writeNull();
+            }else{
+                out.writeIndex(1);
+                writeValue(f, value, out);
+            }
+        }
+    }
+
+    private void writeValue(Field f, Object value, Encoder out) throws IOException {
+        switch (f.type){
+            case BYTES: case NUMERIC: out.writeBytes((byte[]) value); break;
+            case INTEGER: case TIMESTAMP: case TIME: out.writeLong((Long) value); break;
+            case FLOAT: out.writeDouble((Double) value); break;
+            case BOOLEAN: out.writeBoolean((Boolean) value); break;
+            case DATE: out.writeInt((Integer) value); break;
+            case RECORD: writeRecord(f.record, (Object[]) value, out); break;
+            default: out.writeString((String) value);
+        }
+    }
+
+    private static class Record {
+        /** fields by lower case name, BigQuery field names are case insensitive */
+        private final Map<String, Field> fields = new HashMap<>();
+        private final List<Field> ordered = new ArrayList<>();
+    }
+
+    private static class Field {
+        private String name;
+        private int index;
+        private Type type;
+        private boolean required;
+        private boolean repeated;
+        private Record record;
+    }
+}
@@ -1,16 +1,27 @@
 package com.cloudbees.bq;
 
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.bigquery.model.Table;
 import com.google.api.services.bigquery.model.TableList;
 import com.google.api.services.bigquery.model.TableReference;
 import com.google.api.services.bigquery.model.TableSchema;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static com.cloudbees.bq.BigQueryConfig.UPLOAD_HISTORY_TABLE_ID;
 
@@ -31,13 +42,87 @@ public class BigQueryApi {
             this.uploader = new BigQueryJobUploader(config);
         }
 
+        long start = System.nanoTime();
         if(getTable(UPLOAD_HISTORY_TABLE_ID) == null){
             createTable(UPLOAD_HISTORY_TABLE_ID, config.getUploadHistorySchema());
         }
+        config.getMetrics().phase(UploadMetrics.PHASE_TABLE_CHECK, start);
     }
 
-    public void upload(File uploadFile){
-        uploader.upload(uploadFile);
+    /**
+     * @return false if the file was skipped because of a previous attempt to upload it
+     */
+    public boolean upload(File uploadFile){
+        return uploader.upload(uploadFile);
+    }
+
+    /**
+     * Uploads given files in the given order, with up to given number of uploads running at once. Upload history of
+     * all files is looked up at once before any upload starts.
+     *
+     * @return number of files that failed to upload
+     */
+    public int upload(List<File> uploadFiles, int threads){
+        final Map<String, Set<UploadHistory.Status>> history = config.getUploadType() == UploadHistory.Type.CENSUS
+                ? lookupUploadHistory(uploadFiles)
+                : Collections.<String, Set<UploadHistory.Status>>emptyMap();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("upload-%d").setDaemon(true).build());
+        Map<File, Future<Boolean>> results = new LinkedHashMap<>();
+        for(final File f : uploadFiles){
+            results.put(f, executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return uploader.upload(f, history.get(uploader.getUploadName(f)));
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int uploaded = 0;
+        int skipped = 0;
+        int failed = 0;
+        try {
+            for (Map.Entry<File, Future<Boolean>> e : results.entrySet()) {
+                try {
+                    if (e.getValue().get()) {
+                        uploaded++;
+                    } else {
+                        skipped++;
+                    }
+                } catch (ExecutionException ex) {
+                    failed++;
+                    LOGGER.error("Failed to upload " + e.getKey().getName() + ": " + ex.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        LOGGER.info("Uploaded {} of {} files, {} skipped, {} failed", uploaded, uploadFiles.size(), skipped, failed);
+        return failed;
+    }
+
+    /**
+     * Inserts rows spilled to the replay file by earlier runs again, rows that fail again are spilled to it anew
+     */
+    public void replay(){
+        StreamingUploader streamingUploader = uploader instanceof StreamingUploader
+                ? (StreamingUploader) uploader
+                : new StreamingUploader(config);
+        streamingUploader.replay();
+    }
+
+    private Map<String, Set<UploadHistory.Status>> lookupUploadHistory(List<File> uploadFiles){
+        List<String> names = new ArrayList<>();
+        for(File f : uploadFiles){
+            names.add(uploader.getUploadName(f));
+        }
+        Map<String, Set<UploadHistory.Status>> history = uploader.getUploadStatuses(names);
+        LOGGER.info("{} of {} files have previous upload attempts", history.size(), names.size());
+        return history;
     }
 
 
@@ -53,10 +138,12 @@ public class BigQueryApi {
                     .tables()
                     .insert(config.getProjectId(), config.getDatasetId(), table)
                     .execute();
+            config.getTableMetadataCache().put(table);
             LOGGER.info("Table {} created successfully.", table.getTableReference().getTableId());
         }catch (GoogleJsonResponseException e) {
             if(e.getStatusCode() == 409){
                 LOGGER.error("Table: {} already exists.",tableId);
+                config.getTableMetadataCache().invalidate(tableId);
             }else{
                 LOGGER.error(e.getMessage());
                 throw new RuntimeException(e);
@@ -66,18 +153,12 @@ public class BigQueryApi {
         }
     }
 
+    /**
+     * @return table with its reference and schema, null if it does not exist. Answered from the table metadata cache
+     *         while it is fresh.
+     */
     public Table getTable(String tableId){
-        try {
-            return config.getBigQuery().tables().get(config.getProjectId(), config.getDatasetId(), tableId).execute();
-        } catch (HttpResponseException e){
-          if(e.getStatusCode() == 404){
-              LOGGER.error("Table "+tableId +" not found", e.getContent());
-              return null;
-          }
-          throw new RuntimeException("Failed to get table: "+tableId+": "+ e.getMessage(), e);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to get table: "+tableId+": "+ e.getMessage(), e);
-        }
+        return config.getTableMetadataCache().get(tableId);
     }
 
     public void listTables(){
@@ -1,20 +1,41 @@
 package com.cloudbees.bq;
 
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.BigqueryScopes;
 import com.google.api.services.bigquery.model.TableSchema;
 import com.google.common.collect.ImmutableList;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ProxySelector;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Vivek Pandey
@@ -25,12 +46,50 @@ public class BigQueryConfig {
     public static final String WRITE_TRUNCATE="WRITE_TRUNCATE";
     public static final String UPLOAD_HISTORY_TABLE_ID="upload_history";
 
+    /** BigQuery recommends at most 500 rows per insertAll request */
+    public static final int DEFAULT_MAX_BATCH_ROWS=500;
+
+    /** insertAll requests are limited to 10MB, stay well under it as batch size is estimated from the JSON text */
+    public static final long DEFAULT_MAX_BATCH_BYTES=5*1024*1024;
+
+    public static final int DEFAULT_UPLOAD_CHUNK_SIZE_MB=10;
+    /** largest chunk size whose bytes fit in an int, a chunk is held in one array */
+    public static final int MAX_UPLOAD_CHUNK_SIZE_MB=1024;
+
+    public static final int DEFAULT_TABLE_CACHE_TTL_MIN=60;
+
+    public static final int DEFAULT_MAX_RETRIES=5;
+    public static final int DEFAULT_RETRY_BUDGET=100;
+
+    public static final int DEFAULT_CHECKPOINT_INTERVAL_SEC=10;
+
+    public static final int DEFAULT_SENDER_THREADS=4;
+    public static final int DEFAULT_READ_AHEAD_BATCHES=4;
+
+    /** pooled keep-alive connections of Apache HttpClient */
+    public static final String HTTP_TRANSPORT_APACHE="apache";
+    /** HttpURLConnection, connections are kept alive by the JDK with little control over them */
+    public static final String HTTP_TRANSPORT_JDK="jdk";
+    public static final int DEFAULT_MAX_CONNECTIONS=20;
+    public static final int DEFAULT_CONNECT_TIMEOUT_SEC=20;
+    public static final int DEFAULT_READ_TIMEOUT_SEC=60;
+
+    public static final String PARTITION_BY_DAY="day";
+    public static final String PARTITION_BY_MONTH="month";
+    /** rows go to table_YYYYMMDD, created with the schema of the table */
+    public static final String PARTITION_TABLE_SUFFIX="suffix";
+    /** rows go to the table$YYYYMMDD partition of a date partitioned table */
+    public static final String PARTITION_TABLE_DECORATOR="decorator";
+
     private final String projectId;
     private final String datasetId;
     private final String tableId;
-    private final Bigquery bigQuery;
+    private final File credentialFile;
+    private Bigquery bigQuery;
+    private UploadMetrics metrics = new UploadMetrics();
     private String templateSuffix;
     private String insertIdField;
+    private List<String> insertIdHashFields;
     private boolean createTable;
     private TableSchema schema;
     private TableSchema uploadHistorySchema;
@@ -38,20 +97,54 @@ public class BigQueryConfig {
     private boolean streamingUpload;
     private String writeDisposition;
     private UploadHistory.Type uploadType;
-
-    private BigQueryConfig(String projectId, String datasetId, String tableId, File credentialFile) {
+    private int maxBatchRows = DEFAULT_MAX_BATCH_ROWS;
+    private long maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+    private int senderThreads = DEFAULT_SENDER_THREADS;
+    private int readAheadBatches = DEFAULT_READ_AHEAD_BATCHES;
+    private boolean compressUpload;
+    private RowTransformer rowTransformer;
+    private int loadShards = 1;
+    private int uploadChunkSize = DEFAULT_UPLOAD_CHUNK_SIZE_MB*1024*1024;
+    private boolean resumableUpload;
+    private boolean streamingCheckpoint;
+    private int checkpointIntervalInSec = DEFAULT_CHECKPOINT_INTERVAL_SEC;
+    private UploadProgressListener uploadProgressListener = UploadProgressListener.LOGGING;
+    private UploadHistoryIndex uploadHistoryIndex;
+    private UploadHistoryWriter uploadHistoryWriter;
+    private JobTracker jobTracker;
+    private boolean reconcileHistory;
+    private File tableCacheFile;
+    private int tableCacheTtlInMin = DEFAULT_TABLE_CACHE_TTL_MIN;
+    private TableMetadataCache tableMetadataCache;
+    private boolean validateRows;
+    private DeadLetterFile deadLetterFile;
+    private int rowThreads = Runtime.getRuntime().availableProcessors();
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private int retryBudget = DEFAULT_RETRY_BUDGET;
+    private RetryPolicy retryPolicy;
+    private ReplayFile replayFile;
+    private String httpTransport = HTTP_TRANSPORT_APACHE;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int connectTimeoutInSec = DEFAULT_CONNECT_TIMEOUT_SEC;
+    private int readTimeoutInSec = DEFAULT_READ_TIMEOUT_SEC;
+    private boolean compressRequests = true;
+    private boolean avroUpload;
+    private String partitionField;
+    private String partitionBy = PARTITION_BY_DAY;
+    private String partitionTable = PARTITION_TABLE_SUFFIX;
+    private PartitionRouter partitionRouter;
+    private long memoryBudget = Long.MAX_VALUE;
+    private MemoryBudget memory;
+
+    /**
+     * @param bigQuery client to use, null to create one authorized with the credential file when the config is built
+     */
+    private BigQueryConfig(String projectId, String datasetId, String tableId, File credentialFile, Bigquery bigQuery) {
         this.projectId = projectId;
         this.datasetId = datasetId;
         this.tableId = tableId;
-        try {
-            this.bigQuery = createAuthorizedClient(credentialFile);
-            InputStream is = this.getClass().getResourceAsStream("/upload-history.json");
-            this.uploadHistorySchema = bigQuery
-                    .getJsonFactory()
-                    .fromInputStream(is, TableSchema.class);
-        } catch (IOException e) {
-            throw new RuntimeException("Failed to authenticate with Google BigQuery: "+e.getMessage(), e);
-        }
+        this.credentialFile = credentialFile;
+        this.bigQuery = bigQuery;
     }
 
     public String getProjectId() {
@@ -70,6 +163,13 @@ public class BigQueryConfig {
         return bigQuery;
     }
 
+    /**
+     * @return metrics of this run, shared by everything using this config
+     */
+    public UploadMetrics getMetrics() {
+        return metrics;
+    }
+
     public String getTemplateSuffix() {
         return templateSuffix;
     }
@@ -78,6 +178,14 @@ public class BigQueryConfig {
         return insertIdField;
     }
 
+    /**
+     * @return top level fields the insertId of rows is derived from a hash of, empty to hash whole rows, null if it
+     *         is not derived
+     */
+    public List<String> getInsertIdHashFields() {
+        return insertIdHashFields;
+    }
+
     public TableSchema getSchema() {
         return schema;
     }
@@ -106,12 +214,177 @@ public class BigQueryConfig {
         return uploadType;
     }
 
+    public int getMaxBatchRows() {
+        return maxBatchRows;
+    }
+
+    public long getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+
+    public int getSenderThreads() {
+        return senderThreads;
+    }
+
+    public int getReadAheadBatches() {
+        return readAheadBatches;
+    }
+
+    public boolean isCompressUpload() {
+        return compressUpload;
+    }
+
+    public int getLoadShards() {
+        return loadShards;
+    }
+
+    /**
+     * @return load job media upload chunk size in bytes, a multiple of 256KB
+     */
+    public int getUploadChunkSize() {
+        return uploadChunkSize;
+    }
+
+    public boolean isResumableUpload() {
+        return resumableUpload;
+    }
+
+    /**
+     * @return true if progress of streaming uploads is saved next to the record file, to resume a failed upload
+     */
+    public boolean isStreamingCheckpoint() {
+        return streamingCheckpoint;
+    }
+
+    public int getCheckpointIntervalInSec() {
+        return checkpointIntervalInSec;
+    }
+
+    public UploadProgressListener getUploadProgressListener() {
+        return uploadProgressListener;
+    }
+
+    /**
+     * @return local upload history index, null if upload history is only looked up in BigQuery
+     */
+    public UploadHistoryIndex getUploadHistoryIndex() {
+        return uploadHistoryIndex;
+    }
+
+    /**
+     * @return writer buffering upload history records of all uploads of the run
+     */
+    UploadHistoryWriter getUploadHistoryWriter() {
+        return uploadHistoryWriter;
+    }
+
+    /**
+     * @return tracker of the load jobs of all uploads of the run, to be shut down when the run ends
+     */
+    JobTracker getJobTracker() {
+        return jobTracker;
+    }
+
+    /**
+     * @return true if upload history is to be looked up in BigQuery even when the local index knows the file
+     */
+    public boolean isReconcileHistory() {
+        return reconcileHistory;
+    }
+
+    /**
+     * @return cache of table existence and schema, shared by everything using this config
+     */
+    public TableMetadataCache getTableMetadataCache() {
+        return tableMetadataCache;
+    }
+
+    /**
+     * @return true if rows are checked against the table schema before they are uploaded
+     */
+    public boolean isValidateRows() {
+        return validateRows;
+    }
+
+    /**
+     * @return file rejected rows are written to, null if they are only logged
+     */
+    public DeadLetterFile getDeadLetterFile() {
+        return deadLetterFile;
+    }
+
+    /**
+     * @return number of threads transforming and validating rows of a record file
+     */
+    public int getRowThreads() {
+        return rowThreads;
+    }
+
+    /**
+     * @return policy failed BigQuery calls are retried with, shared by everything using this config
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return file rows that could not be inserted after retries are spilled to, null if they fail the upload
+     */
+    public ReplayFile getReplayFile() {
+        return replayFile;
+    }
+
+    /**
+     * @return true if insertAll and load job upload request bodies are sent gzip compressed
+     */
+    public boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    /**
+     * @return true if records are converted to Avro as they are sent by load jobs
+     */
+    public boolean isAvroUpload() {
+        return avroUpload;
+    }
+
+    /**
+     * @return router sending rows to the partition of their timestamp, null if rows all go to the table
+     */
+    PartitionRouter getPartitionRouter() {
+        return partitionRouter;
+    }
+
+    /**
+     * @return budget of the heap taken by buffered rows, shared by everything using this config
+     */
+    MemoryBudget getMemoryBudget() {
+        return memory;
+    }
+
+    /**
+     * @return transformer applied to each record before it is uploaded, null if records are uploaded as they are
+     */
+    public RowTransformer getRowTransformer() {
+        return rowTransformer;
+    }
+
     public static final class Builder{
         private final BigQueryConfig config;
+        /** config of another table uploaded in the same run, see {@link #shareWith(BigQueryConfig)} */
+        private BigQueryConfig shared;
 
 
         public Builder(String projectId, String datasetId, String tableId, File creadentialFile) {
-            this.config = new BigQueryConfig(projectId,datasetId,tableId,creadentialFile);
+            this.config = new BigQueryConfig(projectId,datasetId,tableId,creadentialFile,null);
+        }
+
+        /**
+         * @param bigQuery client to use instead of one authorized with a credential file, such as the one of a
+         *                 {@link FakeBigQuery}
+         */
+        public Builder(String projectId, String datasetId, String tableId, Bigquery bigQuery) {
+            this.config = new BigQueryConfig(projectId,datasetId,tableId,null,bigQuery);
         }
 
         public Builder templateSuffix(String templateSuffix){
@@ -124,11 +397,32 @@ public class BigQueryConfig {
             return this;
         }
 
+        /**
+         * @param insertIdHash line to derive insertIds from a hash of whole rows, or comma separated top level fields to
+         *                     derive them from a hash of the values of, null to not derive them
+         */
+        public Builder insertIdHash(String insertIdHash){
+            if(insertIdHash == null){
+                config.insertIdHashFields = null;
+            }else if(insertIdHash.equals("line")){
+                config.insertIdHashFields = Collections.emptyList();
+            }else{
+                List<String> fields = new ArrayList<>();
+                for(String f : insertIdHash.split(",")){
+                    if(f.trim().isEmpty()){
+                        throw new IllegalArgumentException("-insertIdHash must be line or comma separated field names");
+                    }
+                    fields.add(f.trim());
+                }
+                config.insertIdHashFields = fields;
+            }
+            return this;
+        }
+
         public Builder schema(File schema){
             if(schema != null) {
                 try {
-                    config.schema = config.getBigQuery()
-                            .getJsonFactory()
+                    config.schema = JacksonFactory.getDefaultInstance()
                             .fromInputStream(new FileInputStream(schema), TableSchema.class);
                 } catch (IOException e) {
                     throw new RuntimeException("Failed to parse Google BigQuery schemaFile: " + e.getMessage(), e);
@@ -169,14 +463,309 @@ public class BigQueryConfig {
             return this;
         }
 
+        public Builder maxBatchRows(int maxBatchRows){
+            if(maxBatchRows < 1){
+                throw new IllegalArgumentException("-maxBatchRows must be greater than 0");
+            }
+            config.maxBatchRows = maxBatchRows;
+            return this;
+        }
+
+        public Builder maxBatchBytes(long maxBatchBytes){
+            if(maxBatchBytes < 1){
+                throw new IllegalArgumentException("-maxBatchBytes must be greater than 0");
+            }
+            config.maxBatchBytes = maxBatchBytes;
+            return this;
+        }
+
+        public Builder senderThreads(int senderThreads){
+            if(senderThreads < 1){
+                throw new IllegalArgumentException("-senderThreads must be greater than 0");
+            }
+            config.senderThreads = senderThreads;
+            return this;
+        }
+
+        public Builder readAheadBatches(int readAheadBatches){
+            if(readAheadBatches < 1){
+                throw new IllegalArgumentException("-readAheadBatches must be greater than 0");
+            }
+            config.readAheadBatches = readAheadBatches;
+            return this;
+        }
+
+        public Builder compressUpload(boolean compressUpload){
+            config.compressUpload = compressUpload;
+            return this;
+        }
+
+        public Builder transform(String transform){
+            if(transform == null){
+                config.rowTransformer = null;
+            }else if(transform.equals("census")){
+                config.rowTransformer = new CensusRowTransformer();
+            }else{
+                throw new IllegalArgumentException("-transform must be census");
+            }
+            return this;
+        }
+
+        public Builder rowTransformer(RowTransformer rowTransformer){
+            config.rowTransformer = rowTransformer;
+            return this;
+        }
+
+        public Builder loadShards(int loadShards){
+            if(loadShards < 1){
+                throw new IllegalArgumentException("-loadShards must be greater than 0");
+            }
+            config.loadShards = loadShards;
+            return this;
+        }
+
+        public Builder uploadChunkSizeInMB(int uploadChunkSizeInMB){
+            if(uploadChunkSizeInMB < 1 || uploadChunkSizeInMB > MAX_UPLOAD_CHUNK_SIZE_MB){
+                throw new IllegalArgumentException("-uploadChunkSize must be between 1 and "
+                        + MAX_UPLOAD_CHUNK_SIZE_MB);
+            }
+            config.uploadChunkSize = uploadChunkSizeInMB*1024*1024;
+            return this;
+        }
+
+        /**
+         * @param memoryBudgetInMB heap buffered rows may take, 0 for no limit
+         */
+        public Builder memoryBudgetInMB(int memoryBudgetInMB){
+            if(memoryBudgetInMB < 0){
+                throw new IllegalArgumentException("-memoryBudget must not be negative");
+            }
+            config.memoryBudget = memoryBudgetInMB == 0 ? Long.MAX_VALUE : memoryBudgetInMB*1024L*1024;
+            return this;
+        }
+
+        public Builder resumableUpload(boolean resumableUpload){
+            config.resumableUpload = resumableUpload;
+            return this;
+        }
+
+        public Builder streamingCheckpoint(boolean streamingCheckpoint){
+            config.streamingCheckpoint = streamingCheckpoint;
+            return this;
+        }
+
+        public Builder checkpointIntervalInSec(int checkpointIntervalInSec){
+            if(checkpointIntervalInSec < 0){
+                throw new IllegalArgumentException("-checkpointInterval must not be negative");
+            }
+            config.checkpointIntervalInSec = checkpointIntervalInSec;
+            return this;
+        }
+
+        public Builder uploadProgressListener(UploadProgressListener uploadProgressListener){
+            config.uploadProgressListener = uploadProgressListener;
+            return this;
+        }
+
+        public Builder uploadHistoryIndex(File uploadHistoryIndex){
+            config.uploadHistoryIndex = uploadHistoryIndex == null ? null : new UploadHistoryIndex(uploadHistoryIndex);
+            return this;
+        }
+
+        public Builder reconcileHistory(boolean reconcileHistory){
+            config.reconcileHistory = reconcileHistory;
+            return this;
+        }
+
+        /**
+         * @param tableCache file table metadata is persisted to between runs, null to only cache it in this process
+         */
+        public Builder tableCache(File tableCache){
+            config.tableCacheFile = tableCache;
+            return this;
+        }
+
+        public Builder tableCacheTtlInMin(int tableCacheTtlInMin){
+            if(tableCacheTtlInMin < 0){
+                throw new IllegalArgumentException("-tableCacheTtl must not be negative");
+            }
+            config.tableCacheTtlInMin = tableCacheTtlInMin;
+            return this;
+        }
+
+        public Builder validateRows(boolean validateRows){
+            config.validateRows = validateRows;
+            return this;
+        }
+
+        public Builder deadLetterFile(File deadLetterFile){
+            config.deadLetterFile = deadLetterFile == null ? null : new DeadLetterFile(deadLetterFile);
+            return this;
+        }
+
+        /**
+         * @param rowThreads number of threads transforming and validating rows, 0 for one per available processor
+         */
+        public Builder rowThreads(int rowThreads){
+            if(rowThreads < 0){
+                throw new IllegalArgumentException("-rowThreads must not be negative");
+            }
+            config.rowThreads = rowThreads == 0 ? Runtime.getRuntime().availableProcessors() : rowThreads;
+            return this;
+        }
+
+        public Builder maxRetries(int maxRetries){
+            if(maxRetries < 0){
+                throw new IllegalArgumentException("-maxRetries must not be negative");
+            }
+            config.maxRetries = maxRetries;
+            return this;
+        }
+
+        public Builder retryBudget(int retryBudget){
+            if(retryBudget < 0){
+                throw new IllegalArgumentException("-retryBudget must not be negative");
+            }
+            config.retryBudget = retryBudget;
+            return this;
+        }
+
+        public Builder replayFile(File replayFile){
+            config.replayFile = replayFile == null ? null : new ReplayFile(replayFile);
+            return this;
+        }
+
+        /**
+         * @param httpTransport {@value #HTTP_TRANSPORT_APACHE} or {@value #HTTP_TRANSPORT_JDK}
+         */
+        public Builder httpTransport(String httpTransport){
+            if(!HTTP_TRANSPORT_APACHE.equals(httpTransport) && !HTTP_TRANSPORT_JDK.equals(httpTransport)){
+                throw new IllegalArgumentException(String.format("-httpTransport must be one of %s or %s",
+                        HTTP_TRANSPORT_APACHE, HTTP_TRANSPORT_JDK));
+            }
+            config.httpTransport = httpTransport;
+            return this;
+        }
+
+        public Builder maxConnections(int maxConnections){
+            if(maxConnections < 1){
+                throw new IllegalArgumentException("-maxConnections must be greater than 0");
+            }
+            config.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder connectTimeoutInSec(int connectTimeoutInSec){
+            if(connectTimeoutInSec < 0){
+                throw new IllegalArgumentException("-connectTimeout must not be negative");
+            }
+            config.connectTimeoutInSec = connectTimeoutInSec;
+            return this;
+        }
+
+        public Builder readTimeoutInSec(int readTimeoutInSec){
+            if(readTimeoutInSec < 0){
+                throw new IllegalArgumentException("-readTimeout must not be negative");
+            }
+            config.readTimeoutInSec = readTimeoutInSec;
+            return this;
+        }
+
+        public Builder compressRequests(boolean compressRequests){
+            config.compressRequests = compressRequests;
+            return this;
+        }
+
+        public Builder avroUpload(boolean avroUpload){
+            config.avroUpload = avroUpload;
+            return this;
+        }
+
+        /**
+         * @param partitionField top level TIMESTAMP field to route rows to the partition of, null to upload all rows to
+         *                       the table
+         */
+        public Builder partitionField(String partitionField){
+            config.partitionField = partitionField;
+            return this;
+        }
+
+        public Builder partitionBy(String partitionBy){
+            if(!PARTITION_BY_DAY.equals(partitionBy) && !PARTITION_BY_MONTH.equals(partitionBy)){
+                throw new IllegalArgumentException(String.format("-partitionBy must be %s or %s", PARTITION_BY_DAY,
+                        PARTITION_BY_MONTH));
+            }
+            config.partitionBy = partitionBy;
+            return this;
+        }
+
+        public Builder partitionTable(String partitionTable){
+            if(!PARTITION_TABLE_SUFFIX.equals(partitionTable) && !PARTITION_TABLE_DECORATOR.equals(partitionTable)){
+                throw new IllegalArgumentException(String.format("-partitionTable must be %s or %s",
+                        PARTITION_TABLE_SUFFIX, PARTITION_TABLE_DECORATOR));
+            }
+            config.partitionTable = partitionTable;
+            return this;
+        }
+
+        /**
+         * Shares the client, metrics, memory and retry budgets, table metadata cache, upload history index and writer,
+         * job tracker, dead letter file and replay file of given config, so that uploads to several tables run in one
+         * process as one run
+         */
+        public Builder shareWith(BigQueryConfig shared){
+            this.shared = shared;
+            if(config.bigQuery == null){
+                config.bigQuery = shared.bigQuery;
+            }
+            return this;
+        }
+
         public BigQueryConfig build(){
+            try {
+                if(config.bigQuery == null) {
+                    long start = System.nanoTime();
+                    config.bigQuery = config.createAuthorizedClient(config.credentialFile);
+                    config.metrics.phase(UploadMetrics.PHASE_AUTH, start);
+                }
+                InputStream is = this.getClass().getResourceAsStream("/upload-history.json");
+                config.uploadHistorySchema = config.bigQuery
+                        .getJsonFactory()
+                        .fromInputStream(is, TableSchema.class);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to authenticate with Google BigQuery: "+e.getMessage(), e);
+            }
+            if(config.partitionField != null){
+                config.partitionRouter = new PartitionRouter(config.tableId, config.partitionField,
+                        config.partitionBy, config.partitionTable);
+            }
+            if(shared != null){
+                config.metrics = shared.metrics;
+                config.memory = shared.memory;
+                config.retryPolicy = shared.retryPolicy;
+                config.tableMetadataCache = shared.tableMetadataCache;
+                config.uploadHistoryIndex = shared.uploadHistoryIndex;
+                config.uploadHistoryWriter = shared.uploadHistoryWriter;
+                config.jobTracker = shared.jobTracker;
+                config.deadLetterFile = shared.deadLetterFile;
+                config.replayFile = shared.replayFile;
+                return config;
+            }
+            config.memory = new MemoryBudget(config.memoryBudget, config.metrics);
+            config.retryPolicy = new RetryPolicy(config.maxRetries, config.retryBudget, config.metrics);
+            config.tableMetadataCache = new TableMetadataCache(config, config.tableCacheFile,
+                    config.tableCacheTtlInMin*60*1000L);
+            config.uploadHistoryWriter = new UploadHistoryWriter(config);
+            config.jobTracker = new JobTracker(config);
             return config;
         }
     }
 
     private  Bigquery createAuthorizedClient(File credentialFile) throws IOException {
         // Create the credential
-        HttpTransport transport = new NetHttpTransport();
+        HttpTransport transport = HTTP_TRANSPORT_JDK.equals(httpTransport)
+                ? new NetHttpTransport()
+                : new ApacheHttpTransport(createHttpClient());
         com.google.api.client.json.JsonFactory jsonFactory = new JacksonFactory();
         GoogleCredential credential=null;
         if(credentialFile == null) {
@@ -201,7 +790,35 @@ public class BigQueryConfig {
             credential = credential.createScoped(bigqueryScopes);
         }
 
-        return new Bigquery.Builder(transport, jsonFactory, credential)
-                .setApplicationName("Jenkins usage uploadFile").build();
+        final GoogleCredential authorizer = credential;
+        return new Bigquery.Builder(transport, jsonFactory, new HttpRequestInitializer() {
+            @Override
+            public void initialize(HttpRequest request) throws IOException {
+                authorizer.initialize(request);
+                request.setConnectTimeout((int) TimeUnit.SECONDS.toMillis(connectTimeoutInSec));
+                request.setReadTimeout((int) TimeUnit.SECONDS.toMillis(readTimeoutInSec));
+            }
+        }).setApplicationName("Jenkins usage uploadFile").build();
+    }
+
+    /**
+     * Apache HttpClient keeping up to -maxConnections connections to BigQuery alive, so that concurrent uploads reuse
+     * TLS connections instead of opening new ones. Same as {@link ApacheHttpTransport#newDefaultHttpClient()} but for
+     * the pool size, and idle connections are checked before they are reused as BigQuery closes them after a while.
+     */
+    private DefaultHttpClient createHttpClient(){
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnections));
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+        DefaultHttpClient client = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+        // requests are retried by RetryPolicy
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        client.setRoutePlanner(new ProxySelectorRoutePlanner(registry, ProxySelector.getDefault()));
+        return client;
     }
 }
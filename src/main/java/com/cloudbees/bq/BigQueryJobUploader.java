@@ -2,88 +2,570 @@ package com.cloudbees.bq;
 
 import com.google.api.client.http.AbstractInputStreamContent;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.InputStreamContent;
 import com.google.api.services.bigquery.Bigquery;
 import com.google.api.services.bigquery.model.ErrorProto;
 import com.google.api.services.bigquery.model.Job;
 import com.google.api.services.bigquery.model.JobConfiguration;
 import com.google.api.services.bigquery.model.JobConfigurationLoad;
-import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableSchema;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static com.cloudbees.bq.BigQueryConfig.WRITE_APPEND;
 
 /**
  * @author Vivek Pandey
  */
 public class BigQueryJobUploader extends Uploader {
     private static final Logger LOGGER = LoggerFactory.getLogger(BigQueryJobUploader.class);
+    private static final String CONTENT_TYPE = "application/octet-stream";
+    static final String SESSION_FILE_SUFFIX = ".upload-session";
+
+    private final JobTracker jobTracker;
+    private final Map<String, AvroRowConverter> avroConverters = new HashMap<>();
 
     public BigQueryJobUploader(BigQueryConfig config) {
         super(config);
+        this.jobTracker = config.getJobTracker();
     }
 
     @Override
     void doUpload(String tableId, File content) {
-        FileContent file = new FileContent("application/octet-stream", content);
-        doUpload(tableId, file);
+        if(config.getPartitionRouter() != null){
+            doUploadPartitions(tableId, content);
+            return;
+        }
+        List<FileShard> shards = null;
+        if(config.getLoadShards() > 1){
+            if(RecordFiles.isGzip(content)){
+                LOGGER.info("Gzip compressed file {} can not be split, uploading it with a single load job", content.getName());
+            }else{
+                try {
+                    shards = FileShard.split(content, config.getLoadShards());
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to read BigQuery doUpload file: "+content.getAbsolutePath(), e);
+                }
+            }
+        }
+        if(shards == null || shards.size() < 2){
+            try {
+                load(tableId, content, false);
+            } catch (IOException | InterruptedException e) {
+                LOGGER.error(e.getMessage(),e);
+                throw new RuntimeException(e);
+            }
+        }else{
+            doUpload(tableId, content, shards);
+        }
+    }
+
+    /**
+     * Loads given record file with a single load job, uploading it again with a new load job while it fails with a
+     * retryable error
+     *
+     * @param processed true if rows of the file were already transformed and validated
+     */
+    private Job load(final String tableId, final File content, boolean processed)
+            throws IOException, InterruptedException {
+        final RowProcessor processor = createRowProcessor(tableId, content, processed);
+        return config.getRetryPolicy().execute("Load of " + content.getName(), new RetryPolicy.Operation<Job>() {
+            @Override
+            public Job run() throws IOException, InterruptedException {
+                return waitForJob(insertJob(tableId, createContent(tableId, content, null, processor),
+                        config.getWriteDisposition(), content, null));
+            }
+        });
     }
 
-    void doUpload(String tableId, AbstractInputStreamContent content) {
+    /**
+     * Loads the rows of given record file in to the partitions they are routed to, with a load job per partition. Rows
+     * are transformed, validated and split in to a file per partition first, partitions are then loaded up to
+     * -loadShards at a time. Each partition is loaded with the configured write disposition, so WRITE_TRUNCATE only
+     * replaces the partitions there are rows for.
+     */
+    private void doUploadPartitions(String tableId, File content) {
+        PartitionRouter router = config.getPartitionRouter();
+        RowProcessor processor = createRowProcessor(tableId, content);
+        Map<String, File> files;
+        ExecutorService executor = null;
+        try (PartitionFiles partitions = new PartitionFiles(content.getName())) {
+            try (ParallelRowReader rows = new ParallelRowReader(new LineReader(RecordFiles.open(content)), processor,
+                    config.getRowThreads(), config.getMetrics(), config.getMemoryBudget())) {
+                ParallelRowReader.Row row;
+                while((row = rows.next()) != null){
+                    String partition;
+                    try {
+                        partition = router.route(row.row);
+                    } catch (IOException e) {
+                        reject(content.getName(), row.row, row.lineNumber, "no partition: " + e.getMessage());
+                        continue;
+                    }
+                    partitions.write(partition, row.row);
+                }
+                files = partitions.finish();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to split BigQuery doUpload file: "+content.getAbsolutePath(), e);
+            }
+            LOGGER.info("Loading {} in to {} partitions of {}", content.getName(), files.size(), tableId);
+            if(files.isEmpty()){
+                return;
+            }
+
+            executor = Executors.newFixedThreadPool(Math.min(config.getLoadShards(), files.size()),
+                    new ThreadFactoryBuilder().setNameFormat("load-"+tableId+"-%d").setDaemon(true).build());
+            Map<String, Future<Job>> jobs = new LinkedHashMap<>();
+            for(final Map.Entry<String, File> e : files.entrySet()){
+                final String partitionTableId = router.getTableId(e.getKey());
+                jobs.put(partitionTableId, executor.submit(new Callable<Job>() {
+                    @Override
+                    public Job call() throws IOException, InterruptedException {
+                        return load(partitionTableId, e.getValue(), true);
+                    }
+                }));
+            }
+            List<String> failed = new ArrayList<>();
+            for(Map.Entry<String, Future<Job>> e : jobs.entrySet()){
+                try {
+                    e.getValue().get();
+                } catch (ExecutionException ex) {
+                    LOGGER.error("Failed to load " + e.getKey() + ": " + ex.getCause().getMessage(), ex.getCause());
+                    failed.add(e.getKey());
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new RuntimeException(String.format("%s of %s partitions failed to load: %s", failed.size(),
+                        jobs.size(), failed));
+            }
+            LOGGER.info("All {} partitions of {} loaded successfully.", jobs.size(), content.getName());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to split BigQuery doUpload file: "+content.getAbsolutePath(), e);
+        } finally {
+            if(executor != null){
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Loads each shard with its own load job, all jobs run in parallel. Shards are uploaded by a pool of threads, the
+     * load jobs are then waited for together by the job tracker.
+     *
+     * With WRITE_TRUNCATE or WRITE_EMPTY only the first shard is loaded with that write disposition, the others
+     * append to it. They are only submitted once the first shard is loaded, otherwise the first job could truncate
+     * rows that other shards appended before it.
+     */
+    private void doUpload(final String tableId, File content, List<FileShard> shards) {
+        LOGGER.info("Uploading {} in {} shards", content.getName(), shards.size());
+        ExecutorService executor = Executors.newFixedThreadPool(shards.size(),
+                new ThreadFactoryBuilder().setNameFormat("load-"+tableId+"-%d").setDaemon(true).build());
         try {
-            Table t = config.getBigQuery().tables().get(config.getProjectId(),config.getDatasetId(),tableId).execute();
+            List<CompletableFuture<Job>> jobs = new ArrayList<>();
+            int first = 0;
+            if (!config.getWriteDisposition().equals(WRITE_APPEND)) {
+                jobs.add(loadShard(executor, tableId, content, shards.get(0),
+                        createRowProcessor(tableId, content, false), config.getWriteDisposition(), 1));
+                jobs.get(0).get();
+                first = 1;
+            }
+            for (int i = first; i < shards.size(); i++) {
+                jobs.add(loadShard(executor, tableId, content, shards.get(i),
+                        createRowProcessor(tableId, content, false), WRITE_APPEND, 1));
+            }
 
-            Job job = new Job();
+            List<String> failed = new ArrayList<>();
+            for (int i = first; i < jobs.size(); i++) {
+                try {
+                    jobs.get(i).get();
+                } catch (ExecutionException e) {
+                    LOGGER.error("Failed to load " + shards.get(i) + ": " + e.getCause().getMessage(), e.getCause());
+                    failed.add(shards.get(i).toString());
+                }
+            }
+            if (!failed.isEmpty()) {
+                throw new RuntimeException(String.format("%s of %s shards failed to load: %s", failed.size(),
+                        shards.size(), failed));
+            }
+            LOGGER.info("All {} shards of {} loaded successfully.", shards.size(), content.getName());
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Failed to load " + shards.get(0) + ": " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-            JobConfiguration jobConfig = new JobConfiguration();
-            JobConfigurationLoad configLoad = new JobConfigurationLoad();
-            configLoad.setSchema(t.getSchema());
-            configLoad.setSourceFormat("NEWLINE_DELIMITED_JSON");
-            configLoad.setDestinationTable(t.getTableReference());
+    /**
+     * Uploads given shard on the executor and tracks its load job. If the upload or the load job fails with a
+     * retryable error, the shard is uploaded again with a new load job after backing off.
+     *
+     * @param processor processor of the rows of the shard, the same for every attempt
+     * @param attempt number of this attempt to load the shard, from 1
+     * @return future completed once the load job succeeded, or failed for good
+     */
+    private CompletableFuture<Job> loadShard(final ExecutorService executor, final String tableId, final File content,
+                                             final FileShard shard, final RowProcessor processor,
+                                             final String writeDisposition, final int attempt){
+        final CompletableFuture<Job> result = new CompletableFuture<>();
+        CompletableFuture.supplyAsync(new Supplier<Job>() {
+            @Override
+            public Job get() {
+                try {
+                    if(attempt > 1){
+                        config.getRetryPolicy().backoff(attempt - 1);
+                    }
+                    LOGGER.info("Uploading {} with {}", shard, writeDisposition);
+                    return insertJob(tableId, createContent(tableId, content, shard, processor), writeDisposition,
+                            content, shard);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }
+        }, executor).thenCompose(new Function<Job, CompletionStage<Job>>() {
+            @Override
+            public CompletionStage<Job> apply(Job job) {
+                return jobTracker.track(job);
+            }
+        }).whenComplete(new BiConsumer<Job, Throwable>() {
+            @Override
+            public void accept(Job job, Throwable error) {
+                Throwable e = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if(e == null){
+                    try {
+                        result.complete(checkJob(job));
+                        return;
+                    } catch (JobFailedException ex) {
+                        e = ex;
+                    }
+                }
+                if(!executor.isShutdown() && config.getRetryPolicy().canRetry(e, attempt)){
+                    LOGGER.warn("Load of {} failed: {}, retrying", shard, e.getMessage());
+                    loadShard(executor, tableId, content, shard, processor, writeDisposition, attempt + 1)
+                            .whenComplete(new BiConsumer<Job, Throwable>() {
+                                @Override
+                                public void accept(Job job, Throwable error) {
+                                    if(error == null){
+                                        result.complete(job);
+                                    }else{
+                                        result.completeExceptionally(error);
+                                    }
+                                }
+                            });
+                }else{
+                    result.completeExceptionally(e);
+                }
+            }
+        });
+        return result;
+    }
 
-            configLoad.setEncoding("UTF-8");
-            configLoad.setCreateDisposition("CREATE_IF_NEEDED");
-            configLoad.setWriteDisposition(config.getWriteDisposition());//WRITE_APPEND is default
-            configLoad.setIgnoreUnknownValues(true);
-            jobConfig.setLoad(configLoad);
+    /**
+     * Creates the processor of the rows of given record file. Every attempt to load the file reads it with the same
+     * processor, so that a row is only rejected once.
+     *
+     * @param processed true if rows of the file were already transformed and validated
+     * @return null if rows are uploaded as they are
+     */
+    private RowProcessor createRowProcessor(String tableId, File content, boolean processed){
+        if(!processed){
+            return createRowProcessor(tableId, content);
+        }
+        // rows that can not be converted to Avro are still rejected
+        return config.isAvroUpload()
+                ? new RowProcessor(content.getName(), null, null, config.getDeadLetterFile(), config.getMetrics())
+                : null;
+    }
 
-            job.setConfiguration(jobConfig);
+    /**
+     * Creates upload content of given record file, or of a shard of it if shard is not null.
+     *
+     * @param processor processor of the rows, see {@link #createRowProcessor(String, File, boolean)}
+     */
+    private AbstractInputStreamContent createContent(String tableId, File content, FileShard shard,
+                                                     RowProcessor processor) {
+        if(config.isAvroUpload()){
+            return createAvroContent(tableId, content, shard, processor);
+        }
+        boolean transform = processor != null && !processor.isPassThrough();
+        boolean compress = config.isCompressUpload() && (transform || !RecordFiles.isGzip(content));
+        if(transform || compress){
+            // transformed, validated and/or compressed as it is sent, length is not known upfront
+            InputStream is;
+            try {
+                if(shard != null){
+                    is = shard.open();
+                }else if(transform){
+                    is = RecordFiles.open(content);
+                }else{
+                    is = new FileInputStream(content);
+                }
+            } catch (IOException e) {
+                throw new UploadFailedException("Failed to read BigQuery doUpload file: "+content.getAbsolutePath(), e);
+            }
+            if(transform){
+                is = new RowTransformInputStream(is, processor, config.getRowThreads(), config.getMetrics(),
+                        config.getMemoryBudget());
+            }
+            if(compress){
+                is = new GzipCompressingInputStream(is);
+            }
+            return new InputStreamContent(CONTENT_TYPE, is);
+        }else if(shard != null){
+            return new FileShardContent(CONTENT_TYPE, shard);
+        }else{
+            // gzip compressed record file is sent as is, BigQuery decompresses it
+            return new FileContent(CONTENT_TYPE, content);
+        }
+    }
+
+    /**
+     * Creates upload content of given record file, or of a shard of it if shard is not null, converted to Avro as it
+     * is sent. The sync marker of the Avro data file is derived from the name of the file or shard, so that the same
+     * content is sent again when a resumable upload is resumed.
+     *
+     */
+    private AbstractInputStreamContent createAvroContent(String tableId, File content, FileShard shard,
+                                                         RowProcessor processor) {
+        String name = shard == null ? content.getName() : shard.toString();
+        try {
+            InputStream is = shard == null ? RecordFiles.open(content) : shard.open();
+            return new InputStreamContent(CONTENT_TYPE, new AvroInputStream(is, processor, getAvroConverter(tableId),
+                    Hashing.md5().hashString(name, StandardCharsets.UTF_8).asBytes(), config.getRowThreads(),
+                    config.getMetrics(), config.getMemoryBudget()));
+        } catch (IOException e) {
+            throw new UploadFailedException("Failed to read BigQuery doUpload file: "+content.getAbsolutePath(), e);
+        }
+    }
+
+    private synchronized AvroRowConverter getAvroConverter(String tableId){
+        AvroRowConverter converter = avroConverters.get(tableId);
+        if(converter == null){
+            TableSchema schema = getSchema(tableId);
+            if(schema == null){
+                throw new UploadFailedException("Can not convert rows to Avro, table "+tableId+" does not exist and there is no -schemaFile");
+            }
+            converter = new AvroRowConverter(schema);
+            avroConverters.put(tableId, converter);
+        }
+        return converter;
+    }
+
+    /**
+     * Submits a load job uploading given content.
+     *
+     * @param source record file the content is read from, null if it is not from a record file
+     * @param shard shard of the record file the content is read from, null if it is the whole file
+     */
+    private Job insertJob(String tableId, AbstractInputStreamContent content, String writeDisposition, File source,
+                          FileShard shard) throws IOException {
+        Job job = createLoadJob(tableId, writeDisposition, source != null && config.isAvroUpload());
+        config.getMetrics().increment(UploadMetrics.LOAD_JOBS, 1);
+        long start = System.nanoTime();
+        try {
+            return insertJob(job, content, source, shard);
+        } catch (IOException e) {
+            // the upload may have gone through with only the response lost
+            Job inserted = findJob(job.getJobReference().getJobId());
+            if(inserted == null){
+                throw e;
+            }
+            LOGGER.info("Load job {} was inserted even though: {}", inserted.getJobReference().getJobId(),
+                    e.getMessage());
+            return inserted;
+        } finally {
+            config.getMetrics().observe(UploadMetrics.LOAD_JOB_INSERT, start);
+        }
+    }
+
+    private Job insertJob(Job job, AbstractInputStreamContent content, File source, FileShard shard)
+            throws IOException {
+        if(source == null){
+            return config.getBigQuery().jobs().insert(config.getProjectId(), job, content).execute();
+        }
+
+        UploadProgress progress = new UploadProgress(shard == null ? source.getName() : shard.toString(),
+                content.getLength(), config.getUploadProgressListener(), config.getMetrics());
+        // gzip compressing content that already is only costs CPU
+        boolean gzip = config.isCompressRequests() && !config.isCompressUpload() && !config.isAvroUpload()
+                && !(content instanceof FileContent && RecordFiles.isGzip(source));
+        // the chunk being sent is buffered in full
+        MemoryBudget budget = config.getMemoryBudget();
+        try {
+            if(!budget.acquire(MemoryBudget.UPLOAD_BUFFERS, config.getUploadChunkSize())){
+                budget.force(MemoryBudget.UPLOAD_BUFFERS, config.getUploadChunkSize());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for memory to upload " + source.getName());
+        }
+        try {
+            if(config.isResumableUpload()){
+                return new ResumableUpload(config, job, content, source, getSessionFile(source, shard),
+                        shard == null ? "" : shard.toString(), progress, gzip).execute();
+            }
 
             Bigquery.Jobs.Insert insert;
             insert = config.getBigQuery().jobs().insert(config.getProjectId(), job, content);
+            insert.getMediaHttpUploader()
+                    .setDisableGZipContent(!gzip)
+                    .setChunkSize(config.getUploadChunkSize())
+                    .setProgressListener(progress);
+            return insert.execute();
+        } finally {
+            budget.release(MemoryBudget.UPLOAD_BUFFERS, config.getUploadChunkSize());
+        }
+    }
 
-            Job j = insert.execute();
-            if (!j.getStatus().getState().equals("DONE")) {
-                pollJob(j.getJobReference().getJobId(), config.getPollingIntervalInSec());
-            }else{
-                LOGGER.error(j.getStatus().toString());
-            }
-        } catch (IOException | InterruptedException e) {
-            LOGGER.error(e.getMessage(),e);
-            throw new RuntimeException(e);
+    /**
+     * @param avro true if the content is an Avro data file of {@link AvroRowConverter}, newline delimited JSON otherwise
+     */
+    private Job createLoadJob(String tableId, String writeDisposition, boolean avro) throws IOException {
+        TableSchema schema = getSchema(tableId);
+        if(schema == null){
+            throw new UploadFailedException("Table "+tableId+" not found");
         }
+
+        Job job = new Job();
+        // client side job id, so that a job inserted by a failed request can be found
+        job.setJobReference(new JobReference()
+                .setProjectId(config.getProjectId())
+                .setJobId("bq_upload_" + UUID.randomUUID()));
+
+        JobConfiguration jobConfig = new JobConfiguration();
+        JobConfigurationLoad configLoad = new JobConfigurationLoad();
+        configLoad.setSchema(schema);
+        if(avro){
+            configLoad.setSourceFormat("AVRO");
+            // TIMESTAMP, DATE and TIME columns are loaded from the Avro logical types, not from their numbers
+            configLoad.set("useAvroLogicalTypes", true);
+        }else{
+            configLoad.setSourceFormat("NEWLINE_DELIMITED_JSON");
+            configLoad.setEncoding("UTF-8");
+        }
+        configLoad.setDestinationTable(new TableReference()
+                .setProjectId(config.getProjectId())
+                .setDatasetId(config.getDatasetId())
+                .setTableId(tableId));
+
+        configLoad.setCreateDisposition("CREATE_IF_NEEDED");
+        configLoad.setWriteDisposition(writeDisposition);//WRITE_APPEND is default
+        configLoad.setIgnoreUnknownValues(true);
+        jobConfig.setLoad(configLoad);
+
+        job.setConfiguration(jobConfig);
+        return job;
+    }
+
+    /**
+     * @return given job, null if it does not exist or could not be looked up
+     */
+    private Job findJob(String jobId){
+        try {
+            return config.getBigQuery().jobs().get(config.getProjectId(), jobId).execute();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private File getSessionFile(File source, FileShard shard){
+        return new File(source.getPath() + SESSION_FILE_SUFFIX + (shard == null ? "" : "-" + shard.getIndex()));
+    }
+
+    /**
+     * An upload that failed can be resumed if there are upload sessions saved for it
+     */
+    @Override
+    protected boolean canResume(final File content) {
+        if(!config.isResumableUpload() || content.getAbsoluteFile().getParentFile() == null){
+            return false;
+        }
+        File[] sessions = content.getAbsoluteFile().getParentFile().listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.getName().startsWith(content.getName() + SESSION_FILE_SUFFIX) && !f.getName().endsWith(".tmp");
+            }
+        });
+        return sessions != null && sessions.length > 0;
     }
 
-    private Job pollJob(String jobId, int interval) throws IOException, InterruptedException {
-        Bigquery.Jobs.Get request = config.getBigQuery().jobs().get(config.getProjectId(), jobId);
-        Job job = request.execute();
-        while (!job.getStatus().getState().equals("DONE")) {
-            LOGGER.debug("Job is "
-                    + job.getStatus().getState()
-                    + " waiting " + interval + " seconds...");
-            Thread.sleep(interval*1000);
-            job = request.execute();
+    /**
+     * Waits for given job to be done.
+     *
+     * @throws JobFailedException if the job finished with an error
+     */
+    private Job waitForJob(Job job) throws IOException, InterruptedException {
+        try {
+            job = jobTracker.track(job).get();
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof RuntimeException){
+                throw (RuntimeException) e.getCause();
+            }
+            if(e.getCause() instanceof IOException){
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
         }
+        return checkJob(job);
+    }
+
+    /**
+     * @throws JobFailedException if given job, that is done, finished with an error
+     */
+    private Job checkJob(Job job){
         if(job.getStatus().getErrorResult() != null){
+            config.getMetrics().increment(UploadMetrics.LOAD_JOBS_FAILED, 1);
             LOGGER.error(job.getStatus().getErrorResult().getMessage()+". Status: "+job.getStatus().getState());
-            for(ErrorProto e : job.getStatus().getErrors()){
-                LOGGER.error(e.getMessage());
+            if(job.getStatus().getErrors() != null) {
+                for (ErrorProto e : job.getStatus().getErrors()) {
+                    LOGGER.error(e.getMessage());
+                }
             }
-        }else{
-            LOGGER.info("Upload finished successfully.");
+            throw new JobFailedException("Job "+job.getJobReference().getJobId()+" failed: "
+                    +job.getStatus().getErrorResult().getMessage(), job.getStatus().getErrorResult().getReason());
         }
-
+        if(job.getStatistics() != null && job.getStatistics().getLoad() != null
+                && job.getStatistics().getLoad().getOutputRows() != null){
+            config.getMetrics().increment(UploadMetrics.ROWS_SENT, job.getStatistics().getLoad().getOutputRows());
+        }
+        LOGGER.info("Upload finished successfully.");
         return job;
     }
 }
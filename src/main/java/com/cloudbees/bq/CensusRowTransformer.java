@@ -0,0 +1,138 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+
+/**
+ * Transforms a census usage record in to BigQuery friendly record, same as the filter in census_data_preparer.rb did:
+ *
+ * <ul>
+ *     <li>{'jobs': {'hudson-matrix-MatrixProject':2}} is converted to
+ *     {'jobs': [{'type':'hudson_matrix_MatrixProject', 'count':2}]}</li>
+ *     <li>dashes in keys of each 'nodes' element are replaced by underscores</li>
+ *     <li>'timestamp' in dd/MMM/yyyy:HH:mm:ss Z format is converted to UTC timestamp that BigQuery understands</li>
+ * </ul>
+ *
+ * The record is streamed token by token from the parser to the generator, no object tree is built.
+ *
+ * @author Vivek Pandey
+ */
+public class CensusRowTransformer implements RowTransformer {
+    private static final DateTimeFormatter CENSUS_TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+    private static final DateTimeFormatter BIGQUERY_TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss 'UTC'", Locale.ENGLISH);
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+
+    @Override
+    public String transform(String row) throws IOException {
+        StringWriter writer = new StringWriter(row.length() + 64);
+        try (JsonParser parser = jsonFactory.createParser(row);
+             JsonGenerator generator = jsonFactory.createGenerator(writer)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException("Census record must be a JSON object", parser.getCurrentLocation());
+            }
+            generator.writeStartObject();
+            boolean jobs = false;
+            boolean nodes = false;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                parser.nextToken();
+                switch (name) {
+                    case "jobs":
+                        writeJobs(parser, generator);
+                        jobs = true;
+                        break;
+                    case "nodes":
+                        writeNodes(parser, generator);
+                        nodes = true;
+                        break;
+                    case "timestamp":
+                        generator.writeFieldName(name);
+                        writeTimestamp(parser, generator);
+                        break;
+                    default:
+                        generator.writeFieldName(name);
+                        generator.copyCurrentStructure(parser);
+                }
+            }
+            if (!jobs) {
+                generator.writeArrayFieldStart("jobs");
+                generator.writeEndArray();
+            }
+            if (!nodes) {
+                generator.writeArrayFieldStart("nodes");
+                generator.writeEndArray();
+            }
+            generator.writeEndObject();
+        }
+        return writer.toString();
+    }
+
+    private void writeJobs(JsonParser parser, JsonGenerator generator) throws IOException {
+        generator.writeArrayFieldStart("jobs");
+        if (parser.getCurrentToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String type = parser.getCurrentName();
+                parser.nextToken();
+                generator.writeStartObject();
+                generator.writeStringField("type", type.replace('-', '_'));
+                generator.writeFieldName("count");
+                generator.copyCurrentStructure(parser);
+                generator.writeEndObject();
+            }
+        } else {
+            parser.skipChildren();
+        }
+        generator.writeEndArray();
+    }
+
+    private void writeNodes(JsonParser parser, JsonGenerator generator) throws IOException {
+        generator.writeArrayFieldStart("nodes");
+        if (parser.getCurrentToken() == JsonToken.START_ARRAY) {
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+                    generator.copyCurrentStructure(parser);
+                    continue;
+                }
+                generator.writeStartObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    generator.writeFieldName(parser.getCurrentName().replace('-', '_'));
+                    parser.nextToken();
+                    generator.copyCurrentStructure(parser);
+                }
+                generator.writeEndObject();
+            }
+        } else {
+            parser.skipChildren();
+        }
+        generator.writeEndArray();
+    }
+
+    private void writeTimestamp(JsonParser parser, JsonGenerator generator) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+            generator.copyCurrentStructure(parser);
+            return;
+        }
+        String timestamp = parser.getText();
+        try {
+            generator.writeString(OffsetDateTime.parse(timestamp, CENSUS_TIMESTAMP_FORMAT)
+                    .withOffsetSameInstant(ZoneOffset.UTC)
+                    .format(BIGQUERY_TIMESTAMP_FORMAT));
+        } catch (DateTimeParseException e) {
+            throw new JsonParseException("Invalid census timestamp: " + timestamp, parser.getCurrentLocation(), e);
+        }
+    }
+}
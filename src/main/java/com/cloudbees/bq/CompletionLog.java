@@ -0,0 +1,85 @@
+package com.cloudbees.bq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.TreeMap;
+
+/**
+ * Collects results of insertAll batches that may complete out of order and reports them in the order they were read
+ * from the record file.
+ *
+ * @author Vivek Pandey
+ */
+class CompletionLog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompletionLog.class);
+
+    private final TreeMap<Long, Result> pending = new TreeMap<>();
+    private final StreamingCheckpoint checkpoint;
+    private long nextSequence;
+
+    private long insertedRows;
+    private long failedRows;
+    private long failedBatches;
+
+    /**
+     * @param checkpoint checkpoint advanced as batches complete, until one fails, null if there is none
+     */
+    CompletionLog(StreamingCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    synchronized void completed(InsertAllBatch batch, int failedRowCount){
+        pending.put(batch.getSequence(), new Result(batch, failedRowCount, null));
+        drain();
+    }
+
+    synchronized void failed(InsertAllBatch batch, Exception error){
+        pending.put(batch.getSequence(), new Result(batch, batch.size(), error));
+        drain();
+    }
+
+    private void drain(){
+        while(!pending.isEmpty() && pending.firstKey() == nextSequence){
+            Result r = pending.remove(nextSequence++);
+            insertedRows += r.batch.size() - r.failedRows;
+            failedRows += r.failedRows;
+            if(r.error != null){
+                failedBatches++;
+                LOGGER.error(String.format("Batch %s, lines %s-%s: failed: %s", r.batch.getSequence(),
+                        r.batch.getFirstLineNumber(), r.batch.getLastLineNumber(), r.error.getMessage()));
+            }else{
+                LOGGER.debug("Batch {}, lines {}-{}: inserted {} rows, {} failed", r.batch.getSequence(),
+                        r.batch.getFirstLineNumber(), r.batch.getLastLineNumber(), r.batch.size() - r.failedRows,
+                        r.failedRows);
+            }
+            if(checkpoint != null && failedBatches == 0){
+                checkpoint.acknowledged(r.batch.getResumeOffset(), r.batch.getResumeLineNumber());
+            }
+        }
+    }
+
+    synchronized long getInsertedRows() {
+        return insertedRows;
+    }
+
+    synchronized long getFailedRows() {
+        return failedRows;
+    }
+
+    synchronized long getFailedBatches() {
+        return failedBatches;
+    }
+
+    private static final class Result{
+        private final InsertAllBatch batch;
+        private final int failedRows;
+        private final Exception error;
+
+        private Result(InsertAllBatch batch, int failedRows, Exception error) {
+            this.batch = batch;
+            this.failedRows = failedRows;
+            this.error = error;
+        }
+    }
+}
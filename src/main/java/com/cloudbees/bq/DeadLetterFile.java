@@ -0,0 +1,61 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Newline delimited JSON file rows that were not uploaded are appended to, each with the record file and line it came
+ * from and the reasons it was rejected, so they can be fixed and uploaded again.
+ *
+ * @author Vivek Pandey
+ */
+public class DeadLetterFile {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final File file;
+    private Writer writer;
+
+    public DeadLetterFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @param source name of the record file the row was read from
+     * @param lineNumber line of the row in the record file
+     * @param row the rejected row, as it was to be uploaded
+     */
+    public synchronized void write(String source, long lineNumber, String row, List<String> reasons){
+        try {
+            if(writer == null){
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                        StandardCharsets.UTF_8));
+            }
+            JsonGenerator g = JSON.createGenerator(writer);
+            g.writeStartObject();
+            g.writeStringField("source", source);
+            g.writeNumberField("line", lineNumber);
+            g.writeArrayFieldStart("reasons");
+            for(String reason : reasons){
+                g.writeString(reason);
+            }
+            g.writeEndArray();
+            g.writeStringField("row", row);
+            g.writeEndObject();
+            g.flush();
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write dead letter file " + file.getAbsolutePath() + ": "
+                    + e.getMessage(), e);
+        }
+    }
+}
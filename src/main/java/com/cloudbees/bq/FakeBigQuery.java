@@ -0,0 +1,686 @@
+package com.cloudbees.bq;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.Job;
+import com.google.api.services.bigquery.model.JobConfigurationLoad;
+import com.google.api.services.bigquery.model.JobReference;
+import com.google.api.services.bigquery.model.JobStatistics;
+import com.google.api.services.bigquery.model.JobStatistics3;
+import com.google.api.services.bigquery.model.JobStatus;
+import com.google.api.services.bigquery.model.QueryRequest;
+import com.google.api.services.bigquery.model.QueryResponse;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableCell;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.google.api.services.bigquery.model.TableList;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableRow;
+import com.google.common.io.ByteStreams;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * In-process stand-in for the BigQuery API, so that uploads can be run and measured without a GCP project or network.
+ *
+ * Serves the calls the uploader makes over a {@link MockHttpTransport}: tables.get, tables.insert, tables.list,
+ * tabledata.insertAll, jobs.insert with resumable media upload, jobs.get (also in batch requests) and jobs.query of
+ * upload_history. Tables and their row counts are kept in memory, rows inserted in to upload_history are kept so that
+ * upload history lookups work.
+ *
+ * Faults are injected at random, with the rates given in the settings:
+ *
+ * <ul>
+ *     <li>latency: milliseconds each request takes</li>
+ *     <li>quotaErrors: share of requests failing with 403 rateLimitExceeded</li>
+ *     <li>rowErrors: share of insertAll rows failing with backendError</li>
+ *     <li>jobErrors: share of load jobs failing with backendError</li>
+ *     <li>jobTime: milliseconds a load job runs before it is done</li>
+ *     <li>seed: seed of the fault randomness, so that a run can be repeated</li>
+ * </ul>
+ *
+ * @author Vivek Pandey
+ */
+public class FakeBigQuery {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FakeBigQuery.class);
+    private static final String SERVICE_PATH = Bigquery.DEFAULT_SERVICE_PATH;
+    private static final String BOUNDARY = "batch_fake_bigquery";
+    private static final Pattern QUOTED = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'");
+
+    private final JsonFactory jsonFactory = new JacksonFactory();
+    private final Map<String, FakeTable> tables = new HashMap<>();
+    private final Map<String, FakeJob> jobs = new HashMap<>();
+    private final Map<String, FakeUpload> uploads = new HashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final Random random;
+
+    private final long latencyMs;
+    private final double quotaErrors;
+    private final double rowErrors;
+    private final double jobErrors;
+    private final long jobTimeMs;
+
+    /**
+     * @param settings comma separated name=value settings, such as latency=20,quotaErrors=0.01, empty or none for
+     *                 no latency or faults
+     */
+    public FakeBigQuery(String settings) {
+        Map<String, String> s = new HashMap<>();
+        if(settings != null && !settings.trim().isEmpty() && !settings.trim().equals("none")){
+            for(String setting : settings.split(",")){
+                int i = setting.indexOf('=');
+                if(i < 0){
+                    throw new IllegalArgumentException("-fakeBigQuery settings must be name=value pairs: " + setting);
+                }
+                s.put(setting.substring(0, i).trim(), setting.substring(i + 1).trim());
+            }
+        }
+        this.latencyMs = (long) number(s, "latency", 0, Long.MAX_VALUE);
+        this.quotaErrors = number(s, "quotaErrors", 0, 1);
+        this.rowErrors = number(s, "rowErrors", 0, 1);
+        this.jobErrors = number(s, "jobErrors", 0, 1);
+        this.jobTimeMs = (long) number(s, "jobTime", 0, Long.MAX_VALUE);
+        this.random = s.containsKey("seed") ? new Random((long) number(s, "seed", Long.MIN_VALUE, Long.MAX_VALUE))
+                : new Random();
+        if(!s.isEmpty()){
+            throw new IllegalArgumentException("Unknown -fakeBigQuery settings: " + s.keySet());
+        }
+    }
+
+    private static double number(Map<String, String> settings, String name, double min, double max){
+        String value = settings.remove(name);
+        if(value == null){
+            return 0;
+        }
+        double n;
+        try {
+            n = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("-fakeBigQuery " + name + " must be a number: " + value);
+        }
+        if(n < min || n > max){
+            throw new IllegalArgumentException(String.format("-fakeBigQuery %s must be between %s and %s", name,
+                    min == 0 ? "0" : Double.toString(min), max == 1 ? "1" : Double.toString(max)));
+        }
+        return n;
+    }
+
+    /**
+     * @return client sending its requests to this fake
+     */
+    public Bigquery createClient(){
+        MockHttpTransport transport = new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) throws IOException {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        return FakeBigQuery.this.execute(method, this);
+                    }
+                };
+            }
+        };
+        return new Bigquery.Builder(transport, jsonFactory, null)
+                .setApplicationName("Jenkins usage uploadFile").build();
+    }
+
+    /**
+     * @return number of rows in given table, 0 if it does not exist
+     */
+    public synchronized long getRowCount(String tableId){
+        FakeTable t = tables.get(tableId);
+        return t == null ? 0 : t.rowCount;
+    }
+
+    /**
+     * @return number of HTTP requests served, parts of a batch request are not counted
+     */
+    public long getRequestCount(){
+        return requests.get();
+    }
+
+    /**
+     * Logs the row count of each table and the number of requests served
+     */
+    public synchronized void logSummary(){
+        Map<String, Long> rows = new TreeMap<>();
+        for(Map.Entry<String, FakeTable> e : tables.entrySet()){
+            rows.put(e.getKey(), e.getValue().rowCount);
+        }
+        LOGGER.info("Fake BigQuery served {} requests, rows by table: {}", requests.get(), rows);
+    }
+
+    private LowLevelHttpResponse execute(String method, MockLowLevelHttpRequest request) throws IOException {
+        requests.incrementAndGet();
+        if(latencyMs > 0){
+            try {
+                Thread.sleep(latencyMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for fake BigQuery response");
+            }
+        }
+        Response response;
+        if(isQuotaError()){
+            response = error(403, "rateLimitExceeded", "Exceeded rate limits: too many requests (fake)");
+        }else{
+            response = handle(method, request.getUrl(), request.getContentType(),
+                    request.getFirstHeaderValue("Content-Range"), readContent(request));
+        }
+        return response.toLowLevel();
+    }
+
+    private synchronized boolean isQuotaError(){
+        return quotaErrors > 0 && random.nextDouble() < quotaErrors;
+    }
+
+    private static byte[] readContent(LowLevelHttpRequest request) throws IOException {
+        if(request.getStreamingContent() == null){
+            return new byte[0];
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        request.getStreamingContent().writeTo(out);
+        if("gzip".equals(request.getContentEncoding())){
+            return ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())));
+        }
+        return out.toByteArray();
+    }
+
+    private Response handle(String method, String url, String contentType, String contentRange, byte[] body)
+            throws IOException {
+        GenericUrl u = new GenericUrl(url);
+        String path = u.getRawPath().substring(1) + "/";
+        if(path.equals("batch/" + SERVICE_PATH)){
+            return batch(contentType, body);
+        }
+        String upload = "upload/" + SERVICE_PATH + "projects/";
+        if(path.startsWith(upload)){
+            String uploadId = (String) u.getFirst("upload_id");
+            if(uploadId != null){
+                return uploadChunk(uploadId, contentRange, body);
+            }
+            if(!"resumable".equals(u.getFirst("uploadType"))){
+                return error(400, "invalid", "Only resumable uploads are supported by the fake");
+            }
+            return initiateUpload(url, body);
+        }
+        if(!path.startsWith(SERVICE_PATH + "projects/")){
+            return error(404, "notFound", "Not found: " + url);
+        }
+        String[] p = path.substring((SERVICE_PATH + "projects/").length()).split("/");
+        // p[0] is the project, the fake does not tell projects or datasets apart
+        if(p.length == 4 && p[1].equals("datasets") && p[3].equals("tables")){
+            return method.equals("POST") ? insertTable(body) : listTables(p[0], p[2]);
+        }
+        if(p.length == 5 && p[1].equals("datasets") && p[3].equals("tables") && method.equals("GET")){
+            return getTable(p[0], p[2], p[4]);
+        }
+        if(p.length == 6 && p[1].equals("datasets") && p[5].equals("insertAll")){
+            return insertAll(p[4], body);
+        }
+        if(p.length == 3 && p[1].equals("jobs") && method.equals("GET")){
+            return getJob(p[2]);
+        }
+        if(p.length == 2 && p[1].equals("queries") && method.equals("POST")){
+            return query(p[0], body);
+        }
+        return error(400, "invalid", "Not supported by the fake: " + method + " " + url);
+    }
+
+    private synchronized Response insertTable(byte[] body) throws IOException {
+        Table table = parse(body, Table.class);
+        String tableId = table.getTableReference().getTableId();
+        if(tables.containsKey(tableId)){
+            return error(409, "duplicate", "Already Exists: Table " + tableId);
+        }
+        FakeTable t = new FakeTable();
+        t.table = table;
+        tables.put(tableId, t);
+        return json(200, table);
+    }
+
+    private synchronized Response listTables(String projectId, String datasetId){
+        List<TableList.Tables> list = new ArrayList<>();
+        for(String tableId : new TreeMap<>(tables).keySet()){
+            list.add(new TableList.Tables().setTableReference(reference(projectId, datasetId, tableId)));
+        }
+        return json(200, new TableList().setTables(list).setTotalItems(list.size()));
+    }
+
+    private synchronized Response getTable(String projectId, String datasetId, String tableId){
+        FakeTable t = tables.get(tableId);
+        if(t == null){
+            return error(404, "notFound", "Not found: Table " + projectId + ":" + datasetId + "." + tableId);
+        }
+        return json(200, t.table.clone().setTableReference(reference(projectId, datasetId, tableId)));
+    }
+
+    private synchronized Response insertAll(String tableId, byte[] body) throws IOException {
+        TableDataInsertAllRequest request = parse(body, TableDataInsertAllRequest.class);
+        String id = baseTableId(tableId);
+        FakeTable t = tables.get(id);
+        if(t == null){
+            return error(404, "notFound", "Not found: Table " + id);
+        }
+        if(request.getTemplateSuffix() != null){
+            // template tables are created on first insert, with the schema of the template
+            id = id + request.getTemplateSuffix();
+            FakeTable target = tables.get(id);
+            if(target == null){
+                target = new FakeTable();
+                target.table = t.table.clone().setTableReference(t.table.getTableReference().clone().setTableId(id));
+                tables.put(id, target);
+            }
+            t = target;
+        }
+        List<TableDataInsertAllResponse.InsertErrors> errors = new ArrayList<>();
+        List<TableDataInsertAllRequest.Rows> rows = request.getRows() == null
+                ? Collections.<TableDataInsertAllRequest.Rows>emptyList() : request.getRows();
+        for(int i=0; i < rows.size(); i++){
+            TableDataInsertAllRequest.Rows row = rows.get(i);
+            if(rowErrors > 0 && random.nextDouble() < rowErrors){
+                errors.add(new TableDataInsertAllResponse.InsertErrors()
+                        .setIndex((long) i)
+                        .setErrors(Collections.singletonList(new ErrorProto()
+                                .setReason("backendError")
+                                .setMessage("Row insert failed (fake)"))));
+                continue;
+            }
+            if(row.getInsertId() != null && !t.insertIds.add(row.getInsertId())){
+                continue;
+            }
+            t.rowCount++;
+            if(id.equals(BigQueryConfig.UPLOAD_HISTORY_TABLE_ID)){
+                t.rows.add(row.getJson());
+            }
+        }
+        TableDataInsertAllResponse response = new TableDataInsertAllResponse();
+        if(!errors.isEmpty()){
+            response.setInsertErrors(errors);
+        }
+        return json(200, response);
+    }
+
+    /**
+     * Strips a partition decorator, table$20160101 is the table
+     */
+    private static String baseTableId(String tableId){
+        int i = tableId.indexOf('$');
+        return i < 0 ? tableId : tableId.substring(0, i);
+    }
+
+    private synchronized Response initiateUpload(String url, byte[] body) throws IOException {
+        Job job = parse(body, Job.class);
+        if(job.getJobReference() == null || job.getJobReference().getJobId() == null){
+            job.setJobReference(new JobReference().setJobId("job_" + UUID.randomUUID()));
+        }
+        String jobId = job.getJobReference().getJobId();
+        if(jobs.containsKey(jobId)){
+            return error(409, "duplicate", "Already Exists: Job " + jobId);
+        }
+        FakeUpload upload = new FakeUpload();
+        upload.job = job;
+        String uploadId = UUID.randomUUID().toString();
+        uploads.put(uploadId, upload);
+        Response response = new Response(200, new byte[0]);
+        response.headers.put("Location", url + (url.contains("?") ? "&" : "?") + "upload_id=" + uploadId);
+        return response;
+    }
+
+    private synchronized Response uploadChunk(String uploadId, String contentRange, byte[] body) throws IOException {
+        FakeUpload upload = uploads.get(uploadId);
+        if(upload == null){
+            return error(404, "notFound", "Upload session not found");
+        }
+        if(upload.done != null){
+            return json(200, upload.done.job);
+        }
+        // Content-Range: bytes first-last/total, or bytes */total to query the status
+        Matcher m = Pattern.compile("bytes (\\*|(\\d+)-(\\d+))/(\\*|\\d+)").matcher(
+                contentRange == null ? "" : contentRange);
+        if(!m.matches()){
+            return error(400, "invalid", "Invalid Content-Range: " + contentRange);
+        }
+        if(m.group(2) != null){
+            long first = Long.parseLong(m.group(2));
+            if(first > upload.received){
+                return error(400, "invalid", "Upload chunk starts at " + first + ", expected " + upload.received);
+            }
+            // skip what was already received
+            int skip = (int) (upload.received - first);
+            if(skip < body.length){
+                upload.write(body, skip, body.length - skip);
+            }
+        }
+        if(!m.group(4).equals("*") && upload.received >= Long.parseLong(m.group(4))){
+            uploads.remove(uploadId);
+            return json(200, startJob(upload).job);
+        }
+        Response response = new Response(308, new byte[0]);
+        if(upload.received > 0){
+            response.headers.put("Range", "bytes=0-" + (upload.received - 1));
+        }
+        return response;
+    }
+
+    private FakeJob startJob(FakeUpload upload) throws IOException {
+        FakeJob job = new FakeJob();
+        job.job = upload.job;
+        job.job.setStatus(new JobStatus().setState("RUNNING"));
+        job.rows = upload.countRows();
+        job.doneAt = System.currentTimeMillis() + jobTimeMs;
+        jobs.put(job.job.getJobReference().getJobId(), job);
+        upload.done = job;
+        return job;
+    }
+
+    private synchronized Response getJob(String jobId){
+        FakeJob job = jobs.get(jobId);
+        if(job == null){
+            return error(404, "notFound", "Not found: Job " + jobId);
+        }
+        if(!"DONE".equals(job.job.getStatus().getState()) && System.currentTimeMillis() >= job.doneAt){
+            completeJob(job);
+        }
+        return json(200, job.job);
+    }
+
+    private void completeJob(FakeJob job){
+        JobConfigurationLoad load = job.job.getConfiguration().getLoad();
+        String tableId = baseTableId(load.getDestinationTable().getTableId());
+        FakeTable t = tables.get(tableId);
+        JobStatus status = new JobStatus().setState("DONE");
+        if(jobErrors > 0 && random.nextDouble() < jobErrors){
+            status.setErrorResult(new ErrorProto().setReason("backendError").setMessage("Load job failed (fake)"));
+        }else if(t != null && "WRITE_EMPTY".equals(load.getWriteDisposition()) && t.rowCount > 0){
+            status.setErrorResult(new ErrorProto().setReason("duplicate").setMessage("Table " + tableId
+                    + " is not empty"));
+        }else{
+            if(t == null){
+                t = new FakeTable();
+                t.table = new Table().setTableReference(load.getDestinationTable().clone().setTableId(tableId))
+                        .setSchema(load.getSchema());
+                tables.put(tableId, t);
+            }
+            if("WRITE_TRUNCATE".equals(load.getWriteDisposition())){
+                t.rowCount = 0;
+            }
+            t.rowCount += job.rows;
+            job.job.setStatistics(new JobStatistics().setLoad(new JobStatistics3().setOutputRows(job.rows)));
+        }
+        if(status.getErrorResult() != null){
+            status.setErrors(Collections.singletonList(status.getErrorResult()));
+        }
+        job.job.setStatus(status);
+    }
+
+    /**
+     * Answers upload history lookups, select file.name, status from [upload_history] where file.name in (...), other
+     * queries get no rows
+     */
+    private synchronized Response query(String projectId, byte[] body) throws IOException {
+        QueryRequest request = parse(body, QueryRequest.class);
+        List<TableRow> rows = new ArrayList<>();
+        String query = request.getQuery();
+        FakeTable history = tables.get(BigQueryConfig.UPLOAD_HISTORY_TABLE_ID);
+        int in = query.toLowerCase().lastIndexOf(" in (");
+        if(history != null && query.contains("." + BigQueryConfig.UPLOAD_HISTORY_TABLE_ID + "]") && in > 0){
+            Set<String> names = new HashSet<>();
+            Matcher m = QUOTED.matcher(query.substring(in));
+            while(m.find()){
+                names.add(m.group(1).replace("\\'", "'").replace("\\\\", "\\"));
+            }
+            for(Map<String, Object> row : history.rows){
+                Object file = row.get("file");
+                Object name = file instanceof Map ? ((Map<?, ?>) file).get("name") : null;
+                if(name != null && names.contains(name.toString())){
+                    rows.add(new TableRow().setF(new ArrayList<>(Arrays.asList(
+                            new TableCell().setV(name.toString()),
+                            new TableCell().setV(String.valueOf(row.get("status")))))));
+                }
+            }
+        }
+        return json(200, new QueryResponse()
+                .setJobComplete(true)
+                .setJobReference(new JobReference().setProjectId(projectId).setJobId("query_" + UUID.randomUUID()))
+                .setRows(rows)
+                .setTotalRows(BigInteger.valueOf(rows.size())));
+    }
+
+    /**
+     * Serves the parts of a multipart/mixed batch request one by one and gives their responses in a multipart/mixed
+     * response, in the same order
+     */
+    private Response batch(String contentType, byte[] body) throws IOException {
+        String boundary = contentType == null ? null : contentType.replaceAll(".*boundary=\"?([^\";]+)\"?.*", "$1");
+        if(boundary == null || boundary.equals(contentType)){
+            return error(400, "invalid", "Batch request is not multipart/mixed");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body),
+                StandardCharsets.UTF_8));
+        String line;
+        int part = 0;
+        while((line = reader.readLine()) != null){
+            if(!line.equals("--" + boundary)){
+                continue;
+            }
+            // part headers, then the request line of the part and its headers, parts are jobs.get calls without body
+            skipHeaders(reader);
+            String requestLine = reader.readLine();
+            if(requestLine == null){
+                break;
+            }
+            String[] r = requestLine.split(" ");
+            skipHeaders(reader);
+            Response response = handle(r[0], r[1], null, null, new byte[0]);
+            StringBuilder b = new StringBuilder();
+            b.append("--").append(BOUNDARY).append("\r\n");
+            b.append("Content-Type: application/http\r\n");
+            b.append("Content-ID: <response-").append(++part).append(">\r\n\r\n");
+            b.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+            b.append("Content-Type: application/json; charset=UTF-8\r\n\r\n");
+            out.write(b.toString().getBytes(StandardCharsets.UTF_8));
+            out.write(response.body);
+            out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8));
+        Response response = new Response(200, out.toByteArray());
+        response.contentType = "multipart/mixed; boundary=" + BOUNDARY;
+        return response;
+    }
+
+    private static void skipHeaders(BufferedReader reader) throws IOException {
+        String line;
+        do {
+            line = reader.readLine();
+        } while(line != null && !line.isEmpty());
+    }
+
+    private static String reason(int status){
+        switch (status){
+            case 200: return "OK";
+            case 308: return "Resume Incomplete";
+            case 400: return "Bad Request";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 409: return "Conflict";
+            default: return "Error";
+        }
+    }
+
+    private static TableReference reference(String projectId, String datasetId, String tableId){
+        return new TableReference().setProjectId(projectId).setDatasetId(datasetId).setTableId(tableId);
+    }
+
+    private <T> T parse(byte[] body, Class<T> type) throws IOException {
+        return jsonFactory.fromInputStream(new ByteArrayInputStream(body), StandardCharsets.UTF_8, type);
+    }
+
+    private Response json(int status, Object content){
+        try {
+            return new Response(status, jsonFactory.toByteArray(content));
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize fake BigQuery response: " + e.getMessage(), e);
+        }
+    }
+
+    private Response error(int status, String reason, String message){
+        GenericJson details = new GenericJson();
+        details.put("domain", "global");
+        details.put("reason", reason);
+        details.put("message", message);
+        GenericJson error = new GenericJson();
+        error.put("errors", Collections.singletonList(details));
+        error.put("code", status);
+        error.put("message", message);
+        GenericJson content = new GenericJson();
+        content.put("error", error);
+        return json(status, content);
+    }
+
+    private static class Response {
+        private final int status;
+        private final byte[] body;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private String contentType = "application/json; charset=UTF-8";
+
+        private Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+
+        private MockLowLevelHttpResponse toLowLevel(){
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+                    .setStatusCode(status)
+                    .setReasonPhrase(reason(status))
+                    .setContentType(contentType)
+                    .setContent(body);
+            for(Map.Entry<String, String> e : headers.entrySet()){
+                response.addHeader(e.getKey(), e.getValue());
+            }
+            return response;
+        }
+    }
+
+    private static class FakeTable {
+        private Table table;
+        private long rowCount;
+        private final Set<String> insertIds = new HashSet<>();
+        /** rows kept for upload history queries */
+        private final List<Map<String, Object>> rows = new ArrayList<>();
+    }
+
+    private static class FakeJob {
+        private Job job;
+        private long rows;
+        private long doneAt;
+    }
+
+    /**
+     * Media upload in progress. Rows are counted as content arrives, gzip compressed content is kept and counted when
+     * it is complete.
+     */
+    private static class FakeUpload {
+        private Job job;
+        private FakeJob done;
+        private long received;
+        private long newLines;
+        private byte last = '\n';
+        private ByteArrayOutputStream gzip;
+        private ByteArrayOutputStream avro;
+
+        private void write(byte[] b, int off, int len){
+            if(received == 0 && "AVRO".equals(job.getConfiguration().getLoad().getSourceFormat())){
+                avro = new ByteArrayOutputStream();
+            }else if(received == 0 && len >= 2 && b[off] == (byte) 0x1f && b[off + 1] == (byte) 0x8b){
+                gzip = new ByteArrayOutputStream();
+            }
+            received += len;
+            if(avro != null || gzip != null){
+                (avro != null ? avro : gzip).write(b, off, len);
+                return;
+            }
+            for(int i = off; i < off + len; i++){
+                if(b[i] == '\n'){
+                    newLines++;
+                }
+            }
+            if(len > 0){
+                last = b[off + len - 1];
+            }
+        }
+
+        private long countRows() throws IOException {
+            if(avro != null){
+                long rows = 0;
+                try (DataFileStream<Object> in = new DataFileStream<>(new ByteArrayInputStream(avro.toByteArray()),
+                        new GenericDatumReader<>())) {
+                    while(in.hasNext()){
+                        in.next();
+                        rows++;
+                    }
+                }
+                return rows;
+            }
+            if(gzip == null){
+                return newLines + (last != '\n' ? 1 : 0);
+            }
+            long rows = 0;
+            byte[] buf = new byte[64*1024];
+            byte prev = '\n';
+            try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip.toByteArray()))) {
+                int n;
+                while((n = in.read(buf)) != -1){
+                    for(int i=0; i < n; i++){
+                        if(buf[i] == '\n'){
+                            rows++;
+                        }
+                    }
+                    if(n > 0){
+                        prev = buf[n - 1];
+                    }
+                }
+            }
+            return rows + (prev != '\n' ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.cloudbees.bq;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Byte range of a record file that starts at the beginning of a line and ends after a new line (or at the end of the
+ * file), so that each shard holds whole records and can be loaded on its own.
+ *
+ * @author Vivek Pandey
+ */
+class FileShard {
+    private static final int SCAN_BUFFER_SIZE = 8*1024;
+
+    private final File file;
+    private final int index;
+    private final long start;
+    private final long length;
+
+    private FileShard(File file, int index, long start, long length) {
+        this.file = file;
+        this.index = index;
+        this.start = start;
+        this.length = length;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * Opens a stream reading just this shard of the file
+     */
+    InputStream open() throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            channel.position(start);
+        }catch (IOException e){
+            channel.close();
+            throw e;
+        }
+        return ByteStreams.limit(Channels.newInputStream(channel), length);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s] bytes %s-%s", file.getName(), index, start, start + length);
+    }
+
+    /**
+     * Splits given file in to at most given number of shards of about the same size. Shard boundaries are found by
+     * scanning forward from each split point for the next new line, the file content is not copied.
+     */
+    static List<FileShard> split(File file, int shards) throws IOException {
+        List<FileShard> result = new ArrayList<>();
+        try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buf = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+            long start = 0;
+            for (int i = 1; i <= shards && start < size; i++) {
+                long end = i == shards ? size : Math.max(start, size * i / shards);
+                if (end < size) {
+                    end = nextLineStart(channel, end, buf);
+                }
+                if (end > start) {
+                    result.add(new FileShard(file, result.size(), start, end - start));
+                    start = end;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return position just after the first new line at or after given position, or the file size if there is none
+     */
+    private static long nextLineStart(FileChannel channel, long position, ByteBuffer buf) throws IOException {
+        long pos = position;
+        while (true) {
+            buf.clear();
+            int n = channel.read(buf, pos);
+            if (n == -1) {
+                return channel.size();
+            }
+            for (int i = 0; i < n; i++) {
+                if (buf.get(i) == '\n') {
+                    return pos + i + 1;
+                }
+            }
+            pos += n;
+        }
+    }
+}
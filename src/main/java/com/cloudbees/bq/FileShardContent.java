@@ -0,0 +1,45 @@
+package com.cloudbees.bq;
+
+import com.google.api.client.http.AbstractInputStreamContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Upload content of a {@link FileShard}, the shard is read straight from the record file.
+ *
+ * @author Vivek Pandey
+ */
+class FileShardContent extends AbstractInputStreamContent {
+    private final FileShard shard;
+
+    FileShardContent(String type, FileShard shard) {
+        super(type);
+        this.shard = shard;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return shard.open();
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return shard.getLength();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public FileShardContent setType(String type) {
+        return (FileShardContent) super.setType(type);
+    }
+
+    @Override
+    public FileShardContent setCloseInputStream(boolean closeInputStream) {
+        return (FileShardContent) super.setCloseInputStream(closeInputStream);
+    }
+}
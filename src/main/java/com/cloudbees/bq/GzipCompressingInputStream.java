@@ -0,0 +1,91 @@
+package com.cloudbees.bq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Gives gzip compressed content of the wrapped stream as it is read, so that a record file can be uploaded compressed
+ * without writing a compressed copy of it first.
+ *
+ * @author Vivek Pandey
+ */
+class GzipCompressingInputStream extends InputStream {
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private final InputStream in;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] inBuf = new byte[BUFFER_SIZE];
+    private final byte[] outBuf = new byte[BUFFER_SIZE];
+
+    /** bytes ready to be read, starts with the gzip header */
+    private byte[] pending = HEADER;
+    private int pendingOffset;
+    private int pendingLength = HEADER.length;
+    private boolean trailerWritten;
+
+    GzipCompressingInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0){
+            return 0;
+        }
+        while(pendingLength == 0){
+            if(trailerWritten){
+                return -1;
+            }
+            fill();
+        }
+        int n = Math.min(len, pendingLength);
+        System.arraycopy(pending, pendingOffset, b, off, n);
+        pendingOffset += n;
+        pendingLength -= n;
+        return n;
+    }
+
+    private void fill() throws IOException {
+        if(deflater.finished()){
+            long crcValue = crc.getValue();
+            long size = deflater.getBytesRead();
+            setPending(new byte[]{
+                    (byte) crcValue, (byte) (crcValue >> 8), (byte) (crcValue >> 16), (byte) (crcValue >> 24),
+                    (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)}, 8);
+            trailerWritten = true;
+            return;
+        }
+        if(deflater.needsInput()){
+            int n = in.read(inBuf);
+            if(n == -1){
+                deflater.finish();
+            }else if(n > 0){
+                crc.update(inBuf, 0, n);
+                deflater.setInput(inBuf, 0, n);
+            }
+        }
+        setPending(outBuf, deflater.deflate(outBuf));
+    }
+
+    private void setPending(byte[] buf, int length){
+        pending = buf;
+        pendingOffset = 0;
+        pendingLength = length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        deflater.end();
+        in.close();
+    }
+}
@@ -0,0 +1,167 @@
+package com.cloudbees.bq;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rows gathered for a single tabledata().insertAll call, along with the line number each row was read from so that
+ * per row insertErrors can be reported against the original record file. Rows are kept as the JSON text they were read
+ * as, see {@link InsertAllContent}.
+ *
+ * @author Vivek Pandey
+ */
+class InsertAllBatch {
+    /** Rough per row overhead of the insertAll JSON envelope ({"insertId":..,"json":..}) */
+    private static final int ROW_OVERHEAD_BYTES = 32;
+
+    private final List<String> rows = new ArrayList<>();
+    private final List<String> insertIds = new ArrayList<>();
+    private final List<Long> lineNumbers = new ArrayList<>();
+    private final String partition;
+    private long sizeInBytes;
+    private long memoryBytes;
+    private long sequence;
+    private long startOffset;
+    private long startLineNumber;
+    private long resumeOffset;
+    private long resumeLineNumber;
+
+    InsertAllBatch() {
+        this(null);
+    }
+
+    /**
+     * @param partition partition the rows are routed to, see {@link PartitionRouter}, null if they go to the table
+     */
+    InsertAllBatch(String partition) {
+        this.partition = partition;
+    }
+
+    /**
+     * @param row JSON record
+     * @param insertId null if the row has none
+     */
+    void add(String row, String insertId, long lineNumber, long rowSizeInBytes){
+        rows.add(row);
+        insertIds.add(insertId);
+        lineNumbers.add(lineNumber);
+        sizeInBytes += rowSizeInBytes + ROW_OVERHEAD_BYTES;
+        memoryBytes += memoryOf(row, insertId, rowSizeInBytes);
+    }
+
+    /**
+     * @return estimate of the heap a row takes in a batch being sent: its text, its insertId and its part of the request
+     *         body
+     */
+    static long memoryOf(String row, String insertId, long rowSizeInBytes){
+        return MemoryBudget.sizeOf(row) + (insertId == null ? 0 : MemoryBudget.sizeOf(insertId)) + rowSizeInBytes
+                + ROW_OVERHEAD_BYTES;
+    }
+
+    /**
+     * Tells whether adding a row of given size would take this batch over either of the limits. An empty batch always
+     * accepts a row, so a single row bigger than maxBytes is still sent on its own.
+     */
+    boolean isFull(int maxRows, long maxBytes, long rowSizeInBytes){
+        if(rows.isEmpty()){
+            return false;
+        }
+        return rows.size() >= maxRows || sizeInBytes + rowSizeInBytes + ROW_OVERHEAD_BYTES > maxBytes;
+    }
+
+    /**
+     * Position of this batch in the record file, batches are numbered from 0 in the order they were read
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    String getPartition() {
+        return partition;
+    }
+
+    /**
+     * Byte offset in the record file at or before the first line of this batch
+     */
+    long getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * Number of the lines before {@link #getStartOffset()}
+     */
+    long getStartLineNumber() {
+        return startLineNumber;
+    }
+
+    void setStartPosition(long offset, long lineNumber) {
+        this.startOffset = offset;
+        this.startLineNumber = lineNumber;
+    }
+
+    /**
+     * Byte offset in the record file where reading resumes once this batch and all batches before it are inserted,
+     * just after the last line of this batch unless rows before it are still buffered for other partitions
+     */
+    long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    /**
+     * Number of the lines before {@link #getResumeOffset()}
+     */
+    long getResumeLineNumber() {
+        return resumeLineNumber;
+    }
+
+    void setResumePosition(long offset, long lineNumber) {
+        this.resumeOffset = offset;
+        this.resumeLineNumber = lineNumber;
+    }
+
+    boolean isEmpty(){
+        return rows.isEmpty();
+    }
+
+    int size(){
+        return rows.size();
+    }
+
+    long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Bytes of the {@link MemoryBudget} the rows of this batch take, see {@link #memoryOf(String, String, long)}
+     */
+    long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    String getRow(int rowIndex){
+        return rows.get(rowIndex);
+    }
+
+    String getInsertId(int rowIndex){
+        return insertIds.get(rowIndex);
+    }
+
+    /**
+     * Maps index of a row in this batch, as reported by insertErrors, back to its line number in the record file.
+     */
+    long getLineNumber(long rowIndex){
+        return lineNumbers.get((int) rowIndex);
+    }
+
+    long getFirstLineNumber(){
+        return lineNumbers.isEmpty() ? 0 : lineNumbers.get(0);
+    }
+
+    long getLastLineNumber(){
+        return lineNumbers.isEmpty() ? 0 : lineNumbers.get(lineNumbers.size()-1);
+    }
+}
@@ -0,0 +1,73 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.api.client.http.AbstractHttpContent;
+import com.google.api.client.http.HttpMediaType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Body of a tabledata.insertAll request with rows of a batch spliced in as the JSON text they were read as, instead of
+ * being parsed in to a map and serialized back.
+ *
+ * The body is written once in to the given buffer, which a sender thread reuses for all its requests, and sent from
+ * there as many times as the request is executed.
+ *
+ * @author Vivek Pandey
+ */
+class InsertAllContent extends AbstractHttpContent {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final ByteArrayOutputStream buffer;
+
+    /**
+     * @param buffer buffer the body is written to, its content is replaced
+     * @param rows indexes of the rows of the batch to send
+     */
+    InsertAllContent(ByteArrayOutputStream buffer, String templateSuffix, InsertAllBatch batch, List<Integer> rows)
+            throws IOException {
+        super(new HttpMediaType("application/json; charset=UTF-8"));
+        this.buffer = buffer;
+        buffer.reset();
+        try (JsonGenerator g = JSON.createGenerator(buffer, JsonEncoding.UTF8)) {
+            g.writeStartObject();
+            g.writeBooleanField("ignoreUnknownValues", true);
+            if(templateSuffix != null){
+                g.writeStringField("templateSuffix", templateSuffix);
+            }
+            g.writeArrayFieldStart("rows");
+            for(int i : rows){
+                g.writeStartObject();
+                if(batch.getInsertId(i) != null){
+                    g.writeStringField("insertId", batch.getInsertId(i));
+                }
+                g.writeFieldName("json");
+                g.writeRawValue(batch.getRow(i));
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+    }
+
+    @Override
+    public long getLength() {
+        return buffer.size();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        buffer.writeTo(out);
+        out.flush();
+    }
+}
@@ -0,0 +1,140 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Gets the insertId of a row from a top level field, scanning its JSON tokens without building the record, and checks
+ * on the way that the row is a single well formed JSON object, so that it can be sent as it is. Thread safe.
+ *
+ * Rows with no insertId field can be given one derived from a {@link Murmur3Hasher} hash of the whole row, or of the
+ * values of some of its top level fields, so that a row sent again by a retry or a rerun is not inserted twice. The
+ * values are hashed as the scan goes over them, no other text is copied.
+ *
+ * @author Vivek Pandey
+ */
+class InsertIdExtractor {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final String field;
+    private final String[] hashFields;
+    private final ThreadLocal<HashState> hashStates = new ThreadLocal<HashState>() {
+        @Override
+        protected HashState initialValue() {
+            return new HashState(hashFields.length);
+        }
+    };
+
+    /**
+     * @param field top level field holding the insertId, null if rows have none
+     */
+    InsertIdExtractor(String field) {
+        this(field, null);
+    }
+
+    /**
+     * @param field top level field holding the insertId, null if rows have none
+     * @param hashFields top level fields to derive the insertId from when there is no insertId field, empty to derive
+     *                   it from the whole row, null to not derive it
+     */
+    InsertIdExtractor(String field, List<String> hashFields) {
+        this.field = field;
+        this.hashFields = hashFields == null ? null : hashFields.toArray(new String[hashFields.size()]);
+    }
+
+    /**
+     * @param row JSON record
+     * @return value of the insertId field, or the hash the insertId is derived from, null if there is no field or it
+     *         is null
+     * @throws IOException if the row is not a well formed JSON object
+     */
+    String extract(String row) throws IOException {
+        HashState hash = field == null && hashFields != null ? hashStates.get() : null;
+        if(hash != null){
+            Arrays.fill(hash.found, false);
+        }
+        try (JsonParser p = JSON.createParser(row)) {
+            if(p.nextToken() != JsonToken.START_OBJECT){
+                throw new JsonParseException("Record is not a JSON object", p.getCurrentLocation());
+            }
+            String insertId = null;
+            while(p.nextToken() == JsonToken.FIELD_NAME){
+                boolean isInsertId = field != null && insertId == null && field.equals(p.getCurrentName());
+                int hashField = hash == null ? -1 : indexOfHashField(p.getCurrentName());
+                JsonToken value = p.nextToken();
+                if(isInsertId && value.isScalarValue() && value != JsonToken.VALUE_NULL){
+                    insertId = p.getText();
+                }else if(hashField >= 0 && value.isScalarValue() && value != JsonToken.VALUE_NULL){
+                    hash.hashValue(hashField, value, p);
+                }else{
+                    p.skipChildren();
+                }
+            }
+            if(p.nextToken() != null){
+                throw new JsonParseException("Unexpected content after record", p.getCurrentLocation());
+            }
+            return hash == null ? insertId : hash.insertId(row);
+        }
+    }
+
+    private int indexOfHashField(String name){
+        for(int i=0; i < hashFields.length; i++){
+            if(hashFields[i].equals(name)){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hashes of the fields of the row being scanned, reused for all rows scanned by a thread
+     */
+    private static final class HashState {
+        private final Murmur3Hasher hasher = new Murmur3Hasher();
+        private final boolean[] found;
+        private final long[] h1;
+        private final long[] h2;
+
+        private HashState(int fields) {
+            this.found = new boolean[fields];
+            this.h1 = new long[fields];
+            this.h2 = new long[fields];
+        }
+
+        private void hashValue(int field, JsonToken type, JsonParser p) throws IOException {
+            // the token type tells "1" from 1
+            hasher.reset().putChar((char) type.ordinal())
+                    .putChars(p.getTextCharacters(), p.getTextOffset(), p.getTextLength())
+                    .finish();
+            found[field] = true;
+            h1[field] = hasher.getH1();
+            h2[field] = hasher.getH2();
+        }
+
+        /**
+         * Combines field hashes in the order fields were given, so that the order of fields in the row does not matter.
+         * The row is hashed whole if no fields were given, or if it misses any of them so that such rows do not all
+         * get the same insertId and are not dropped as duplicates of each other.
+         */
+        private String insertId(String row){
+            hasher.reset();
+            boolean all = found.length > 0;
+            for(boolean f : found){
+                all &= f;
+            }
+            if(!all){
+                return hasher.putChars(row).finish().toHex();
+            }
+            for(int i=0; i < found.length; i++){
+                hasher.putLong(h1[i]).putLong(h2[i]);
+            }
+            return hasher.finish().toHex();
+        }
+    }
+}
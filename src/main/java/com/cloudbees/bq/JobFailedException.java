@@ -0,0 +1,22 @@
+package com.cloudbees.bq;
+
+/**
+ * Thrown when a job finished with an error result.
+ *
+ * @author Vivek Pandey
+ */
+class JobFailedException extends RuntimeException {
+    private final String reason;
+
+    JobFailedException(String message, String reason) {
+        super(message);
+        this.reason = reason;
+    }
+
+    /**
+     * @return reason of the job error result, such as backendError or invalid
+     */
+    String getReason() {
+        return reason;
+    }
+}
@@ -0,0 +1,219 @@
+package com.cloudbees.bq;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Job;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks submitted jobs until they are done, from a single scheduler thread.
+ *
+ * Each job is polled with exponential backoff, starting at the polling interval and doubling up to
+ * {@value #MAX_INTERVAL_MS} ms, with random jitter so that jobs submitted together are not polled in lock step. Jobs
+ * that are due within {@value #BATCH_WINDOW_MS} ms of each other are checked with one batch request. One tracker is
+ * shared by all uploads of a run, see {@link BigQueryConfig#getJobTracker()}.
+ *
+ * @author Vivek Pandey
+ */
+class JobTracker {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobTracker.class);
+    private static final long MAX_INTERVAL_MS = 30000;
+    private static final long BATCH_WINDOW_MS = 500;
+    private static final int MAX_JOBS_PER_BATCH = 50;
+    private static final int MAX_FAILED_POLLS = 5;
+
+    private final Bigquery bigquery;
+    private final String projectId;
+    private final long initialIntervalMs;
+    private final UploadMetrics metrics;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("job-tracker").setDaemon(true).build());
+    private final Map<String, TrackedJob> jobs = new HashMap<>();
+    private ScheduledFuture<?> nextPoll;
+    private long nextPollAt;
+
+    JobTracker(BigQueryConfig config) {
+        this.bigquery = config.getBigQuery();
+        this.projectId = config.getProjectId();
+        this.initialIntervalMs = Math.max(1, config.getPollingIntervalInSec()) * 1000L;
+        this.metrics = config.getMetrics();
+    }
+
+    /**
+     * Tracks given job
+     *
+     * @return future completed with the job once it is done, whether it succeeded or failed
+     */
+    synchronized CompletableFuture<Job> track(Job job){
+        if("DONE".equals(job.getStatus().getState())){
+            return CompletableFuture.completedFuture(job);
+        }
+        String jobId = job.getJobReference().getJobId();
+        TrackedJob tracked = jobs.get(jobId);
+        if(tracked == null){
+            tracked = new TrackedJob(jobId);
+            tracked.interval = initialIntervalMs;
+            tracked.pollAt = System.currentTimeMillis() + jitter(tracked.interval);
+            jobs.put(jobId, tracked);
+            schedule();
+        }
+        return tracked.future;
+    }
+
+    /**
+     * Stops polling, jobs still tracked are failed
+     */
+    synchronized void shutdown(){
+        scheduler.shutdownNow();
+        for(TrackedJob j : jobs.values()){
+            j.future.completeExceptionally(new RuntimeException(String.format(
+                    "Stopped tracking job %s, it may still be running", j.jobId)));
+        }
+        jobs.clear();
+    }
+
+    private long jitter(long interval){
+        return interval / 2 + ThreadLocalRandom.current().nextLong(interval / 2 + 1);
+    }
+
+    /**
+     * Schedules polling for the job due first, unless it is already scheduled by then
+     */
+    private void schedule(){
+        if(jobs.isEmpty()){
+            return;
+        }
+        long due = Long.MAX_VALUE;
+        for(TrackedJob j : jobs.values()){
+            due = Math.min(due, j.pollAt);
+        }
+        if(nextPoll != null && !nextPoll.isDone()){
+            if(nextPollAt <= due){
+                return;
+            }
+            nextPoll.cancel(false);
+        }
+        nextPollAt = due;
+        nextPoll = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, Math.max(0, due - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private void poll(){
+        List<TrackedJob> due = new ArrayList<>();
+        synchronized (this){
+            long now = System.currentTimeMillis();
+            for(TrackedJob j : jobs.values()){
+                if(j.pollAt <= now + BATCH_WINDOW_MS){
+                    due.add(j);
+                }
+            }
+        }
+        for(int i=0; i < due.size(); i += MAX_JOBS_PER_BATCH){
+            poll(due.subList(i, Math.min(due.size(), i + MAX_JOBS_PER_BATCH)));
+        }
+        synchronized (this){
+            nextPoll = null;
+            schedule();
+        }
+    }
+
+    private void poll(List<TrackedJob> due){
+        long start = System.nanoTime();
+        try {
+            if(due.size() == 1){
+                TrackedJob j = due.get(0);
+                polled(j, bigquery.jobs().get(projectId, j.jobId).execute(), null);
+                return;
+            }
+            BatchRequest batch = bigquery.batch();
+            // per API batch endpoint, the global one is no longer served
+            batch.setBatchUrl(new GenericUrl(bigquery.getRootUrl() + "batch/"
+                    + bigquery.getServicePath().replaceAll("/$", "")));
+            for(final TrackedJob j : due){
+                bigquery.jobs().get(projectId, j.jobId).queue(batch, new JsonBatchCallback<Job>() {
+                    @Override
+                    public void onSuccess(Job job, HttpHeaders responseHeaders) {
+                        polled(j, job, null);
+                    }
+
+                    @Override
+                    public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                        polled(j, null, e.getCode() + " " + e.getMessage());
+                    }
+                });
+            }
+            LOGGER.debug("Checking status of {} jobs", due.size());
+            batch.execute();
+        } catch (IOException e) {
+            for(TrackedJob j : due){
+                polled(j, null, e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to check job status: "+e.getMessage(), e);
+            for(TrackedJob j : due){
+                polled(j, null, e.getMessage());
+            }
+        } finally {
+            metrics.observe(UploadMetrics.LOAD_JOB_POLL, start);
+        }
+    }
+
+    private synchronized void polled(TrackedJob tracked, Job job, String error){
+        if(!jobs.containsKey(tracked.jobId)){
+            return;
+        }
+        if(job != null && "DONE".equals(job.getStatus().getState())){
+            jobs.remove(tracked.jobId);
+            tracked.future.complete(job);
+            return;
+        }
+        if(job != null){
+            tracked.failedPolls = 0;
+            LOGGER.debug("Job {} is {}", tracked.jobId, job.getStatus().getState());
+        }else if(++tracked.failedPolls >= MAX_FAILED_POLLS){
+            jobs.remove(tracked.jobId);
+            // not an IOException, the job may still be running and must not be submitted again
+            tracked.future.completeExceptionally(new RuntimeException(String.format(
+                    "Failed to get status of job %s: %s", tracked.jobId, error)));
+            return;
+        }else{
+            LOGGER.warn("Failed to get status of job {}: {}", tracked.jobId, error);
+        }
+        tracked.interval = Math.min(tracked.interval * 2, Math.max(MAX_INTERVAL_MS, initialIntervalMs));
+        tracked.pollAt = System.currentTimeMillis() + jitter(tracked.interval);
+    }
+
+    private static class TrackedJob {
+        private final String jobId;
+        private final CompletableFuture<Job> future = new CompletableFuture<>();
+        private long interval;
+        private long pollAt;
+        private int failedPolls;
+
+        private TrackedJob(String jobId) {
+            this.jobId = jobId;
+        }
+    }
+}
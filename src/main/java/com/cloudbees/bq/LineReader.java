@@ -0,0 +1,111 @@
+package com.cloudbees.bq;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads the UTF-8 lines of a record file, ended by \n or \r\n, keeping track of the byte offset and number of the
+ * lines read so far, so that reading can later be resumed after any of them.
+ *
+ * @author Vivek Pandey
+ */
+class LineReader implements Closeable {
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int pos;
+    private int limit;
+    /** start of a line that does not fit in what is left of buf */
+    private byte[] partial = new byte[256];
+    private long offset;
+    private long lineNumber;
+
+    /**
+     * @param offset byte offset in the record file in is positioned at, the start of a line
+     * @param lineNumber number of the lines before offset
+     */
+    LineReader(InputStream in, long offset, long lineNumber) {
+        this.in = in;
+        this.offset = offset;
+        this.lineNumber = lineNumber;
+    }
+
+    LineReader(InputStream in) {
+        this(in, 0, 0);
+    }
+
+    /**
+     * @return next line without its line terminator, null at the end of the record file
+     */
+    String readLine() throws IOException {
+        int partialLength = 0;
+        boolean started = false;
+        while(true){
+            if(pos == limit){
+                limit = Math.max(0, in.read(buf));
+                pos = 0;
+                if(limit == 0){
+                    if(!started){
+                        return null;
+                    }
+                    return line(partial, 0, partialLength, partialLength);
+                }
+            }
+            int start = pos;
+            while(pos < limit && buf[pos] != '\n'){
+                pos++;
+            }
+            if(pos < limit){
+                int length = pos - start;
+                pos++;
+                if(!started){
+                    return line(buf, start, length, length + 1);
+                }
+                partialLength = append(partialLength, start, length);
+                return line(partial, 0, partialLength, partialLength + 1);
+            }
+            partialLength = append(partialLength, start, pos - start);
+            started = true;
+        }
+    }
+
+    private int append(int partialLength, int start, int length){
+        if(partialLength + length > partial.length){
+            partial = Arrays.copyOf(partial, Math.max(partial.length * 2, partialLength + length));
+        }
+        System.arraycopy(buf, start, partial, partialLength, length);
+        return partialLength + length;
+    }
+
+    private String line(byte[] b, int start, int length, int consumed){
+        offset += consumed;
+        lineNumber++;
+        if(length > 0 && b[start + length - 1] == '\r'){
+            length--;
+        }
+        return new String(b, start, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return byte offset just after the last line read
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return number of the last line read, counting from 1
+     */
+    long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -1,5 +1,6 @@
 package com.cloudbees.bq;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.kohsuke.args4j.CmdLineException;
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -7,8 +8,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_CHECKPOINT_INTERVAL_SEC;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_CONNECT_TIMEOUT_SEC;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_MAX_BATCH_BYTES;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_MAX_BATCH_ROWS;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_MAX_CONNECTIONS;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_MAX_RETRIES;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_READ_AHEAD_BATCHES;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_READ_TIMEOUT_SEC;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_RETRY_BUDGET;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_SENDER_THREADS;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_TABLE_CACHE_TTL_MIN;
+import static com.cloudbees.bq.BigQueryConfig.DEFAULT_UPLOAD_CHUNK_SIZE_MB;
+import static com.cloudbees.bq.BigQueryConfig.HTTP_TRANSPORT_APACHE;
+import static com.cloudbees.bq.BigQueryConfig.PARTITION_BY_DAY;
+import static com.cloudbees.bq.BigQueryConfig.PARTITION_TABLE_SUFFIX;
 import static com.cloudbees.bq.BigQueryConfig.WRITE_APPEND;
 
 /**
@@ -26,13 +52,97 @@ public class Main {
     @Option(name="-tableId",usage="BigQuery tableId (Required)")
     public String tableId;
 
-    @Option(name="-bqFile",usage="BigQuery record file (JSON object separated by new line)")
+    @Option(name="-bqFile",usage="BigQuery record file (JSON object separated by new line), may be gzip compressed (.gz)")
     public File bqFile;
 
 
+    @Option(name="-bqDir",usage="Directory of BigQuery record files, each file matching -filePattern is uploaded unless it was uploaded before")
+    public File bqDir;
+
+    @Option(name="-spoolDir",usage="Keep running and upload record files matching -filePattern as they are moved in to given directory, uploaded files are moved to its done directory and failed ones to its failed directory")
+    public File spoolDir;
+
+    @Option(name="-manifest",usage="JSON file listing record files to upload each to its own table in this run, with their tableId, bqFile, uploadType and optionally schemaFile, writeDisposition, streaming, createTable and transform. Jobs run up to -uploadThreads at once with one BigQuery client, other options apply to all of them")
+    public File manifest;
+
+    @Option(name="-filePattern",usage="Glob pattern of record files in -bqDir to upload")
+    public String filePattern="*";
+
+    @Option(name="-fromDate",usage="Only upload record files in -bqDir dated (yyyyMMdd in file name) on or after given date", metaVar = "yyyyMMdd")
+    public String fromDate;
+
+    @Option(name="-toDate",usage="Only upload record files in -bqDir dated (yyyyMMdd in file name) on or before given date", metaVar = "yyyyMMdd")
+    public String toDate;
+
+    @Option(name="-order",usage="Order record files in -bqDir are uploaded in, newest or oldest first")
+    public String order="newest";
+
+    @Option(name="-uploadThreads",usage="Number of record files in -bqDir, or jobs of -manifest, uploaded at once")
+    public int uploadThreads=1;
+
+    @Option(name="-historyIndex",usage="Local upload history index file, answers whether a file was already uploaded without querying BigQuery")
+    public File historyIndex;
+
+    @Option(name="-reconcileHistory",usage="Look up upload history in BigQuery even for files found in -historyIndex, and update the index")
+    public Boolean reconcileHistory=false;
+
+    @Option(name="-validateRows",usage="Check rows against the table schema before they are uploaded, rows that would be rejected are not uploaded")
+    public Boolean validateRows=false;
+
+    @Option(name="-deadLetterFile",usage="File rows that failed to transform or validate, or were rejected by BigQuery, are appended to with the reasons")
+    public File deadLetterFile;
+
+    @Option(name="-rowThreads",usage="Number of threads transforming and validating rows, 0 for one per processor")
+    public int rowThreads=0;
+
+    @Option(name="-maxRetries",usage="Number of times a BigQuery call failing with a rate limit or server error is retried")
+    public int maxRetries=DEFAULT_MAX_RETRIES;
+
+    @Option(name="-retryBudget",usage="Number of retries of all BigQuery calls of a run together")
+    public int retryBudget=DEFAULT_RETRY_BUDGET;
+
+    @Option(name="-replayFile",usage="File rows that could not be inserted after retries are spilled to (streaming upload only)")
+    public File replayFile;
+
+    @Option(name="-replay",usage="Insert rows spilled to -replayFile by earlier runs again")
+    public Boolean replay=false;
+
+    @Option(name="-metricsJson",usage="File a JSON summary of upload metrics is written to at exit")
+    public File metricsJson;
+
+    @Option(name="-metricsPrometheus",usage="Prometheus textfile upload metrics are written to at exit")
+    public File metricsPrometheus;
+
+    @Option(name="-metricsInterval",usage="Also write metrics every given number of seconds while uploading, 0 to only write them at exit")
+    public int metricsInterval=0;
+
+    @Option(name="-tableCache",usage="File table existence and schema are cached in between runs, so that a run needs no table metadata calls")
+    public File tableCache;
+
+    @Option(name="-tableCacheTtl",usage="Minutes after which cached table metadata is fetched again")
+    public int tableCacheTtl=DEFAULT_TABLE_CACHE_TTL_MIN;
+
     @Option(name="-credentialFile",usage="BigQuery JSON credential file")
     public File credentialFile;
 
+    @Option(name="-httpTransport",usage="HTTP client BigQuery is called with, apache for a pool of keep-alive connections or jdk for HttpURLConnection")
+    public String httpTransport=HTTP_TRANSPORT_APACHE;
+
+    @Option(name="-maxConnections",usage="Number of connections to BigQuery kept open at once (apache -httpTransport only)")
+    public int maxConnections=DEFAULT_MAX_CONNECTIONS;
+
+    @Option(name="-connectTimeout",usage="Seconds to wait for a connection to BigQuery, 0 to wait forever")
+    public int connectTimeout=DEFAULT_CONNECT_TIMEOUT_SEC;
+
+    @Option(name="-readTimeout",usage="Seconds to wait for data from BigQuery, 0 to wait forever")
+    public int readTimeout=DEFAULT_READ_TIMEOUT_SEC;
+
+    @Option(name="-uncompressedRequests",usage="Send insertAll and load job upload request bodies without gzip Content-Encoding")
+    public boolean uncompressedRequests;
+
+    @Option(name="-fakeBigQuery",usage="Upload to an in-process fake BigQuery instead, to try out uploads offline. Comma separated fault settings: latency (ms per request), quotaErrors, rowErrors and jobErrors (rates from 0 to 1), jobTime (ms) and seed, or none", metaVar = "SETTINGS")
+    public String fakeBigQuery;
+
     @Option(name="-schemaFile",usage="Create BigQuery table using provided schama", metaVar = "SCHEMA_JSON_FILE")
     public File schemaFile;
 
@@ -43,9 +153,24 @@ public class Main {
     public String uploadType;
 
 
+    @Option(name="-transform",usage="Transform each record before it is uploaded, must be census")
+    public String transform;
+
     @Option(name="-insertIdField",usage="Top level JSON field to use for insertId (streaming upload only)")
     public String insertIdField;
 
+    @Option(name="-insertIdHash",usage="Derive insertId of rows from a 128 bit murmur3 hash, of the whole row with line or of the values of given comma separated top level fields, so that rows sent again are not inserted twice (streaming upload only)", metaVar = "line|FIELDS")
+    public String insertIdHash;
+
+    @Option(name="-partitionField",usage="Route each row to the day or month partition of the UTC date of this top level TIMESTAMP field, such as timestamp", metaVar = "FIELD")
+    public String partitionField;
+
+    @Option(name="-partitionBy",usage="Partition rows by day or month of -partitionField", metaVar = "day|month")
+    public String partitionBy=PARTITION_BY_DAY;
+
+    @Option(name="-partitionTable",usage="Send rows of a partition to the table_YYYYMMDD table with suffix, created with the schema of the table, or to the table$YYYYMMDD partition of a date partitioned table with decorator", metaVar = "MODE")
+    public String partitionTable=PARTITION_TABLE_SUFFIX;
+
     @Option(name="-writeDisposition",usage="How the table data should be updated, possible values WRITE_TRUNCATE, WRITE_EMPTY and WRITE_APPEND(default)")
     public String writeDisposition=WRITE_APPEND;
 
@@ -56,12 +181,52 @@ public class Main {
     @Option(name="-streamingUpload",usage="Create new table using streaming upload")
     public Boolean streamingUpload=false;
 
+    @Option(name="-compressUpload",usage="Gzip compress uncompressed record file while it is sent (load job upload only)")
+    public Boolean compressUpload=false;
+
+    @Option(name="-avroUpload",usage="Convert records to deflate compressed Avro of the table schema as they are sent, which is smaller to upload and faster for BigQuery to load (load job upload only)")
+    public boolean avroUpload;
+
+    @Option(name="-loadShards",usage="Split record file in to given number of shards, each loaded by its own load job in parallel (load job upload only)")
+    public int loadShards=1;
+
+    @Option(name="-uploadChunkSize",usage="Load job media upload chunk size in MB (load job upload only)")
+    public int uploadChunkSize=DEFAULT_UPLOAD_CHUNK_SIZE_MB;
+
+    @Option(name="-resumableUpload",usage="Save load job upload session next to the record file, so that a failed upload is resumed by the next run (load job upload only)")
+    public Boolean resumableUpload=false;
+
+    @Option(name="-streamingCheckpoint",usage="Save progress of streaming upload next to the record file, so that a failed upload is resumed by the next run after the last inserted batch (streaming upload only)")
+    public boolean streamingCheckpoint;
+
+    @Option(name="-checkpointInterval",usage="Seconds between saves of -streamingCheckpoint, 0 to save after every batch")
+    public int checkpointInterval=DEFAULT_CHECKPOINT_INTERVAL_SEC;
+
     @Option(name="-pollingInterval", usage="Submitted job polling interval(in seconds)")
     public int pollingInterval=1;
 
+    @Option(name="-maxBatchRows", usage="Maximum number of rows sent in one insertAll request (streaming upload only)")
+    public int maxBatchRows=DEFAULT_MAX_BATCH_ROWS;
+
+    @Option(name="-maxBatchBytes", usage="Maximum payload size in bytes of one insertAll request (streaming upload only)")
+    public long maxBatchBytes=DEFAULT_MAX_BATCH_BYTES;
+
+    @Option(name="-senderThreads", usage="Number of insertAll requests in flight at once (streaming upload only)")
+    public int senderThreads=DEFAULT_SENDER_THREADS;
+
+    @Option(name="-readAheadBatches", usage="Number of batches read ahead and waiting to be sent (streaming upload only)")
+    public int readAheadBatches=DEFAULT_READ_AHEAD_BATCHES;
+
+    @Option(name="-memoryBudget",usage="Heap in MB rows buffered on their way to BigQuery may take, reading blocks while insertAll requests in flight free it, 0 for no limit. High-water marks are reported with the metrics", metaVar = "MB")
+    public int memoryBudget=0;
+
     @Option(name = "-h", aliases = {"-help"}, usage = "Print help message", help = true)
 
     public boolean help;
+
+    /** jobs of -manifest */
+    private List<UploadManifest.Job> manifestJobs;
+
     public static void main(String[] args) throws CmdLineException {
         Main main = new Main();
         CmdLineParser p = new CmdLineParser(main);
@@ -69,11 +234,13 @@ public class Main {
         if(main.help){
             p.printUsage(System.err);
         }else if(main.validate(p)){
-            main.run();
+            if(!main.run()){
+                System.exit(1);
+            }
         }
     }
 
-    private boolean validate(CmdLineParser p){
+    boolean validate(CmdLineParser p){
         if(projectId == null){
             System.err.println("Please provide Google BigQuery projectId with -projectId option");
             p.printUsage(System.err);
@@ -84,41 +251,256 @@ public class Main {
             p.printUsage(System.err);
             return false;
         }
-        if(tableId == null){
-            System.err.println("Please provide Google BigQuery tableId with -tableId option");
+        if(manifest != null){
+            if(tableId != null || bqFile != null || bqDir != null || spoolDir != null || replay){
+                System.err.println("-manifest can not be combined with -tableId, -bqFile, -bqDir, -spoolDir or -replay");
+                p.printUsage(System.err);
+                return false;
+            }
+            try {
+                manifestJobs = UploadManifest.load(manifest);
+            } catch (IOException e) {
+                System.err.println("Invalid -manifest: " + e.getMessage());
+                p.printUsage(System.err);
+                return false;
+            }
+        }else{
+            if(tableId == null){
+                System.err.println("Please provide Google BigQuery tableId with -tableId option");
+                p.printUsage(System.err);
+                return false;
+            }
+            if (bqFile==null && bqDir==null && spoolDir==null && schemaFile ==null && !replay) {
+                System.err.println("Nothing to do. must provide -bqFile, -bqDir or -spoolDir option");
+                p.printUsage(System.err);
+                return false;
+            }
+            if((bqFile != null ? 1 : 0) + (bqDir != null ? 1 : 0) + (spoolDir != null ? 1 : 0) > 1){
+                System.err.println("Only one of -bqFile, -bqDir and -spoolDir may be given");
+                p.printUsage(System.err);
+                return false;
+            }
+            if(uploadType == null || !uploadType.equals("census") && !uploadType.equals("extension")){
+                System.err.println("Please provide uploadType, must be one of census or extension");
+                p.printUsage(System.err);
+                return false;
+            }
+        }
+        if(partitionField != null && templateSuffix != null){
+            System.err.println("Only one of -partitionField and -templateSuffix may be given");
+            p.printUsage(System.err);
+            return false;
+        }
+        if(insertIdField != null && insertIdHash != null){
+            System.err.println("Only one of -insertIdField and -insertIdHash may be given");
             p.printUsage(System.err);
             return false;
         }
-        if (bqFile==null && schemaFile ==null) {
-            System.err.println("Nothing to do. must provide -bqFile option");
+        if(replay && replayFile == null){
+            System.err.println("-replayFile required with -replay option");
             p.printUsage(System.err);
             return false;
         }
-        if(uploadType == null || !uploadType.equals("census") && !uploadType.equals("extension")){
-            System.err.println("Please provide uploadType, must be one of census or extension");
+        if(!order.equals("newest") && !order.equals("oldest")){
+            System.err.println("-order must be one of newest or oldest");
+            p.printUsage(System.err);
+            return false;
+        }
+        if(metricsInterval < 0){
+            System.err.println("-metricsInterval must not be negative");
+            p.printUsage(System.err);
+            return false;
+        }
+        if(uploadThreads < 1){
+            System.err.println("-uploadThreads must be greater than 0");
             p.printUsage(System.err);
             return false;
         }
         return true;
 
     }
-    private void run() {
-        BigQueryConfig config = new BigQueryConfig
-                .Builder(projectId, datasetId, tableId, credentialFile)
+    private boolean run() {
+        return run(fakeBigQuery == null ? null : new FakeBigQuery(fakeBigQuery));
+    }
+
+    /**
+     * @param fake fake to upload to instead of BigQuery, null to upload to BigQuery
+     * @return false if an upload or a job of -manifest failed
+     */
+    boolean run(FakeBigQuery fake) {
+        boolean succeeded;
+        if(manifest != null){
+            succeeded = runManifest(fake);
+        }else{
+            BigQueryConfig config = configure(newBuilder(tableId, fake))
+                    .schema(schemaFile)
+                    .createTable(createTable)
+                    .streamingUpload(streamingUpload)
+                    .writeDisposition(writeDisposition)
+                    .uploadType(uploadType)
+                    .transform(transform)
+                    .build();
+            succeeded = run(config);
+        }
+        if(fake != null){
+            fake.logSummary();
+        }
+        return succeeded;
+    }
+
+    private BigQueryConfig.Builder newBuilder(String tableId, FakeBigQuery fake){
+        return fake == null
+                ? new BigQueryConfig.Builder(projectId, datasetId, tableId, credentialFile)
+                : new BigQueryConfig.Builder(projectId, datasetId, tableId, fake.createClient());
+    }
+
+    /**
+     * Applies the options that are the same for every table uploaded to
+     */
+    private BigQueryConfig.Builder configure(BigQueryConfig.Builder builder){
+        return builder
                 .templateSuffix(templateSuffix)
                 .insertIdField(insertIdField)
-                .schema(schemaFile)
-                .createTable(createTable)
-                .streamingUpload(streamingUpload)
+                .insertIdHash(insertIdHash)
                 .pollingIntervalInSec(pollingInterval)
-                .writeDisposition(writeDisposition)
-                .uploadType(uploadType)
-                .build();
-        run(config);
+                .maxBatchRows(maxBatchRows)
+                .maxBatchBytes(maxBatchBytes)
+                .senderThreads(senderThreads)
+                .readAheadBatches(readAheadBatches)
+                .memoryBudgetInMB(memoryBudget)
+                .compressUpload(compressUpload)
+                .loadShards(loadShards)
+                .uploadChunkSizeInMB(uploadChunkSize)
+                .resumableUpload(resumableUpload)
+                .streamingCheckpoint(streamingCheckpoint)
+                .checkpointIntervalInSec(checkpointInterval)
+                .uploadHistoryIndex(historyIndex)
+                .reconcileHistory(reconcileHistory)
+                .tableCache(tableCache)
+                .tableCacheTtlInMin(tableCacheTtl)
+                .validateRows(validateRows)
+                .deadLetterFile(deadLetterFile)
+                .rowThreads(rowThreads)
+                .maxRetries(maxRetries)
+                .retryBudget(retryBudget)
+                .replayFile(replayFile)
+                .httpTransport(httpTransport)
+                .maxConnections(maxConnections)
+                .connectTimeoutInSec(connectTimeout)
+                .readTimeoutInSec(readTimeout)
+                .compressRequests(!uncompressedRequests)
+                .avroUpload(avroUpload)
+                .partitionField(partitionField)
+                .partitionBy(partitionBy)
+                .partitionTable(partitionTable);
     }
 
-    public void run(BigQueryConfig config){
+    /**
+     * Runs the jobs of -manifest, up to -uploadThreads at once. They share one BigQuery client, the metrics, memory
+     * and retry budgets and the table metadata cache, as if they were one upload.
+     *
+     * @return false if a job failed
+     */
+    private boolean runManifest(FakeBigQuery fake){
         long start = System.currentTimeMillis();
+        final Map<UploadManifest.Job, BigQueryConfig> configs = new LinkedHashMap<>();
+        BigQueryConfig shared = null;
+        for(UploadManifest.Job job : manifestJobs){
+            BigQueryConfig.Builder builder = shared == null
+                    ? newBuilder(job.tableId, fake)
+                    : new BigQueryConfig.Builder(projectId, datasetId, job.tableId, shared.getBigQuery())
+                            .shareWith(shared);
+            BigQueryConfig config = configure(builder)
+                    .schema(job.schemaFile != null ? job.schemaFile : schemaFile)
+                    .createTable(job.createTable != null ? job.createTable : createTable)
+                    .streamingUpload(job.streaming != null ? job.streaming : streamingUpload)
+                    .writeDisposition(job.writeDisposition != null ? job.writeDisposition : writeDisposition)
+                    .uploadType(job.uploadType)
+                    .transform(job.transform != null ? job.transform : transform)
+                    .build();
+            if(shared == null){
+                shared = config;
+            }
+            configs.put(job, config);
+        }
+
+        ScheduledExecutorService metricsWriter = startMetricsWriter(shared);
+        Thread historyFlush = addHistoryFlushHook(shared);
+        ExecutorService executor = Executors.newFixedThreadPool(uploadThreads,
+                new ThreadFactoryBuilder().setNameFormat("manifest-%d").setDaemon(true).build());
+        Map<UploadManifest.Job, Future<Boolean>> results = new LinkedHashMap<>();
+        for(final Map.Entry<UploadManifest.Job, BigQueryConfig> e : configs.entrySet()){
+            results.put(e.getKey(), executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return runJob(e.getKey(), e.getValue());
+                }
+            }));
+        }
+        executor.shutdown();
+
+        int uploaded = 0;
+        int skipped = 0;
+        int failed = 0;
+        try {
+            for(Map.Entry<UploadManifest.Job, Future<Boolean>> e : results.entrySet()){
+                try {
+                    if(e.getValue().get()){
+                        uploaded++;
+                        LOGGER.info("{}: uploaded", e.getKey());
+                    }else{
+                        skipped++;
+                        LOGGER.info("{}: skipped, it was uploaded before", e.getKey());
+                    }
+                } catch (ExecutionException ex) {
+                    failed++;
+                    LOGGER.error("{}: failed: {}", e.getKey(), ex.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            if(metricsWriter != null){
+                metricsWriter.shutdownNow();
+            }
+            shared.getJobTracker().shutdown();
+            removeShutdownHook(historyFlush);
+            writeMetrics(shared);
+        }
+        LOGGER.info("Ran {} jobs of {}: {} uploaded, {} skipped, {} failed", results.size(), manifest.getName(),
+                uploaded, skipped, failed);
+        logTimeTaken(start);
+        return failed == 0;
+    }
+
+    /**
+     * Creates the table of a manifest job if asked to, then uploads its record file. Its config shares the job tracker
+     * of the first job's, so load jobs of all manifest jobs are polled by one scheduler.
+     *
+     * @return false if the file was skipped because of a previous attempt to upload it
+     */
+    private boolean runJob(UploadManifest.Job job, BigQueryConfig config){
+        BigQueryApi app = new BigQueryApi(config);
+        if(config.isCreateTable()){
+            if(config.getSchema() == null){
+                throw new IllegalArgumentException("schemaFile required to create table " + job.tableId);
+            }
+            app.createTable(job.tableId, config.getSchema());
+        }
+        return app.upload(job.bqFile);
+    }
+
+    /**
+     * @return false if the table could not be created, a record file failed to upload or the upload stopped with an
+     *         error
+     */
+    public boolean run(final BigQueryConfig config){
+        long start = System.currentTimeMillis();
+        ScheduledExecutorService metricsWriter = startMetricsWriter(config);
+        Thread historyFlush = addHistoryFlushHook(config);
+        boolean succeeded = true;
         try {
             BigQueryApi app = new BigQueryApi(config);
 
@@ -126,23 +508,112 @@ public class Main {
             if (config.isCreateTable()) {
                 if (config.getSchema() == null) {
                     System.err.println("-schemaFile required with -createTable option");
-                    return;
+                    return false;
                 }
                 app.createTable(tableId, config.getSchema());
             }
 
+            if (replay) {
+                app.replay();
+            }
+
             if (bqFile != null) {
                 app.upload(bqFile);
             }
-        }catch (Exception e){
 
+            if (bqDir != null) {
+                List<File> files = new RecordFileSelector(bqDir)
+                        .glob(filePattern)
+                        .fromDate(fromDate)
+                        .toDate(toDate)
+                        .newestFirst(order.equals("newest"))
+                        .select();
+                LOGGER.info("Found {} record files to upload in {}", files.size(), bqDir);
+                if(app.upload(files, uploadThreads) > 0){
+                    succeeded = false;
+                }
+            }
+
+            if (spoolDir != null) {
+                new SpoolDaemon(app, new RecordFileSelector(spoolDir)
+                        .glob(filePattern)
+                        .fromDate(fromDate)
+                        .toDate(toDate)
+                        .newestFirst(order.equals("newest")), spoolDir, uploadThreads).run();
+            }
+        }catch (RuntimeException e){
+            LOGGER.error(e.getMessage(), e);
+            return false;
         }finally {
-            long timeTaken = (System.currentTimeMillis()-start);
-            LOGGER.info(String.format("Total time taken: %02d min, %02d sec",
-                    TimeUnit.MILLISECONDS.toMinutes(timeTaken),
-                    TimeUnit.MILLISECONDS.toSeconds(timeTaken) -
-                            TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(timeTaken))));
+            if(metricsWriter != null){
+                metricsWriter.shutdownNow();
+            }
+            config.getJobTracker().shutdown();
+            removeShutdownHook(historyFlush);
+            writeMetrics(config);
+            logTimeTaken(start);
+        }
+        return succeeded;
+    }
+
+    private static void logTimeTaken(long start){
+        long timeTaken = (System.currentTimeMillis()-start);
+        LOGGER.info(String.format("Total time taken: %02d min, %02d sec",
+                TimeUnit.MILLISECONDS.toMinutes(timeTaken),
+                TimeUnit.MILLISECONDS.toSeconds(timeTaken) -
+                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(timeTaken))));
+    }
+
+    /**
+     * Writes upload history records still buffered when the JVM is stopped during the run
+     *
+     * @return the hook, to remove once the run is over
+     */
+    private static Thread addHistoryFlushHook(final BigQueryConfig config){
+        Thread hook = new Thread("upload-history-flush") {
+            @Override
+            public void run() {
+                config.getUploadHistoryWriter().flush();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        return hook;
+    }
+
+    private static void removeShutdownHook(Thread hook){
+        try {
+            Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException e) {
+            // already shutting down
+        }
+    }
+
+    /**
+     * @return scheduler writing metrics every -metricsInterval seconds, null if they are only written at exit
+     */
+    private ScheduledExecutorService startMetricsWriter(final BigQueryConfig config){
+        if((metricsJson == null && metricsPrometheus == null) || metricsInterval <= 0){
+            return null;
         }
+        ScheduledExecutorService metricsWriter = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("metrics-writer").setDaemon(true).build());
+        metricsWriter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                writeMetrics(config);
+            }
+        }, metricsInterval, metricsInterval, TimeUnit.SECONDS);
+        return metricsWriter;
     }
 
+    private void writeMetrics(BigQueryConfig config){
+        if(metricsJson == null && metricsPrometheus == null){
+            return;
+        }
+        try {
+            config.getMetrics().write(metricsJson, metricsPrometheus);
+        }catch (RuntimeException e){
+            LOGGER.error(e.getMessage(), e);
+        }
+    }
 }
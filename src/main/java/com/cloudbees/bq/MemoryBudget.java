@@ -0,0 +1,157 @@
+package com.cloudbees.bq;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Byte budget of the heap taken by rows buffered on their way to BigQuery, shared by every stage buffering them: rows
+ * read ahead, batches being filled, insertAll requests queued or in flight and load job upload buffers. A stage
+ * acquires the bytes before it holds on to rows and releases them once they can be collected, so that heap use stays
+ * bounded whatever the size of the record files. Sizes are estimates of what the rows take on the heap.
+ *
+ * When the budget is exhausted {@link #acquire} blocks until insertAll requests in flight complete and release their
+ * bytes. Everything else is released by the thread that acquired it, waiting for it could wait for ever, so with no
+ * request in flight acquire gives up. The caller then frees what it holds itself, such as by sending a batch, or goes
+ * over the budget with {@link #force}, by at most a chunk of rows or a row. A load job upload buffer is acquired before
+ * the upload holds anything else, so it also waits for the buffers of other uploads.
+ *
+ * High-water marks of the budget and of each stage are reported as gauges of {@link UploadMetrics}. Thread safe.
+ *
+ * @author Vivek Pandey
+ */
+class MemoryBudget {
+    static final String READ_AHEAD = "read_ahead";
+    static final String BATCHES = "batches";
+    static final String IN_FLIGHT = "in_flight";
+    static final String UPLOAD_BUFFERS = "upload_buffers";
+
+    /** object headers, length and reference of a String and its char[] */
+    private static final int STRING_OVERHEAD = 56;
+
+    private final long capacity;
+    private final UploadMetrics metrics;
+    private long used;
+    private long maxUsed;
+    /** bytes held by each stage and its high-water mark */
+    private final Map<String, long[]> stages = new HashMap<>();
+
+    /**
+     * @param capacity bytes that can be held at once, {@link Long#MAX_VALUE} to only report high-water marks
+     */
+    MemoryBudget(long capacity, UploadMetrics metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+        if(capacity != Long.MAX_VALUE){
+            metrics.set(UploadMetrics.MEMORY_BUDGET, capacity);
+        }
+    }
+
+    /**
+     * @return estimate of the heap taken by given string
+     */
+    static long sizeOf(String s){
+        return STRING_OVERHEAD + 2L * s.length();
+    }
+
+    long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Acquires given bytes if they fit under limit, without waiting
+     *
+     * @param limit bytes all stages may hold at once after acquiring, at most the capacity, so that a stage can leave
+     *              room for the others
+     */
+    synchronized boolean tryAcquire(String stage, long bytes, long limit){
+        if(used + bytes > Math.min(limit, capacity) && used > 0){
+            return false;
+        }
+        add(stage, bytes);
+        return true;
+    }
+
+    /**
+     * Acquires given bytes, waiting while they do not fit and insertAll requests in flight, or uploads for
+     * {@link #UPLOAD_BUFFERS}, may free them. A single acquisition bigger than the budget is let through once nothing
+     * is held.
+     *
+     * @return false if the bytes do not fit and there is nothing to wait for, nothing is acquired
+     */
+    synchronized boolean acquire(String stage, long bytes) throws InterruptedException {
+        long start = 0;
+        while(used + bytes > capacity && used > 0
+                && (held(IN_FLIGHT) > 0 || UPLOAD_BUFFERS.equals(stage) && held(UPLOAD_BUFFERS) > 0)){
+            if(start == 0){
+                start = System.nanoTime();
+            }
+            wait();
+        }
+        if(start != 0){
+            metrics.observe(UploadMetrics.MEMORY_WAIT, start);
+        }
+        if(used + bytes > capacity && used > 0){
+            return false;
+        }
+        add(stage, bytes);
+        return true;
+    }
+
+    /**
+     * Acquires given bytes even if that goes over the budget
+     */
+    synchronized void force(String stage, long bytes){
+        add(stage, bytes);
+    }
+
+    /**
+     * Hands bytes over from one stage to another, such as a batch that is submitted for sending
+     */
+    synchronized void transfer(String from, String to, long bytes){
+        stage(from)[0] -= bytes;
+        long[] s = stage(to);
+        s[0] += bytes;
+        raise(to, s);
+    }
+
+    synchronized void release(String stage, long bytes){
+        if(bytes == 0){
+            return;
+        }
+        used -= bytes;
+        stage(stage)[0] -= bytes;
+        notifyAll();
+    }
+
+    private void add(String stage, long bytes){
+        used += bytes;
+        if(used > maxUsed){
+            maxUsed = used;
+            metrics.set(UploadMetrics.MEMORY_USED_MAX, maxUsed);
+        }
+        long[] s = stage(stage);
+        s[0] += bytes;
+        raise(stage, s);
+    }
+
+    private void raise(String stage, long[] s){
+        if(s[0] > s[1]){
+            s[1] = s[0];
+            metrics.set("memory_" + stage + "_max_bytes", s[1]);
+        }
+    }
+
+    private long held(String stage){
+        long[] s = stages.get(stage);
+        return s == null ? 0 : s[0];
+    }
+
+    private long[] stage(String stage){
+        long[] s = stages.get(stage);
+        if(s == null){
+            s = new long[2];
+            stages.put(stage, s);
+        }
+        return s;
+    }
+}
@@ -0,0 +1,182 @@
+package com.cloudbees.bq;
+
+/**
+ * 128 bit murmur3 hash (x64 variant) of chars, the same as Guava's
+ * {@code Hashing.murmur3_128().hashUnencodedChars()}, but fed a char at a time and reusable, so that hashing a row
+ * allocates nothing. Not thread safe.
+ *
+ * @author Vivek Pandey
+ */
+final class Murmur3Hasher {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private long h1;
+    private long h2;
+    /** chars of the current 16 byte block, k1 holds the first 4 */
+    private long k1;
+    private long k2;
+    private int blockChars;
+    private long length;
+    private final char[] hex = new char[32];
+
+    Murmur3Hasher reset(){
+        h1 = 0;
+        h2 = 0;
+        k1 = 0;
+        k2 = 0;
+        blockChars = 0;
+        length = 0;
+        return this;
+    }
+
+    Murmur3Hasher putChar(char c){
+        if(blockChars < 4){
+            k1 |= (long) c << (blockChars * 16);
+        }else{
+            k2 |= (long) c << ((blockChars - 4) * 16);
+        }
+        if(++blockChars == 8){
+            bmix64();
+            k1 = 0;
+            k2 = 0;
+            blockChars = 0;
+            length += 16;
+        }
+        return this;
+    }
+
+    Murmur3Hasher putChars(CharSequence chars){
+        int i = 0;
+        int end = chars.length();
+        while(blockChars != 0 && i < end){
+            putChar(chars.charAt(i++));
+        }
+        // whole blocks at once
+        for(; i + 8 <= end; i += 8){
+            k1 = chars.charAt(i) | (long) chars.charAt(i + 1) << 16 | (long) chars.charAt(i + 2) << 32
+                    | (long) chars.charAt(i + 3) << 48;
+            k2 = chars.charAt(i + 4) | (long) chars.charAt(i + 5) << 16 | (long) chars.charAt(i + 6) << 32
+                    | (long) chars.charAt(i + 7) << 48;
+            bmix64();
+            length += 16;
+        }
+        if(blockChars == 0){
+            k1 = 0;
+            k2 = 0;
+        }
+        while(i < end){
+            putChar(chars.charAt(i++));
+        }
+        return this;
+    }
+
+    Murmur3Hasher putChars(char[] chars, int offset, int count){
+        int i = offset;
+        int end = offset + count;
+        while(blockChars != 0 && i < end){
+            putChar(chars[i++]);
+        }
+        // whole blocks at once
+        for(; i + 8 <= end; i += 8){
+            k1 = chars[i] | (long) chars[i + 1] << 16 | (long) chars[i + 2] << 32 | (long) chars[i + 3] << 48;
+            k2 = chars[i + 4] | (long) chars[i + 5] << 16 | (long) chars[i + 6] << 32 | (long) chars[i + 7] << 48;
+            bmix64();
+            length += 16;
+        }
+        if(blockChars == 0){
+            k1 = 0;
+            k2 = 0;
+        }
+        while(i < end){
+            putChar(chars[i++]);
+        }
+        return this;
+    }
+
+    Murmur3Hasher putLong(long value){
+        for(int i=0; i < 4; i++){
+            putChar((char) (value >>> (i * 16)));
+        }
+        return this;
+    }
+
+    /**
+     * Finishes the hash, after which only {@link #getH1()}, {@link #getH2()} and {@link #toHex()} can be called until
+     * the hasher is reset
+     */
+    Murmur3Hasher finish(){
+        if(blockChars > 0){
+            length += blockChars * 2;
+            h1 ^= mixK1(k1);
+            h2 ^= mixK2(k2);
+        }
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return this;
+    }
+
+    long getH1() {
+        return h1;
+    }
+
+    long getH2() {
+        return h2;
+    }
+
+    /**
+     * @return finished hash as 32 hex digits, of its bytes in little endian order like Guava's HashCode.toString()
+     */
+    String toHex(){
+        for(int i=0; i < 8; i++){
+            int b1 = (int) (h1 >>> (i * 8)) & 0xff;
+            int b2 = (int) (h2 >>> (i * 8)) & 0xff;
+            hex[i * 2] = HEX[b1 >>> 4];
+            hex[i * 2 + 1] = HEX[b1 & 0xf];
+            hex[16 + i * 2] = HEX[b2 >>> 4];
+            hex[16 + i * 2 + 1] = HEX[b2 & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private void bmix64(){
+        h1 ^= mixK1(k1);
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+        h2 ^= mixK2(k2);
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1(long k1){
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        return k1;
+    }
+
+    private static long mixK2(long k2){
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        return k2;
+    }
+
+    private static long fmix64(long k){
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,203 @@
+package com.cloudbees.bq;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the rows of a record file and runs them through a {@link RowProcessor}, in chunks processed in parallel by a
+ * pool of threads, while giving the processed rows back in file order.
+ *
+ * The reading thread stays ahead by at most twice as many chunks as there are threads, so memory use does not grow
+ * with the size of the record file. Chunks take their size from the {@link MemoryBudget} until all of their rows are
+ * handed out. Chunks read ahead only take up to half of it, leaving the rest to the stages the rows go to next.
+ *
+ * @author Vivek Pandey
+ */
+class ParallelRowReader implements Closeable {
+    private static final int CHUNK_SIZE = 1000;
+
+    /** Processed row with the line it was read from */
+    static final class Row {
+        final long lineNumber;
+        /** byte offset in the record file just after the line */
+        final long endOffset;
+        final String row;
+
+        private Row(long lineNumber, long endOffset, String row) {
+            this.lineNumber = lineNumber;
+            this.endOffset = endOffset;
+            this.row = row;
+        }
+    }
+
+    private final LineReader reader;
+    private final RowProcessor processor;
+    private final UploadMetrics metrics;
+    private final MemoryBudget budget;
+    private final ExecutorService workers;
+    private final int maxPending;
+    private final Deque<Future<List<Row>>> pending = new ArrayDeque<>();
+    /** bytes of the memory budget taken by each pending chunk */
+    private final Deque<Long> pendingBytes = new ArrayDeque<>();
+    private Iterator<Row> current = Collections.emptyIterator();
+    private long currentBytes;
+    /** chunk read that did not fit in the memory budget, submitted once pending chunks are handed out */
+    private List<Row> unsubmitted;
+    private boolean eof;
+
+    /**
+     * @param threads number of threads processing rows, with 1 rows are processed by the reading thread
+     */
+    ParallelRowReader(LineReader reader, RowProcessor processor, int threads, UploadMetrics metrics,
+                      MemoryBudget budget) {
+        this.reader = reader;
+        this.processor = processor;
+        this.metrics = metrics;
+        this.budget = budget;
+        this.maxPending = threads * 2;
+        this.workers = threads < 2 || processor.isPassThrough() ? null : Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("row-processor-%d").setDaemon(true).build());
+    }
+
+    /**
+     * @return next processed row, null at the end of the record file
+     */
+    Row next() throws IOException {
+        while(!current.hasNext()){
+            budget.release(MemoryBudget.READ_AHEAD, currentBytes);
+            currentBytes = 0;
+            if(workers == null){
+                List<Row> rows = read();
+                if(rows == null){
+                    return null;
+                }
+                currentBytes = acquire(sizeOf(rows));
+                current = process(rows).iterator();
+                continue;
+            }
+            while((!eof || unsubmitted != null) && pending.size() < maxPending){
+                final List<Row> rows = unsubmitted != null ? unsubmitted : read();
+                if(rows == null){
+                    break;
+                }
+                long bytes = sizeOf(rows);
+                if(pending.isEmpty()){
+                    acquire(bytes);
+                }else if(!budget.tryAcquire(MemoryBudget.READ_AHEAD, bytes, budget.getCapacity() / 2)){
+                    // hand out the rows read ahead first
+                    unsubmitted = rows;
+                    break;
+                }
+                unsubmitted = null;
+                pendingBytes.add(bytes);
+                pending.add(workers.submit(new Callable<List<Row>>() {
+                    @Override
+                    public List<Row> call() {
+                        return process(rows);
+                    }
+                }));
+            }
+            if(pending.isEmpty()){
+                return null;
+            }
+            try {
+                currentBytes = pendingBytes.poll();
+                current = pending.poll().get().iterator();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while processing rows", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to process rows: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        return current.next();
+    }
+
+    /**
+     * Takes given bytes from the memory budget for a chunk the reader can not do without, waiting for requests in
+     * flight to free them, going over the budget if there are none
+     *
+     * @return bytes taken
+     */
+    private long acquire(long bytes) throws IOException {
+        try {
+            if(!budget.acquire(MemoryBudget.READ_AHEAD, bytes)){
+                budget.force(MemoryBudget.READ_AHEAD, bytes);
+            }
+            return bytes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for memory", e);
+        }
+    }
+
+    private static long sizeOf(List<Row> rows){
+        long bytes = 0;
+        for(Row r : rows){
+            bytes += MemoryBudget.sizeOf(r.row);
+        }
+        return bytes;
+    }
+
+    /**
+     * @return next chunk of unprocessed rows, null at the end of the record file
+     */
+    private List<Row> read() throws IOException {
+        if(eof){
+            return null;
+        }
+        List<Row> rows = new ArrayList<>(CHUNK_SIZE);
+        String line;
+        long start = reader.getOffset();
+        while(rows.size() < CHUNK_SIZE && (line = reader.readLine()) != null){
+            rows.add(new Row(reader.getLineNumber(), reader.getOffset(), line));
+        }
+        metrics.increment(UploadMetrics.ROWS_READ, rows.size());
+        metrics.increment(UploadMetrics.BYTES_READ, reader.getOffset() - start);
+        if(rows.size() < CHUNK_SIZE){
+            eof = true;
+        }
+        return rows.isEmpty() ? null : rows;
+    }
+
+    private List<Row> process(List<Row> rows){
+        if(processor.isPassThrough()){
+            return rows;
+        }
+        List<Row> processed = new ArrayList<>(rows.size());
+        for(Row r : rows){
+            String row = processor.process(r.lineNumber, r.row);
+            if(row != null){
+                processed.add(new Row(r.lineNumber, r.endOffset, row));
+            }
+        }
+        return processed;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(workers != null){
+            workers.shutdownNow();
+        }
+        budget.release(MemoryBudget.READ_AHEAD, currentBytes);
+        currentBytes = 0;
+        for(long bytes : pendingBytes){
+            budget.release(MemoryBudget.READ_AHEAD, bytes);
+        }
+        pendingBytes.clear();
+        reader.close();
+    }
+}
@@ -0,0 +1,97 @@
+package com.cloudbees.bq;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rows of a record file split by the partition they are routed to, in to a newline delimited JSON file per partition
+ * in a temporary directory, so that each partition is loaded with its own load job. Closing deletes the files.
+ *
+ * Each partition has its own write buffer, flushed to its file as it fills up. At most {@value #MAX_OPEN_FILES} files
+ * are open at once, the one written to least recently is closed to open another, and appended to when it is written
+ * to again.
+ *
+ * @author Vivek Pandey
+ */
+class PartitionFiles implements Closeable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionFiles.class);
+    private static final int MAX_OPEN_FILES = 64;
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private final File dir;
+    private final Map<String, File> files = new TreeMap<>();
+    /** open files, least recently written first */
+    private final LinkedHashMap<String, OutputStream> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param source name of the record file the rows are read from
+     */
+    PartitionFiles(String source) throws IOException {
+        this.dir = Files.createTempDirectory("bq-upload-" + source + "-").toFile();
+    }
+
+    /**
+     * @param partition partition the row is routed to
+     * @param row JSON record
+     */
+    void write(String partition, String row) throws IOException {
+        OutputStream out = open.get(partition);
+        if(out == null){
+            if(open.size() >= MAX_OPEN_FILES){
+                Iterator<OutputStream> eldest = open.values().iterator();
+                eldest.next().close();
+                eldest.remove();
+            }
+            File file = files.get(partition);
+            if(file == null){
+                file = new File(dir, partition + ".json");
+                files.put(partition, file);
+            }
+            out = new BufferedOutputStream(new FileOutputStream(file, true), BUFFER_SIZE);
+            open.put(partition, out);
+        }
+        out.write(row.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+    }
+
+    /**
+     * Flushes and closes all files
+     *
+     * @return file of each partition, by partition
+     */
+    Map<String, File> finish() throws IOException {
+        for(OutputStream out : open.values()){
+            out.close();
+        }
+        open.clear();
+        return files;
+    }
+
+    @Override
+    public void close() {
+        for(OutputStream out : open.values()){
+            IOUtils.closeQuietly(out);
+        }
+        open.clear();
+        try {
+            FileUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete {}: {}", dir, e.getMessage());
+        }
+    }
+}
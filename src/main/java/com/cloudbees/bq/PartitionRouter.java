@@ -0,0 +1,176 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+
+import static com.cloudbees.bq.BigQueryConfig.PARTITION_BY_DAY;
+import static com.cloudbees.bq.BigQueryConfig.PARTITION_BY_MONTH;
+import static com.cloudbees.bq.BigQueryConfig.PARTITION_TABLE_DECORATOR;
+import static com.cloudbees.bq.BigQueryConfig.PARTITION_TABLE_SUFFIX;
+
+/**
+ * Routes rows to the day or month partition of the UTC date of a top level TIMESTAMP field, either a table named after
+ * the partition, such as usage_20160101 created from the table as a template, or a partition of a date partitioned
+ * table through its decorator, such as usage$20160101. Thread safe.
+ *
+ * The field is found by scanning the row up to it, it may be a timestamp string BigQuery understands, such as
+ * 2016-01-01 10:00:00 UTC or 2016-01-01T10:00:00+05:30, or seconds since the epoch.
+ *
+ * @author Vivek Pandey
+ */
+class PartitionRouter {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final String baseTableId;
+    private final String field;
+    private final boolean byMonth;
+    private final boolean decorator;
+
+    /**
+     * @param baseTableId table rows are routed to partitions of
+     * @param field top level TIMESTAMP field rows are routed by
+     * @param by {@link BigQueryConfig#PARTITION_BY_DAY} or {@link BigQueryConfig#PARTITION_BY_MONTH}
+     * @param table {@link BigQueryConfig#PARTITION_TABLE_SUFFIX} or {@link BigQueryConfig#PARTITION_TABLE_DECORATOR}
+     */
+    PartitionRouter(String baseTableId, String field, String by, String table) {
+        this.baseTableId = baseTableId;
+        this.field = field;
+        this.byMonth = PARTITION_BY_MONTH.equals(by);
+        this.decorator = PARTITION_TABLE_DECORATOR.equals(table);
+    }
+
+    /**
+     * @param row JSON record
+     * @return partition of the row, yyyyMMdd or yyyyMM
+     * @throws IOException if the row is not a JSON object or its timestamp is missing or invalid
+     */
+    String route(String row) throws IOException {
+        try (JsonParser p = JSON.createParser(row)) {
+            if(p.nextToken() != JsonToken.START_OBJECT){
+                throw new JsonParseException("Record is not a JSON object", p.getCurrentLocation());
+            }
+            while(p.nextToken() == JsonToken.FIELD_NAME){
+                boolean found = field.equals(p.getCurrentName());
+                JsonToken value = p.nextToken();
+                if(!found){
+                    p.skipChildren();
+                }else if(value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT){
+                    return partition(epochDate(p.getDoubleValue()));
+                }else if(value == JsonToken.VALUE_STRING){
+                    return partition(parseDate(p.getText()));
+                }else{
+                    throw new JsonParseException("Invalid " + field + ": " + value, p.getCurrentLocation());
+                }
+            }
+            throw new JsonParseException("Missing " + field, p.getCurrentLocation());
+        }
+    }
+
+    /**
+     * @return table to load rows of given partition in to
+     */
+    String getTableId(String partition){
+        return baseTableId + (decorator ? "$" : "_") + partition;
+    }
+
+    /**
+     * @return table to stream rows of given partition in to, the partition decorator with
+     *         {@link BigQueryConfig#PARTITION_TABLE_DECORATOR}
+     */
+    String getStreamingTableId(String partition){
+        return decorator ? getTableId(partition) : baseTableId;
+    }
+
+    /**
+     * @return template suffix to stream rows of given partition with, null with
+     *         {@link BigQueryConfig#PARTITION_TABLE_DECORATOR}
+     */
+    String getTemplateSuffix(String partition){
+        return decorator ? null : "_" + partition;
+    }
+
+    /**
+     * @return table whose schema given table is created with, the routed table itself if it is not a partition
+     */
+    String getBaseTableId(String tableId){
+        if(tableId.length() <= baseTableId.length() || !tableId.startsWith(baseTableId)){
+            return tableId;
+        }
+        char separator = tableId.charAt(baseTableId.length());
+        String partition = tableId.substring(baseTableId.length() + 1);
+        if(separator != (decorator ? '$' : '_') || partition.length() != (byMonth ? 6 : 8) || !isDigits(partition)){
+            return tableId;
+        }
+        return baseTableId;
+    }
+
+    private String partition(LocalDate date){
+        int key = byMonth ? date.getYear() * 100 + date.getMonthValue()
+                : date.getYear() * 10000 + date.getMonthValue() * 100 + date.getDayOfMonth();
+        String s = Integer.toString(key);
+        int length = byMonth ? 6 : 8;
+        if(s.length() < length){
+            // years before 1000
+            s = "00000000".substring(0, length - s.length()) + s;
+        }
+        return s;
+    }
+
+    private LocalDate epochDate(double seconds){
+        return LocalDate.ofEpochDay((long) Math.floor(seconds / 86400));
+    }
+
+    /**
+     * UTC date of a timestamp string. The date is read off the string unless it has an offset other than UTC.
+     */
+    private LocalDate parseDate(String timestamp) throws IOException {
+        String s = timestamp.trim();
+        try {
+            if(isDigits(s.replace(".", "")) && !s.isEmpty()){
+                return epochDate(Double.parseDouble(s));
+            }
+            if(s.length() < 10 || s.charAt(4) != '-' || s.charAt(7) != '-' || !isDigits(s.substring(0, 4))
+                    || !isDigits(s.substring(5, 7)) || !isDigits(s.substring(8, 10))){
+                throw new IOException("Invalid " + field + ": " + timestamp);
+            }
+            LocalDate date = LocalDate.of(Integer.parseInt(s.substring(0, 4)), Integer.parseInt(s.substring(5, 7)),
+                    Integer.parseInt(s.substring(8, 10)));
+            String time = s.substring(10);
+            if(time.isEmpty() || time.endsWith("UTC") || time.endsWith("Z")
+                    || (time.indexOf('+') < 0 && time.indexOf('-') < 0)){
+                return date;
+            }
+            // 2016-01-01 23:00:00 -05:00 is on January 2nd in UTC
+            String iso = s.substring(0, 10) + "T" + time.trim().replace(" ", "");
+            return OffsetDateTime.parse(iso).withOffsetSameInstant(ZoneOffset.UTC).toLocalDate();
+        } catch (DateTimeException | NumberFormatException e) {
+            throw new IOException("Invalid " + field + ": " + timestamp, e);
+        }
+    }
+
+    private static boolean isDigits(String s){
+        for(int i=0; i < s.length(); i++){
+            if(s.charAt(i) < '0' || s.charAt(i) > '9'){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Describes the routing, so that a streaming checkpoint is only resumed with the same routing
+     */
+    @Override
+    public String toString() {
+        return field + ":" + (byMonth ? PARTITION_BY_MONTH : PARTITION_BY_DAY) + ":"
+                + (decorator ? PARTITION_TABLE_DECORATOR : PARTITION_TABLE_SUFFIX);
+    }
+}
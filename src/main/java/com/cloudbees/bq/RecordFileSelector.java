@@ -0,0 +1,129 @@
+package com.cloudbees.bq;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Selects record files of a directory to upload, by glob pattern and by the date in their name (yyyyMMdd, as in
+ * census file names), ordered newest or oldest first. Files with no date in their name are ordered by name, after the
+ * dated ones oldest first and before them newest first. Files that are not record files are left out whatever the
+ * glob pattern: names starting with a dot or ending with .tmp, being written, and the resumable upload sessions and
+ * streaming checkpoints saved next to record files.
+ *
+ * @author Vivek Pandey
+ */
+public class RecordFileSelector {
+    private static final Pattern DATE = Pattern.compile("(\\d{8})");
+
+    private final File dir;
+    private String glob = "*";
+    private String fromDate;
+    private String toDate;
+    private boolean newestFirst = true;
+
+    public RecordFileSelector(File dir) {
+        this.dir = dir;
+    }
+
+    public RecordFileSelector glob(String glob){
+        if(glob != null){
+            this.glob = glob;
+        }
+        return this;
+    }
+
+    /**
+     * @param fromDate yyyyMMdd, files dated before are left out
+     */
+    public RecordFileSelector fromDate(String fromDate){
+        this.fromDate = checkDate(fromDate, "-fromDate");
+        return this;
+    }
+
+    /**
+     * @param toDate yyyyMMdd, files dated after are left out
+     */
+    public RecordFileSelector toDate(String toDate){
+        this.toDate = checkDate(toDate, "-toDate");
+        return this;
+    }
+
+    public RecordFileSelector newestFirst(boolean newestFirst){
+        this.newestFirst = newestFirst;
+        return this;
+    }
+
+    public List<File> select(){
+        List<File> files = new ArrayList<>();
+        try(DirectoryStream<Path> paths = Files.newDirectoryStream(dir.toPath(), glob)) {
+            for(Path path : paths){
+                File f = path.toFile();
+                if(!f.isFile() || isIgnored(f)){
+                    continue;
+                }
+                String date = getDate(f);
+                if((fromDate != null || toDate != null) && date == null){
+                    continue;
+                }
+                if(fromDate != null && date.compareTo(fromDate) < 0 || toDate != null && date.compareTo(toDate) > 0){
+                    continue;
+                }
+                files.add(f);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list record files in "+dir.getAbsolutePath()+": "+e.getMessage(), e);
+        }
+
+        Comparator<File> oldestFirst = new Comparator<File>() {
+            @Override
+            public int compare(File l, File r) {
+                String ld = getDate(l);
+                String rd = getDate(r);
+                // undated files come after dated ones, so that the order is the same whichever files are compared
+                if(ld == null || rd == null){
+                    if(ld != rd){
+                        return ld == null ? 1 : -1;
+                    }
+                }else if(!ld.equals(rd)){
+                    return ld.compareTo(rd);
+                }
+                return l.getName().compareTo(r.getName());
+            }
+        };
+        Collections.sort(files, newestFirst ? Collections.reverseOrder(oldestFirst) : oldestFirst);
+        return files;
+    }
+
+    /**
+     * @return true if given file is not a record file to upload
+     */
+    static boolean isIgnored(File f){
+        return f.getName().startsWith(".") || f.getName().endsWith(".tmp")
+                || f.getName().contains(BigQueryJobUploader.SESSION_FILE_SUFFIX)
+                || f.getName().endsWith(StreamingCheckpoint.SUFFIX);
+    }
+
+    /**
+     * @return first yyyyMMdd in the file name, null if there is none
+     */
+    static String getDate(File file){
+        Matcher m = DATE.matcher(file.getName());
+        return m.find() ? m.group(1) : null;
+    }
+
+    private static String checkDate(String date, String option){
+        if(date != null && !date.matches("\\d{8}")){
+            throw new IllegalArgumentException(option+" must be in yyyyMMdd format");
+        }
+        return date;
+    }
+}
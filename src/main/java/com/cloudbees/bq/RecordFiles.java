@@ -0,0 +1,85 @@
+package com.cloudbees.bq;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Helpers to read BigQuery record files, plain or gzip compressed (.gz)
+ *
+ * @author Vivek Pandey
+ */
+final class RecordFiles {
+    static final String GZIP_EXTENSION = ".gz";
+
+    private static final int BUFFER_SIZE = 64*1024;
+
+    private RecordFiles() {
+    }
+
+    static boolean isGzip(File file){
+        return file.getName().endsWith(GZIP_EXTENSION);
+    }
+
+    /**
+     * Opens given record file for reading, gzip compressed files are decompressed as they are read.
+     */
+    static InputStream open(File file) throws IOException {
+        InputStream is = new FileInputStream(file);
+        try {
+            if (isGzip(file)) {
+                return new GZIPInputStream(is, BUFFER_SIZE);
+            }
+            return new BufferedInputStream(is, BUFFER_SIZE);
+        }catch (IOException e){
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens given record file for reading from given byte offset of its uncompressed content. A plain file is
+     * positioned there directly, a gzip compressed one has to be decompressed up to it.
+     */
+    static InputStream open(File file, long offset) throws IOException {
+        if(offset == 0){
+            return open(file);
+        }
+        if(isGzip(file)){
+            InputStream is = open(file);
+            try {
+                ByteStreams.skipFully(is, offset);
+            }catch (IOException e){
+                is.close();
+                throw e;
+            }
+            return is;
+        }
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            channel.position(offset);
+        }catch (IOException e){
+            channel.close();
+            throw e;
+        }
+        return new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+    }
+
+    /**
+     * Gives file name without .gz extension
+     */
+    static String stripGzipExtension(String name){
+        if(name.endsWith(GZIP_EXTENSION)){
+            return name.substring(0, name.length() - GZIP_EXTENSION.length());
+        }
+        return name;
+    }
+}
@@ -0,0 +1,138 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Newline delimited JSON file rows that could not be inserted, even after retries, are spilled to. Each entry has the
+ * table, the template suffix, the insertId and the row, so that a later run with -replay sends them again exactly as they were sent.
+ *
+ * @author Vivek Pandey
+ */
+public class ReplayFile {
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final File file;
+    private Writer writer;
+
+    public ReplayFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param templateSuffix null if the row was inserted in to the table itself
+     * @param insertId null if the row has none
+     * @param row JSON record
+     */
+    public synchronized void write(String tableId, String templateSuffix, String insertId, String row){
+        try {
+            if(writer == null){
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                        StandardCharsets.UTF_8));
+            }
+            // the generator is not closed, that would close the writer
+            JsonGenerator g = JSON.createGenerator(writer);
+            g.writeStartObject();
+            g.writeStringField("table", tableId);
+            if(templateSuffix != null){
+                g.writeStringField("templateSuffix", templateSuffix);
+            }
+            g.writeStringField("insertId", insertId);
+            g.writeFieldName("json");
+            g.writeRawValue(row);
+            g.writeEndObject();
+            g.flush();
+            writer.write('\n');
+            writer.flush();
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to write replay file " + file.getAbsolutePath() + ": "
+                    + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Moves spilled rows aside to replay them, so that rows failing again are spilled to a new replay file. Rows moved
+     * aside by an earlier replay that did not finish are replayed too.
+     *
+     * @return file with the rows to replay, null if there are none
+     */
+    synchronized File takeForReplay() throws IOException {
+        File replaying = new File(file.getPath() + ".replaying");
+        if(file.exists()){
+            if(writer != null){
+                writer.close();
+                writer = null;
+            }
+            if(replaying.exists()){
+                try(Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(replaying, true),
+                        StandardCharsets.UTF_8))){
+                    w.write(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                }
+                Files.delete(file.toPath());
+            }else{
+                Files.move(file.toPath(), replaying.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        return replaying.exists() ? replaying : null;
+    }
+
+    Entry parse(String line) throws IOException {
+        Entry e = new Entry();
+        try (JsonParser p = JSON.createParser(line)) {
+            if(p.nextToken() != JsonToken.START_OBJECT){
+                throw new JsonParseException("Replay entry is not a JSON object", p.getCurrentLocation());
+            }
+            while(p.nextToken() == JsonToken.FIELD_NAME){
+                String name = p.getCurrentName();
+                p.nextToken();
+                if(name.equals("json")){
+                    StringWriter json = new StringWriter();
+                    try (JsonGenerator g = JSON.createGenerator(json)) {
+                        g.copyCurrentStructure(p);
+                    }
+                    e.json = json.toString();
+                }else if(name.equals("table")){
+                    e.table = p.getValueAsString();
+                }else if(name.equals("templateSuffix")){
+                    e.templateSuffix = p.getValueAsString();
+                }else if(name.equals("insertId")){
+                    e.insertId = p.getValueAsString();
+                }else{
+                    p.skipChildren();
+                }
+            }
+        }
+        return e;
+    }
+
+    static class Entry {
+        String table;
+
+        /** null if the row was spilled with no template suffix */
+        String templateSuffix;
+
+        /** null if the row has none */
+        String insertId;
+
+        /** JSON record */
+        String json;
+    }
+}
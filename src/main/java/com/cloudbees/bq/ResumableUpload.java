@@ -0,0 +1,300 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.AbstractInputStreamContent;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Job;
+import com.google.common.io.ByteStreams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Load job media upload using the resumable upload protocol, with the upload session persisted to a file so that a
+ * later run can continue an interrupted upload from the last offset the server confirmed instead of sending the whole
+ * file again.
+ *
+ * The upload content must be the same on every run, it is read again from the start and the confirmed bytes skipped.
+ *
+ * @author Vivek Pandey
+ */
+class ResumableUpload {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResumableUpload.class);
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final Bigquery bigquery;
+    private final String projectId;
+    private final Job job;
+    private final AbstractInputStreamContent content;
+    private final File source;
+    private final File sessionFile;
+    private final String part;
+    private final int chunkSize;
+    private final UploadProgress progress;
+    private final boolean gzip;
+    private final ObjectMapper om = new ObjectMapper();
+
+    /**
+     * @param source record file the content is read from, a session is only resumed if this file did not change
+     * @param sessionFile file the upload session is persisted to
+     * @param part part of the source file that is uploaded, a session is only resumed for the same part
+     * @param gzip send chunks with gzip Content-Encoding, their Content-Range still counts uncompressed bytes
+     */
+    ResumableUpload(BigQueryConfig config, Job job, AbstractInputStreamContent content, File source, File sessionFile,
+                    String part, UploadProgress progress, boolean gzip) {
+        this.bigquery = config.getBigQuery();
+        this.projectId = config.getProjectId();
+        this.job = job;
+        this.content = content;
+        this.source = source;
+        this.sessionFile = sessionFile;
+        this.part = part;
+        this.chunkSize = config.getUploadChunkSize();
+        this.progress = progress;
+        this.gzip = gzip;
+    }
+
+    /**
+     * Uploads the content, resuming the persisted session if there is one.
+     *
+     * @return inserted load job
+     */
+    Job execute() throws IOException {
+        long length = content.getLength();
+        String destination = job.getConfiguration().getLoad().getDestinationTable().getTableId()
+                + "/" + job.getConfiguration().getLoad().getWriteDisposition() + "/" + part;
+        Session session = loadSession(length, destination);
+        long offset = 0;
+        if(session != null){
+            Status status = queryStatus(session.uri, length);
+            if(status.job != null){
+                LOGGER.info("Upload of {} was already complete", sessionFile.getName());
+                deleteSession();
+                return status.job;
+            }else if(status.expired){
+                LOGGER.info("Upload session of {} expired, starting over", source.getName());
+                session = null;
+            }else{
+                offset = status.confirmed;
+                LOGGER.info("Resuming upload of {} at byte {}", source.getName(), offset);
+            }
+        }
+        if(session == null){
+            session = new Session();
+            session.uri = initiate(length);
+            session.source = source.getAbsolutePath();
+            session.sourceLength = source.length();
+            session.sourceLastModified = source.lastModified();
+            session.destination = destination;
+            session.length = length;
+            saveSession(session);
+        }
+        progress.resumedAt(offset);
+        Job result = upload(session, offset, length);
+        deleteSession();
+        return result;
+    }
+
+    private Job upload(Session session, long offset, long length) throws IOException {
+        try(PushbackInputStream in = new PushbackInputStream(content.getInputStream(), 1)) {
+            ByteStreams.skipFully(in, offset);
+            byte[] buf = new byte[chunkSize];
+            // buf holds content from offset on, that the server has not confirmed yet
+            int buffered = 0;
+            boolean eof = false;
+            int attempt = 1;
+            while (true) {
+                while (buffered < chunkSize && !eof) {
+                    int n = in.read(buf, buffered, chunkSize - buffered);
+                    if (n == -1) {
+                        eof = true;
+                    } else {
+                        buffered += n;
+                    }
+                }
+                if (!eof) {
+                    int b = in.read();
+                    if (b == -1) {
+                        eof = true;
+                    } else {
+                        in.unread(b);
+                    }
+                }
+                long total = length >= 0 ? length : (eof ? offset + buffered : -1);
+                Status status;
+                try {
+                    status = putChunk(session.uri, buf, buffered, offset, total);
+                } catch (IOException e) {
+                    if (attempt >= MAX_ATTEMPTS) {
+                        throw e;
+                    }
+                    LOGGER.warn("Failed to upload chunk at byte {} of {}: {}, checking upload status", offset,
+                            source.getName(), e.getMessage());
+                    status = queryStatus(session.uri, total);
+                }
+                if (status.job != null) {
+                    progress.update(offset + buffered);
+                    return status.job;
+                }
+                if (status.expired) {
+                    throw new IOException("Upload session of " + source.getName() + " expired");
+                }
+                if (status.confirmed < offset) {
+                    throw new IOException("Upload session of " + source.getName() + " lost bytes it confirmed, at byte "
+                            + status.confirmed + " instead of " + offset);
+                }
+                int sent = (int) (status.confirmed - offset);
+                if (sent > 0) {
+                    System.arraycopy(buf, sent, buf, 0, buffered - sent);
+                    buffered -= sent;
+                    offset = status.confirmed;
+                    attempt = 1;
+                    session.offset = offset;
+                    saveSession(session);
+                    progress.update(offset);
+                } else if (attempt++ >= MAX_ATTEMPTS) {
+                    // a failed chunk or one the server did not take any of, sending it again may never end
+                    throw new IOException("Upload of " + source.getName() + " made no progress at byte " + offset
+                            + " in " + MAX_ATTEMPTS + " attempts");
+                }
+            }
+        }
+    }
+
+    private String initiate(long length) throws IOException {
+        GenericUrl url = new GenericUrl(bigquery.getRootUrl() + "upload/" + bigquery.getServicePath() + "projects/"
+                + projectId + "/jobs");
+        url.put("uploadType", "resumable");
+        HttpRequest request = bigquery.getRequestFactory()
+                .buildPostRequest(url, new JsonHttpContent(bigquery.getJsonFactory(), job));
+        request.getHeaders().set("X-Upload-Content-Type", content.getType());
+        if(length >= 0){
+            request.getHeaders().set("X-Upload-Content-Length", length);
+        }
+        HttpResponse response = request.execute();
+        try {
+            String location = response.getHeaders().getLocation();
+            if(location == null){
+                throw new IOException("No upload session URI in resumable upload response");
+            }
+            return location;
+        }finally {
+            response.disconnect();
+        }
+    }
+
+    private Status putChunk(String uri, byte[] buf, int length, long offset, long total) throws IOException {
+        String size = total >= 0 ? Long.toString(total) : "*";
+        String range = length == 0
+                ? "bytes */" + size
+                : String.format("bytes %s-%s/%s", offset, offset + length - 1, size);
+        return put(uri, new ByteArrayContent(content.getType(), buf, 0, length), range);
+    }
+
+    private Status queryStatus(String uri, long total) throws IOException {
+        return put(uri, new ByteArrayContent(content.getType(), new byte[0]),
+                "bytes */" + (total >= 0 ? Long.toString(total) : "*"));
+    }
+
+    private Status put(String uri, ByteArrayContent body, String contentRange) throws IOException {
+        HttpRequest request = bigquery.getRequestFactory().buildPutRequest(new GenericUrl(uri), body);
+        request.getHeaders().setContentRange(contentRange);
+        if(gzip && body.getLength() > 0){
+            request.setEncoding(new GZipEncoding());
+        }
+        request.setThrowExceptionOnExecuteError(false);
+        request.setFollowRedirects(false);
+        request.setParser(bigquery.getObjectParser());
+        HttpResponse response = request.execute();
+        try {
+            Status status = new Status();
+            if (response.isSuccessStatusCode()) {
+                status.job = response.parseAs(Job.class);
+            } else if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                String range = response.getHeaders().getRange();
+                // Range: bytes=0-N, no Range header if nothing was received
+                status.confirmed = range == null ? 0 : Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+            } else if (response.getStatusCode() == 404 || response.getStatusCode() == 410) {
+                status.expired = true;
+            } else {
+                throw new HttpResponseException(response);
+            }
+            return status;
+        }finally {
+            response.disconnect();
+        }
+    }
+
+    private Session loadSession(long length, String destination) throws IOException {
+        if(!sessionFile.exists()){
+            return null;
+        }
+        Session session = om.readValue(sessionFile, Session.class);
+        if(!source.getAbsolutePath().equals(session.source) || source.length() != session.sourceLength
+                || source.lastModified() != session.sourceLastModified || length != session.length
+                || !destination.equals(session.destination)){
+            LOGGER.info("{} changed since upload session was saved, starting over", source.getName());
+            return null;
+        }
+        return session;
+    }
+
+    private void saveSession(Session session) throws IOException {
+        File tmp = new File(sessionFile.getPath() + ".tmp");
+        om.writeValue(tmp, session);
+        Files.move(tmp.toPath(), sessionFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void deleteSession() throws IOException {
+        Files.deleteIfExists(sessionFile.toPath());
+    }
+
+    /**
+     * Upload session persisted between runs
+     */
+    static class Session {
+        @JsonProperty("uri")
+        public String uri;
+
+        @JsonProperty("source")
+        public String source;
+
+        @JsonProperty("sourceLength")
+        public long sourceLength;
+
+        @JsonProperty("sourceLastModified")
+        public long sourceLastModified;
+
+        @JsonProperty("destination")
+        public String destination;
+
+        /** length of the upload content, -1 if not known upfront */
+        @JsonProperty("length")
+        public long length;
+
+        /** bytes confirmed by the server */
+        @JsonProperty("offset")
+        public long offset;
+    }
+
+    private static class Status {
+        private Job job;
+        private long confirmed;
+        private boolean expired;
+    }
+}
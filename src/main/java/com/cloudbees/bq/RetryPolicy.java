@@ -0,0 +1,156 @@
+package com.cloudbees.bq;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import com.google.common.collect.ImmutableSet;
+import org.apache.http.NoHttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which failed BigQuery calls are retried and how long to back off before retrying them.
+ *
+ * Rate limit errors (429 and rateLimitExceeded), server errors (5xx, backendError and internalError) and I/O errors
+ * without a response are retried, anything else is permanent. Each operation is retried up to maxRetries times with
+ * exponential backoff and jitter. All operations of a run share a retry budget, once it is used up failures are no
+ * longer retried, so a BigQuery outage does not keep a run retrying for hours.
+ *
+ * @author Vivek Pandey
+ */
+public class RetryPolicy {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 32000;
+    private static final Set<String> RETRYABLE_REASONS = ImmutableSet.of("backendError", "internalError",
+            "rateLimitExceeded");
+
+    interface Operation<T>{
+        T run() throws IOException, InterruptedException;
+    }
+
+    private final int maxRetries;
+    private final AtomicInteger budget;
+    private final UploadMetrics metrics;
+
+    /**
+     * @param maxRetries number of times a single operation is retried
+     * @param budget number of retries of all operations together
+     */
+    public RetryPolicy(int maxRetries, int budget, UploadMetrics metrics) {
+        this.maxRetries = maxRetries;
+        this.budget = new AtomicInteger(budget);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs given operation, retrying it while it fails with a retryable error
+     *
+     * @param what description of the operation to log
+     */
+    <T> T execute(String what, Operation<T> operation) throws IOException, InterruptedException {
+        for(int attempt = 1; ; attempt++){
+            try {
+                return operation.run();
+            } catch (IOException | RuntimeException e) {
+                if(!canRetry(e, attempt)){
+                    throw e;
+                }
+                LOGGER.warn("{} failed: {}, retrying ({} of {})", what, e.getMessage(), attempt, maxRetries);
+                backoff(attempt);
+            }
+        }
+    }
+
+    /**
+     * Tells whether an operation that failed with given error on given attempt is to be retried, taking the retry
+     * from the budget if so
+     */
+    boolean canRetry(Throwable error, int attempt){
+        return isRetryable(error) && canRetry(attempt);
+    }
+
+    /**
+     * Tells whether an operation that failed with a retryable error on given attempt is to be retried, taking the
+     * retry from the budget if so
+     */
+    boolean canRetry(int attempt){
+        if(attempt > maxRetries){
+            return false;
+        }
+        if(budget.getAndDecrement() <= 0){
+            LOGGER.warn("Retry budget used up, not retrying");
+            return false;
+        }
+        metrics.increment(UploadMetrics.REQUESTS_RETRIED, 1);
+        return true;
+    }
+
+    /**
+     * Waits before retrying an operation that failed on given attempt
+     */
+    void backoff(int attempt) throws InterruptedException {
+        long backoff = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempt - 1, 16));
+        Thread.sleep(backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+    }
+
+    static boolean isRetryable(Throwable error){
+        if(error instanceof UploadFailedException){
+            return false;
+        }
+        if(error instanceof JobFailedException){
+            return isRetryable(((JobFailedException) error).getReason());
+        }
+        if(error instanceof GoogleJsonResponseException){
+            GoogleJsonError details = ((GoogleJsonResponseException) error).getDetails();
+            if(details != null && details.getErrors() != null){
+                for(GoogleJsonError.ErrorInfo e : details.getErrors()){
+                    if(isRetryable(e.getReason())){
+                        return true;
+                    }
+                }
+            }
+        }
+        if(error instanceof HttpResponseException){
+            int status = ((HttpResponseException) error).getStatusCode();
+            return status == 429 || status >= 500;
+        }
+        // no response, connection refused, reset or timed out; other I/O errors, such as of reading a record file,
+        // fail the same way when retried
+        return error instanceof SocketTimeoutException || error instanceof SocketException
+                || error instanceof SSLException || error instanceof NoHttpResponseException;
+    }
+
+    /**
+     * Rows of an insertAll request that were not inserted because of a retryable error, or because other rows of the
+     * request were invalid (reason stopped), can be sent again
+     */
+    static boolean isRetryable(TableDataInsertAllResponse.InsertErrors insertErrors){
+        if(insertErrors.getErrors() == null){
+            return false;
+        }
+        for(ErrorProto e : insertErrors.getErrors()){
+            if(!"stopped".equals(e.getReason()) && !isRetryable(e.getReason())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param reason reason of a BigQuery error, such as backendError or invalid
+     */
+    static boolean isRetryable(String reason){
+        return RETRYABLE_REASONS.contains(reason);
+    }
+}
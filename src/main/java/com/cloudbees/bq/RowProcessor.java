@@ -0,0 +1,98 @@
+package com.cloudbees.bq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transforms and validates the rows of a record file before they are uploaded. Rows that fail either are logged,
+ * written to the dead letter file if there is one, and left out. A record file read again by a retried or resumed
+ * upload is read with the same processor, its rows are only rejected once. Thread safe.
+ *
+ * @author Vivek Pandey
+ */
+class RowProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RowProcessor.class);
+
+    private final String source;
+    private final RowTransformer transformer;
+    private final SchemaValidator validator;
+    private final DeadLetterFile deadLetters;
+    private final UploadMetrics metrics;
+    private final AtomicLong rejected = new AtomicLong();
+    /** line numbers of the rows rejected so far */
+    private final Set<Long> rejectedLines = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    /**
+     * @param source name of the record file rows are read from
+     * @param transformer null if rows are not transformed
+     * @param validator null if rows are not validated
+     * @param deadLetters null if rejected rows are only logged
+     */
+    RowProcessor(String source, RowTransformer transformer, SchemaValidator validator, DeadLetterFile deadLetters,
+                 UploadMetrics metrics) {
+        this.source = source;
+        this.transformer = transformer;
+        this.validator = validator;
+        this.deadLetters = deadLetters;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @return true if rows are uploaded as they are read
+     */
+    boolean isPassThrough(){
+        return transformer == null && validator == null;
+    }
+
+    /**
+     * @return row to upload, null if the row was rejected
+     */
+    String process(long lineNumber, String row){
+        if(transformer != null){
+            try {
+                row = transformer.transform(row);
+            } catch (IOException e) {
+                reject(lineNumber, row, Collections.singletonList("failed to transform: " + e.getMessage()));
+                return null;
+            }
+        }
+        if(validator != null){
+            List<String> errors = validator.validate(row);
+            if(!errors.isEmpty()){
+                reject(lineNumber, row, errors);
+                return null;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * @return number of rows rejected so far
+     */
+    long getRejected(){
+        return rejected.get();
+    }
+
+    /**
+     * Logs a row that can not be uploaded, counts it and writes it to the dead letter file if there is one. A row that
+     * was rejected before is left alone.
+     */
+    void reject(long lineNumber, String row, List<String> reasons){
+        if(!rejectedLines.add(lineNumber)){
+            return;
+        }
+        rejected.incrementAndGet();
+        metrics.increment(UploadMetrics.ROWS_REJECTED, 1);
+        LOGGER.error("Rejected line {} of {}: {}", lineNumber, source, reasons);
+        if(deadLetters != null){
+            deadLetters.write(source, lineNumber, row, reasons);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.cloudbees.bq;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Gives the records of the wrapped record file as transformed and validated by a {@link RowProcessor}, as they are
+ * read, so a load job can upload transformed records without writing them to a file first.
+ *
+ * Records that fail to transform or validate are left out.
+ *
+ * @author Vivek Pandey
+ */
+class RowTransformInputStream extends InputStream {
+    private final ParallelRowReader rows;
+    private byte[] buf = new byte[0];
+    private int pos;
+    private boolean eof;
+
+    /**
+     * @param threads number of threads processing records
+     */
+    RowTransformInputStream(InputStream in, RowProcessor processor, int threads, UploadMetrics metrics,
+                            MemoryBudget budget) {
+        this.rows = new ParallelRowReader(new LineReader(in), processor, threads, metrics, budget);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()){
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0){
+            return 0;
+        }
+        if(!fill()){
+            return -1;
+        }
+        int n = Math.min(len, buf.length - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * Makes sure there are bytes left in buf, reading next processed record if needed.
+     *
+     * @return false at the end of the record file
+     */
+    private boolean fill() throws IOException {
+        while(pos == buf.length && !eof){
+            ParallelRowReader.Row row = rows.next();
+            if(row == null){
+                eof = true;
+                break;
+            }
+            buf = (row.row + "\n").getBytes(StandardCharsets.UTF_8);
+            pos = 0;
+        }
+        return pos < buf.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        rows.close();
+    }
+}
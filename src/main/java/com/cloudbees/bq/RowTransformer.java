@@ -0,0 +1,17 @@
+package com.cloudbees.bq;
+
+import java.io.IOException;
+
+/**
+ * Reshapes a JSON record before it is uploaded to BigQuery. Implementations must be thread safe.
+ *
+ * @author Vivek Pandey
+ */
+public interface RowTransformer {
+    /**
+     * @param row JSON record, one line of the record file without line terminator
+     * @return transformed JSON record, it must not contain new lines
+     * @throws IOException if the row could not be transformed, the row is skipped
+     */
+    String transform(String row) throws IOException;
+}
@@ -0,0 +1,269 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.services.bigquery.model.TableFieldSchema;
+import com.google.api.services.bigquery.model.TableSchema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Checks JSON records against a table schema before they are uploaded, the way BigQuery would check them, so that
+ * rows it would reject are found before any data is sent.
+ *
+ * The schema is compiled once in to a tree of fields, each record is then checked in a single pass over its JSON
+ * tokens without building the record in memory. Nested RECORD and REPEATED fields are checked recursively. Fields not
+ * in the schema are not reported, uploads ignore unknown values. Instances are thread safe.
+ *
+ * @author Vivek Pandey
+ */
+public class SchemaValidator {
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final int MAX_VALUE_LENGTH = 100;
+
+    private static final Pattern INTEGER = Pattern.compile("[+-]?\\d+");
+    private static final Pattern DATE = Pattern.compile("\\d{4}-\\d{1,2}-\\d{1,2}");
+    private static final Pattern TIME = Pattern.compile("\\d{1,2}:\\d{1,2}:\\d{1,2}(\\.\\d{1,6})?");
+    private static final Pattern DATETIME = Pattern.compile(DATE + "([ T]" + TIME + ")?");
+    private static final Pattern TIMESTAMP = Pattern.compile(DATE
+            + "([ T]\\d{1,2}:\\d{1,2}(:\\d{1,2}(\\.\\d{1,6})?)?)?(\\s*(Z|UTC|[+-]\\d{1,2}(:?\\d{2})?))?");
+
+    private enum Type {STRING, BYTES, INTEGER, FLOAT, BOOLEAN, TIMESTAMP, DATE, TIME, DATETIME, RECORD, OTHER}
+
+    private final Record root;
+
+    private SchemaValidator(Record root) {
+        this.root = root;
+    }
+
+    public static SchemaValidator compile(TableSchema schema){
+        return new SchemaValidator(compile(schema.getFields()));
+    }
+
+    private static Record compile(List<TableFieldSchema> schema){
+        Record record = new Record();
+        if(schema == null){
+            return record;
+        }
+        for(TableFieldSchema s : schema){
+            Field f = new Field();
+            f.name = s.getName();
+            f.index = record.fields.size();
+            f.type = toType(s.getType());
+            f.required = "REQUIRED".equals(s.getMode());
+            f.repeated = "REPEATED".equals(s.getMode());
+            if(f.type == Type.RECORD){
+                f.record = compile(s.getFields());
+            }
+            record.fields.put(f.name.toLowerCase(Locale.ENGLISH), f);
+            if(f.required){
+                record.required.add(f);
+            }
+        }
+        return record;
+    }
+
+    private static Type toType(String type){
+        switch (type == null ? "" : type){
+            case "STRING": return Type.STRING;
+            case "BYTES": return Type.BYTES;
+            case "INTEGER": case "INT64": return Type.INTEGER;
+            case "FLOAT": case "FLOAT64": case "NUMERIC": return Type.FLOAT;
+            case "BOOLEAN": case "BOOL": return Type.BOOLEAN;
+            case "TIMESTAMP": return Type.TIMESTAMP;
+            case "DATE": return Type.DATE;
+            case "TIME": return Type.TIME;
+            case "DATETIME": return Type.DATETIME;
+            case "RECORD": case "STRUCT": return Type.RECORD;
+            default: return Type.OTHER;
+        }
+    }
+
+    /**
+     * @param row JSON record
+     * @return reasons the record would be rejected, empty if it is valid
+     */
+    public List<String> validate(String row){
+        List<String> errors = new ArrayList<>();
+        try (JsonParser p = JSON.createParser(row)) {
+            if(p.nextToken() != JsonToken.START_OBJECT){
+                return Collections.singletonList("record is not a JSON object");
+            }
+            validateRecord(p, root, "", errors);
+            if(p.nextToken() != null){
+                errors.add("unexpected content after record");
+            }
+        } catch (JsonParseException e) {
+            errors.add("invalid JSON: " + e.getOriginalMessage());
+        } catch (IOException e) {
+            errors.add("failed to read record: " + e.getMessage());
+        }
+        return errors;
+    }
+
+    /**
+     * Checks fields of a JSON object, the parser is at its START_OBJECT and is left at its END_OBJECT
+     */
+    private void validateRecord(JsonParser p, Record record, String path, List<String> errors) throws IOException {
+        boolean[] seen = record.required.isEmpty() ? null : new boolean[record.fields.size()];
+        while(p.nextToken() == JsonToken.FIELD_NAME){
+            Field f = record.fields.get(p.getCurrentName().toLowerCase(Locale.ENGLISH));
+            p.nextToken();
+            if(f == null){
+                p.skipChildren();
+                continue;
+            }
+            if(seen != null){
+                seen[f.index] = true;
+            }
+            validateField(p, f, path + f.name, errors);
+        }
+        if(seen != null){
+            for(Field f : record.required){
+                if(!seen[f.index]){
+                    errors.add(path + f.name + ": required field is missing");
+                }
+            }
+        }
+    }
+
+    private void validateField(JsonParser p, Field f, String path, List<String> errors) throws IOException {
+        JsonToken token = p.getCurrentToken();
+        if(token == JsonToken.VALUE_NULL){
+            if(f.required){
+                errors.add(path + ": required field is null");
+            }
+            return;
+        }
+        if(!f.repeated){
+            validateValue(p, f, path, errors);
+            return;
+        }
+        if(token != JsonToken.START_ARRAY){
+            errors.add(path + ": expected array of " + f.type + ", got " + describe(p));
+            p.skipChildren();
+            return;
+        }
+        int i = 0;
+        while(p.nextToken() != JsonToken.END_ARRAY){
+            if(p.getCurrentToken() == JsonToken.VALUE_NULL){
+                errors.add(path + "[" + i + "]: repeated field can not have null elements");
+            }else{
+                validateValue(p, f, path + "[" + i + "]", errors);
+            }
+            i++;
+        }
+    }
+
+    private void validateValue(JsonParser p, Field f, String path, List<String> errors) throws IOException {
+        JsonToken token = p.getCurrentToken();
+        if(f.type == Type.RECORD){
+            if(token == JsonToken.START_OBJECT){
+                validateRecord(p, f.record, path + ".", errors);
+            }else{
+                errors.add(path + ": expected RECORD, got " + describe(p));
+                p.skipChildren();
+            }
+            return;
+        }
+        if(token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY){
+            errors.add(path + ": expected " + f.type + ", got " + describe(p));
+            p.skipChildren();
+            return;
+        }
+        boolean valid;
+        switch (f.type){
+            case INTEGER:
+                valid = token == JsonToken.VALUE_NUMBER_INT && p.getNumberType() != JsonParser.NumberType.BIG_INTEGER
+                        || token == JsonToken.VALUE_STRING && isLong(p.getText());
+                break;
+            case FLOAT:
+                valid = token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT
+                        || token == JsonToken.VALUE_STRING && isDouble(p.getText());
+                break;
+            case BOOLEAN:
+                valid = token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE
+                        || token == JsonToken.VALUE_STRING && (p.getText().equalsIgnoreCase("true")
+                        || p.getText().equalsIgnoreCase("false"));
+                break;
+            case TIMESTAMP:
+                valid = token == JsonToken.VALUE_NUMBER_INT || token == JsonToken.VALUE_NUMBER_FLOAT
+                        || token == JsonToken.VALUE_STRING && TIMESTAMP.matcher(p.getText().trim()).matches();
+                break;
+            case DATE:
+                valid = token == JsonToken.VALUE_STRING && DATE.matcher(p.getText()).matches();
+                break;
+            case TIME:
+                valid = token == JsonToken.VALUE_STRING && TIME.matcher(p.getText()).matches();
+                break;
+            case DATETIME:
+                valid = token == JsonToken.VALUE_STRING && DATETIME.matcher(p.getText()).matches();
+                break;
+            case BYTES:
+                valid = token == JsonToken.VALUE_STRING;
+                break;
+            default:
+                // STRING takes any scalar value
+                valid = true;
+        }
+        if(!valid){
+            errors.add(path + ": expected " + f.type + ", got " + describe(p));
+        }
+    }
+
+    private static boolean isLong(String s){
+        if(!INTEGER.matcher(s).matches()){
+            return false;
+        }
+        try {
+            Long.parseLong(s.startsWith("+") ? s.substring(1) : s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDouble(String s){
+        try {
+            Double.parseDouble(s);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String describe(JsonParser p) throws IOException {
+        switch (p.getCurrentToken()){
+            case START_OBJECT: return "object";
+            case START_ARRAY: return "array";
+            case VALUE_STRING:
+                String s = p.getText();
+                return "\"" + (s.length() > MAX_VALUE_LENGTH ? s.substring(0, MAX_VALUE_LENGTH) + "..." : s) + "\"";
+            default: return p.getText();
+        }
+    }
+
+    private static class Record {
+        /** fields by lower case name, BigQuery field names are case insensitive */
+        private final Map<String, Field> fields = new HashMap<>();
+        private final List<Field> required = new ArrayList<>();
+    }
+
+    private static class Field {
+        private String name;
+        private int index;
+        private Type type;
+        private boolean required;
+        private boolean repeated;
+        private Record record;
+    }
+}
@@ -0,0 +1,265 @@
+package com.cloudbees.bq;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps uploading record files as they appear in a spool directory, with one BigQuery client, connection pool and
+ * table metadata cache for all of them.
+ *
+ * A file is claimed by moving it in to the processing directory, so it is uploaded once even if several daemons watch
+ * the same directory, and moved to the done or failed directory once its upload is over. Files must be moved in to
+ * the spool directory when they are complete, names starting with a dot or ending with .tmp are left alone so that
+ * they can be written in place first.
+ *
+ * Files are claimed only as upload threads become free, so that stopping the daemon only waits for the uploads in
+ * progress. Files left in the processing directory by a daemon that did not stop cleanly are uploaded again first,
+ * from where they are so that a -resumableUpload session or -streamingCheckpoint saved next to them is resumed.
+ *
+ * @author Vivek Pandey
+ */
+public class SpoolDaemon {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpoolDaemon.class);
+
+    /** seconds between scans of the spool directory when there are no file events, in case some are missed */
+    private static final int RESCAN_INTERVAL_SEC = 30;
+
+    private final BigQueryApi app;
+    private final RecordFileSelector selector;
+    private final File spoolDir;
+    private final File processingDir;
+    private final File doneDir;
+    private final File failedDir;
+    private final int threads;
+    private final Semaphore freeThreads;
+    /** files left in the processing directory, not uploaded again yet */
+    private final List<File> leftOver = new ArrayList<>();
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean stopping;
+    private volatile WatchService watcher;
+
+    /**
+     * @param selector selects the record files of the spool directory to upload
+     * @param threads number of files uploaded at once
+     */
+    public SpoolDaemon(BigQueryApi app, RecordFileSelector selector, File spoolDir, int threads) {
+        this.app = app;
+        this.selector = selector;
+        this.spoolDir = spoolDir;
+        this.processingDir = new File(spoolDir, "processing");
+        this.doneDir = new File(spoolDir, "done");
+        this.failedDir = new File(spoolDir, "failed");
+        this.threads = threads;
+        this.freeThreads = new Semaphore(threads);
+    }
+
+    /**
+     * Uploads files of the spool directory until {@link #stop()} is called, stopping the JVM stops the daemon too
+     */
+    public void run(){
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("spool-upload-%d").setDaemon(true).build());
+        Thread shutdownHook = new Thread("spool-shutdown") {
+            @Override
+            public void run() {
+                SpoolDaemon.this.stop();
+            }
+        };
+        try {
+            for(File dir : new File[]{processingDir, doneDir, failedDir}){
+                Files.createDirectories(dir.toPath());
+            }
+            recover();
+            watcher = spoolDir.toPath().getFileSystem().newWatchService();
+            spoolDir.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+            LOGGER.info("Watching {} for record files to upload", spoolDir);
+            while(!stopping){
+                boolean backlog = claim(executor);
+                // with files waiting for a free thread look again soon, a finished upload sends no file event
+                WatchKey key = watcher.poll(backlog ? 1 : RESCAN_INTERVAL_SEC, TimeUnit.SECONDS);
+                if(key != null){
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to watch spool directory "+spoolDir.getAbsolutePath()+": "
+                    + e.getMessage(), e);
+        } finally {
+            stopping = true;
+            LOGGER.info("Stopping, waiting for uploads in progress to finish");
+            executor.shutdown();
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeWatcher();
+            stopped.countDown();
+            if(!Thread.currentThread().getName().equals(shutdownHook.getName())){
+                try {
+                    Runtime.getRuntime().removeShutdownHook(shutdownHook);
+                } catch (IllegalStateException e) {
+                    // already shutting down
+                }
+            }
+            LOGGER.info("Stopped watching {}", spoolDir);
+        }
+    }
+
+    /**
+     * Stops claiming files and waits for the uploads in progress to finish
+     */
+    public void stop(){
+        stopping = true;
+        closeWatcher();
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeWatcher(){
+        WatchService w = watcher;
+        if(w != null){
+            try {
+                w.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close spool directory watcher: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Claims files of the spool directory for free upload threads
+     *
+     * @return true if there are files left waiting for a free thread
+     */
+    private boolean claim(ExecutorService executor){
+        while(!leftOver.isEmpty()){
+            if(stopping || !freeThreads.tryAcquire()){
+                return !stopping;
+            }
+            submit(executor, leftOver.remove(0));
+        }
+        for(File f : selector.select()){
+            if(stopping){
+                return false;
+            }
+            if(!freeThreads.tryAcquire()){
+                return true;
+            }
+            File claimed = new File(processingDir, f.getName());
+            try {
+                Files.move(f.toPath(), claimed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // claimed by another daemon
+                freeThreads.release();
+                continue;
+            } catch (IOException e) {
+                freeThreads.release();
+                LOGGER.error("Failed to claim "+f.getAbsolutePath()+": "+e.getMessage(), e);
+                continue;
+            }
+            submit(executor, claimed);
+        }
+        return false;
+    }
+
+    /**
+     * Uploads a claimed file with a free thread taken
+     */
+    private void submit(ExecutorService executor, final File claimed){
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    upload(claimed);
+                } finally {
+                    freeThreads.release();
+                }
+            }
+        });
+    }
+
+    private void upload(File file){
+        long start = System.currentTimeMillis();
+        File target = failedDir;
+        try {
+            if(app.upload(file)){
+                target = doneDir;
+                LOGGER.info("Uploaded {} in {} sec", file.getName(),
+                        TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - start));
+            }else{
+                LOGGER.error("Skipped {}, there was a previous attempt to upload it", file.getName());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Failed to upload "+file.getName()+": "+e.getMessage(), e);
+        }
+        move(file, target);
+    }
+
+    /**
+     * Moves given file, along with resumable upload sessions and streaming checkpoint saved next to it, to given
+     * directory
+     */
+    private void move(File file, File dir){
+        File[] sessions = processingDir.listFiles();
+        List<File> files = new ArrayList<>(Collections.singletonList(file));
+        for(File f : sessions == null ? new File[0] : sessions){
+            if(f.getName().startsWith(file.getName() + BigQueryJobUploader.SESSION_FILE_SUFFIX)
+                    || f.getName().equals(file.getName() + StreamingCheckpoint.SUFFIX)){
+                files.add(f);
+            }
+        }
+        for(File f : files){
+            try {
+                Files.move(f.toPath(), new File(dir, f.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                LOGGER.error("Failed to move "+f.getAbsolutePath()+" to "+dir.getAbsolutePath()+": "+e.getMessage(),
+                        e);
+            }
+        }
+    }
+
+    /**
+     * Finds files left in the processing directory, to upload them again
+     */
+    private void recover(){
+        File[] left = processingDir.listFiles();
+        if(left == null){
+            return;
+        }
+        for(File f : left){
+            if(f.isFile() && !RecordFileSelector.isIgnored(f)){
+                LOGGER.info("Upload of {} did not finish, uploading it again", f.getName());
+                leftOver.add(f);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Progress of a streaming upload, saved next to the record file so that a failed upload is resumed by the next run
+ * after the last acknowledged batch instead of from the start.
+ *
+ * Every batch up to the saved position was inserted, with its failed rows logged, written to the dead letter file or
+ * spilled to the replay file. Batches after it may have been inserted too, they are sent again and rely on insertIds
+ * to not be inserted twice.
+ *
+ * A position is saved at most once per interval, to a temporary file that is synced to disk and then renamed, so a
+ * crash leaves either the previous checkpoint or the new one.
+ *
+ * @author Vivek Pandey
+ */
+class StreamingCheckpoint {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingCheckpoint.class);
+    static final String SUFFIX = ".stream-checkpoint";
+
+    private final File source;
+    private final File file;
+    private final long sourceLength;
+    private final long sourceLastModified;
+    private final String destination;
+    private final long intervalMs;
+    private final ObjectMapper om = new ObjectMapper();
+    /** acknowledged position not saved yet */
+    private Position pending;
+    private long savedAt = System.currentTimeMillis();
+
+    /**
+     * @param destination table and template suffix rows are inserted in to, a checkpoint is only resumed for the same
+     * @param intervalMs minimum time between two saves
+     */
+    StreamingCheckpoint(File source, String destination, long intervalMs) {
+        this.source = source;
+        this.file = getFile(source);
+        this.sourceLength = source.length();
+        this.sourceLastModified = source.lastModified();
+        this.destination = destination;
+        this.intervalMs = intervalMs;
+    }
+
+    static File getFile(File source){
+        return new File(source.getPath() + SUFFIX);
+    }
+
+    /**
+     * @return saved position to resume at, null if there is none or the record file changed since it was saved
+     */
+    Position load() throws IOException {
+        if(!file.exists()){
+            return null;
+        }
+        Position position = om.readValue(file, Position.class);
+        if(!source.getAbsolutePath().equals(position.source) || sourceLength != position.sourceLength
+                || sourceLastModified != position.sourceLastModified
+                || !destination.equals(position.destination)){
+            LOGGER.info("{} changed since streaming checkpoint was saved, starting over", source.getName());
+            return null;
+        }
+        return position;
+    }
+
+    /**
+     * Records that every batch up to given position is acknowledged, saving it if the interval is over
+     *
+     * @param offset byte offset in the record file to resume reading at, just after the last line of the batch
+     * @param lineNumber number of the lines before offset
+     */
+    synchronized void acknowledged(long offset, long lineNumber){
+        Position position = new Position();
+        position.source = source.getAbsolutePath();
+        position.sourceLength = sourceLength;
+        position.sourceLastModified = sourceLastModified;
+        position.destination = destination;
+        position.offset = offset;
+        position.lineNumber = lineNumber;
+        pending = position;
+        if(System.currentTimeMillis() - savedAt >= intervalMs){
+            flush();
+        }
+    }
+
+    /**
+     * Saves the last acknowledged position, if it was not saved yet
+     */
+    synchronized void flush(){
+        if(pending == null){
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.wrap(om.writeValueAsBytes(pending));
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.debug("Saved streaming checkpoint of {} at line {}", source.getName(), pending.lineNumber);
+            pending = null;
+        } catch (IOException e) {
+            // the upload goes on, a resumed upload starts at an earlier checkpoint
+            LOGGER.warn("Failed to save streaming checkpoint {}: {}", file, e.getMessage());
+        }
+        savedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Deletes the checkpoint, once the record file is uploaded
+     */
+    synchronized void delete(){
+        pending = null;
+        try {
+            Files.deleteIfExists(file.toPath());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to delete streaming checkpoint {}: {}", file, e.getMessage());
+        }
+    }
+
+    /**
+     * Position in the record file persisted between runs
+     */
+    static class Position {
+        @JsonProperty("source")
+        public String source;
+
+        @JsonProperty("sourceLength")
+        public long sourceLength;
+
+        @JsonProperty("sourceLastModified")
+        public long sourceLastModified;
+
+        @JsonProperty("destination")
+        public String destination;
+
+        /** byte offset of the uncompressed record file to resume reading at */
+        @JsonProperty("offset")
+        public long offset;
+
+        /** number of the lines before offset */
+        @JsonProperty("lineNumber")
+        public long lineNumber;
+    }
+}
@@ -0,0 +1,125 @@
+package com.cloudbees.bq;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reader/sender pipeline for streaming uploads.
+ *
+ * The reader (calling thread) assembles batches and hands them over with {@link #submit(InsertAllBatch)}, a pool of
+ * sender threads takes them off a bounded queue and sends them. At most senderThreads insertAll requests are in flight
+ * and at most queueCapacity batches wait for a sender, when the queue is full the reader blocks, so memory use does not
+ * grow with the size of the record file. The {@link MemoryBudget} bytes of a batch are in flight from when it is
+ * submitted until it is sent.
+ *
+ * @author Vivek Pandey
+ */
+class StreamingPipeline {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingPipeline.class);
+
+    /** Tells a sender thread there are no more batches */
+    private static final InsertAllBatch END = new InsertAllBatch();
+
+    interface Sender{
+        /**
+         * Sends given batch
+         *
+         * @return number of rows in the batch that BigQuery rejected
+         */
+        int send(InsertAllBatch batch) throws IOException, InterruptedException;
+    }
+
+    private final BlockingQueue<InsertAllBatch> queue;
+    private final ExecutorService senders;
+    private final int senderThreads;
+    private final CompletionLog completionLog;
+    private final MemoryBudget budget;
+    private long nextSequence;
+
+    /**
+     * @param checkpoint checkpoint of the upload advanced as batches complete, null if there is none
+     */
+    StreamingPipeline(String tableId, int senderThreads, int queueCapacity, StreamingCheckpoint checkpoint,
+                      MemoryBudget budget, final Sender sender) {
+        this.senderThreads = senderThreads;
+        this.budget = budget;
+        this.completionLog = new CompletionLog(checkpoint);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.senders = Executors.newFixedThreadPool(senderThreads,
+                new ThreadFactoryBuilder().setNameFormat("insertAll-"+tableId+"-%d").setDaemon(true).build());
+        for(int i=0; i < senderThreads; i++){
+            senders.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        InsertAllBatch batch;
+                        while((batch = queue.take()) != END){
+                            try {
+                                completionLog.completed(batch, sender.send(batch));
+                            }catch (InterruptedException e){
+                                completionLog.failed(batch, e);
+                                throw e;
+                            }catch (Exception e){
+                                completionLog.failed(batch, e);
+                            }finally {
+                                budget.release(MemoryBudget.IN_FLIGHT, batch.getMemoryBytes());
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues given batch for sending, blocks while the queue is full.
+     */
+    void submit(InsertAllBatch batch) throws InterruptedException {
+        batch.setSequence(nextSequence++);
+        budget.transfer(MemoryBudget.BATCHES, MemoryBudget.IN_FLIGHT, batch.getMemoryBytes());
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            budget.release(MemoryBudget.IN_FLIGHT, batch.getMemoryBytes());
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for all submitted batches to complete and stops sender threads.
+     */
+    CompletionLog awaitCompletion() throws InterruptedException {
+        for(int i=0; i < senderThreads; i++){
+            queue.put(END);
+        }
+        senders.shutdown();
+        while(!senders.awaitTermination(1, TimeUnit.MINUTES)){
+            LOGGER.info("Waiting for {} batches to be sent", queue.size());
+        }
+        return completionLog;
+    }
+
+    /**
+     * Stops sender threads without waiting for queued batches, used when the reader fails.
+     */
+    void abort(){
+        List<InsertAllBatch> queued = new ArrayList<>();
+        queue.drainTo(queued);
+        for(InsertAllBatch batch : queued){
+            budget.release(MemoryBudget.IN_FLIGHT, batch.getMemoryBytes());
+        }
+        senders.shutdownNow();
+    }
+}
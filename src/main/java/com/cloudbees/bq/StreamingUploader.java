@@ -1,17 +1,31 @@
 package com.cloudbees.bq;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.google.api.client.http.AbstractInputStreamContent;
-import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.GZipEncoding;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.UriTemplate;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.ErrorProto;
 import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
-import org.apache.commons.io.FileUtils;
+import com.google.common.base.Utf8;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.LineIterator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,85 +34,385 @@ import java.util.Map;
 public class StreamingUploader extends Uploader {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(BigQueryApi.class);
+    private static final String INSERT_ALL_PATH = "projects/{projectId}/datasets/{datasetId}/tables/{tableId}/insertAll";
+
+    private final InsertIdExtractor insertIdExtractor;
+
+    /** insertAll request body buffer of each sender thread, reused for all its requests */
+    private final ThreadLocal<ByteArrayOutputStream> requestBuffers = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream();
+        }
+    };
 
     public StreamingUploader(BigQueryConfig config) {
         super(config);
+        this.insertIdExtractor = new InsertIdExtractor(config.getInsertIdField(), config.getInsertIdHashFields());
     }
 
-    public void doUpload(String tableId, File uploadFile) {
-        final Iterator<String> rows;
+    public void doUpload(final String tableId, final File uploadFile) {
+        RowProcessor processor = createRowProcessor(tableId, uploadFile);
+        PartitionRouter router = config.getPartitionRouter();
+        MemoryBudget budget = config.getMemoryBudget();
+        StreamingCheckpoint checkpoint = null;
+        final ParallelRowReader rows;
+        long offset = 0;
+        long lineNumber = 0;
         try {
-
-            rows = FileUtils.lineIterator(uploadFile, "UTF-8");
+            StreamingCheckpoint.Position resumeAt = null;
+            if(config.isStreamingCheckpoint()){
+                checkpoint = new StreamingCheckpoint(uploadFile,
+                        tableId + "/" + (router == null ? config.getTemplateSuffix() : router),
+                        config.getCheckpointIntervalInSec() * 1000L);
+                resumeAt = checkpoint.load();
+            }
+            if(resumeAt != null){
+                offset = resumeAt.offset;
+                lineNumber = resumeAt.lineNumber;
+                LOGGER.info("Resuming upload of {} after line {}", uploadFile.getName(), lineNumber);
+            }
+            rows = new ParallelRowReader(new LineReader(RecordFiles.open(uploadFile, offset), offset, lineNumber),
+                    processor, config.getRowThreads(), config.getMetrics(), budget);
         } catch (IOException e) {
             throw new RuntimeException("Failed to read BigQuery doUpload file: "+uploadFile.getAbsolutePath(), e);
         }
 
-        Iterator<TableDataInsertAllResponse> responses = new Iterator<TableDataInsertAllResponse>() {
-            /**
-             * Check whether there is another row to stream.
-             *
-             * @return True if there is another row in the stream
-             */
-            public boolean hasNext() {
-                return rows.hasNext();
+        StreamingPipeline pipeline = new StreamingPipeline(tableId, config.getSenderThreads(),
+                config.getReadAheadBatches(), checkpoint, budget, new StreamingPipeline.Sender() {
+            @Override
+            public int send(InsertAllBatch batch) throws IOException, InterruptedException {
+                return insertAll(tableId, uploadFile.getName(), batch);
             }
-
-            /**
-             * Insert the next row, and return the response.
-             *
-             * @return Next page of data
-             */
-            public TableDataInsertAllResponse next() {
+        });
+        // batch being filled for each partition, in the order they were started
+        Map<String, InsertAllBatch> batches = new LinkedHashMap<>();
+        long bufferedBytes = 0;
+        long maxBufferedBytes = config.getMaxBatchBytes() * config.getReadAheadBatches();
+        CompletionLog completionLog;
+        try {
+            ParallelRowReader.Row row;
+            while ((row = rows.next()) != null) {
+                String insertId;
+                String partition = null;
                 try {
-                    Map<String,Object> m = om.readValue(rows.next(), new TypeReference<Map<String,Object>>() {});
-                    if(m != null){
-                        TableDataInsertAllRequest.Rows r = new TableDataInsertAllRequest.Rows();
-                        if(config.getInsertIdField() != null){
-                            String insertionId = (String) m.get(config.getInsertIdField());
-                            if(insertionId != null){
-                                r.setInsertId(insertionId);
-                            }
-                        }
-                        r.setJson(m);
-                        return config.getBigQuery().tabledata().insertAll(
-                                config.getProjectId(),
-                                config.getDatasetId(),
-                                tableId,
-                                new TableDataInsertAllRequest()
-                                        .setIgnoreUnknownValues(true)
-                                        .setTemplateSuffix(config.getTemplateSuffix())
-                                        .setRows(Collections.singletonList(r)))
-                                .execute();
-                    }
+                    insertId = insertIdExtractor.extract(row.row);
                 } catch (IOException e) {
-                    LOGGER.error(e.getMessage(), e);
+                    reject(uploadFile.getName(), row.row, row.lineNumber, "invalid JSON: " + e.getMessage());
+                    continue;
+                }
+                if(router != null){
+                    try {
+                        partition = router.route(row.row);
+                    } catch (IOException e) {
+                        reject(uploadFile.getName(), row.row, row.lineNumber, "no partition: " + e.getMessage());
+                        continue;
+                    }
+                }
+                // payload size in UTF-8, as the request is sent
+                long rowSize = Utf8.encodedLength(row.row);
+                long memory = InsertAllBatch.memoryOf(row.row, insertId, rowSize);
+                while(!budget.acquire(MemoryBudget.BATCHES, memory)){
+                    if(batches.isEmpty()){
+                        // nothing left to free, go over the budget by a row rather than wait for ever
+                        budget.force(MemoryBudget.BATCHES, memory);
+                        break;
+                    }
+                    // the budget is taken by batches being filled, send the batch started first to free it
+                    InsertAllBatch oldest = batches.values().iterator().next();
+                    bufferedBytes -= oldest.getSizeInBytes();
+                    submit(pipeline, batches, oldest);
+                }
+                InsertAllBatch batch = batches.get(partition);
+                if(batch != null
+                        && batch.isFull(config.getMaxBatchRows(), config.getMaxBatchBytes(), rowSize)) {
+                    bufferedBytes -= batch.getSizeInBytes();
+                    submit(pipeline, batches, batch);
+                    batch = null;
+                }
+                if(batch == null){
+                    batch = new InsertAllBatch(partition);
+                    batch.setStartPosition(offset, lineNumber);
+                    batches.put(partition, batch);
+                }
+                bufferedBytes -= batch.getSizeInBytes();
+                batch.add(row.row, insertId, row.lineNumber, rowSize);
+                batch.setResumePosition(row.endOffset, row.lineNumber);
+                bufferedBytes += batch.getSizeInBytes();
+                offset = row.endOffset;
+                lineNumber = row.lineNumber;
+                while(bufferedBytes > maxBufferedBytes){
+                    // rows of too many partitions are buffered, send the batch started first
+                    InsertAllBatch oldest = batches.values().iterator().next();
+                    bufferedBytes -= oldest.getSizeInBytes();
+                    submit(pipeline, batches, oldest);
                 }
-                return null;
             }
+            while(!batches.isEmpty()){
+                submit(pipeline, batches, batches.values().iterator().next());
+            }
+            completionLog = pipeline.awaitCompletion();
+        } catch (InterruptedException e) {
+            pipeline.abort();
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while uploading "+uploadFile.getAbsolutePath(), e);
+        } catch (IOException e) {
+            pipeline.abort();
+            throw new RuntimeException("Failed to read BigQuery doUpload file: "+uploadFile.getAbsolutePath(), e);
+        } catch (RuntimeException e) {
+            pipeline.abort();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(rows);
+            for(InsertAllBatch batch : batches.values()){
+                budget.release(MemoryBudget.BATCHES, batch.getMemoryBytes());
+            }
+            if(checkpoint != null){
+                checkpoint.flush();
+            }
+        }
+        LOGGER.info("Streaming doUpload of table {} completed: {} rows inserted, {} rows failed, {} rows rejected",
+                config.getTableId(), completionLog.getInsertedRows(), completionLog.getFailedRows(),
+                processor.getRejected());
+        if(completionLog.getFailedBatches() > 0){
+            throw new RuntimeException(String.format("%s insertAll requests to table %s failed",
+                    completionLog.getFailedBatches(), tableId));
+        }
+        if(checkpoint != null){
+            checkpoint.delete();
+        }
+    }
+
+    /**
+     * An upload that failed can be resumed if there is a streaming checkpoint saved for it
+     */
+    @Override
+    protected boolean canResume(File content) {
+        return config.isStreamingCheckpoint() && StreamingCheckpoint.getFile(content).exists();
+    }
 
-            public void remove() {
-                this.next();
+    /**
+     * Submits the batch of a partition, no more rows are added to it. Rows of other partitions read before its last
+     * row may still be buffered, the batch is then only acknowledged up to the first of them, so that a resumed upload
+     * does not skip them.
+     */
+    private void submit(StreamingPipeline pipeline, Map<String, InsertAllBatch> batches, InsertAllBatch batch)
+            throws InterruptedException {
+        batches.remove(batch.getPartition());
+        for(InsertAllBatch buffered : batches.values()){
+            if(buffered.getStartOffset() < batch.getResumeOffset()){
+                batch.setResumePosition(buffered.getStartOffset(), buffered.getStartLineNumber());
             }
+        }
+        pipeline.submit(batch);
+    }
 
-        };
+    /**
+     * Inserts rows spilled to the replay file by earlier runs again. Rows that fail again are spilled to the replay
+     * file anew.
+     */
+    public void replay(){
+        ReplayFile replayFile = config.getReplayFile();
+        File replaying;
+        try {
+            replaying = replayFile.takeForReplay();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read replay file: "+replayFile.getFile().getAbsolutePath(), e);
+        }
+        if(replaying == null){
+            LOGGER.info("No rows to replay in {}", replayFile.getFile());
+            return;
+        }
+        // batches by table and template suffix
+        Map<List<String>, InsertAllBatch> batches = new HashMap<>();
+        long lineNumber = 0;
+        long failed = 0;
+        LineIterator lines = null;
+        try {
+            lines = IOUtils.lineIterator(new FileInputStream(replaying), "UTF-8");
+            while(lines.hasNext()){
+                String line = lines.next();
+                lineNumber++;
+                ReplayFile.Entry e = replayFile.parse(line);
+                // rows spilled with no template suffix get the configured one, as before suffixes were recorded
+                List<String> destination = Arrays.asList(e.table,
+                        e.templateSuffix == null ? config.getTemplateSuffix() : e.templateSuffix);
+                InsertAllBatch batch = batches.get(destination);
+                long rowSize = Utf8.encodedLength(e.json);
+                if(batch != null && batch.isFull(config.getMaxBatchRows(), config.getMaxBatchBytes(), rowSize)){
+                    failed += insertAll(e.table, destination.get(1), replaying.getName(), batch);
+                    batch = null;
+                }
+                if(batch == null){
+                    batch = new InsertAllBatch();
+                    batches.put(destination, batch);
+                }
+                batch.add(e.json, e.insertId, lineNumber, rowSize);
+            }
+            for(Map.Entry<List<String>, InsertAllBatch> e : batches.entrySet()){
+                failed += insertAll(e.getKey().get(0), e.getKey().get(1), replaying.getName(), e.getValue());
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to replay "+replaying.getAbsolutePath()+": "+e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while replaying "+replaying.getAbsolutePath(), e);
+        } finally {
+            LineIterator.closeQuietly(lines);
+        }
+        LOGGER.info("Replayed {} rows from {}, {} failed", lineNumber, replayFile.getFile(), failed);
+        if(!replaying.delete()){
+            LOGGER.warn("Failed to delete {}", replaying);
+        }
+    }
+
+    /**
+     * Sends given batch to the table, or to the partition its rows were routed to
+     */
+    private int insertAll(String tableId, String source, InsertAllBatch batch) throws IOException, InterruptedException {
+        if(batch.getPartition() == null){
+            return insertAll(tableId, config.getTemplateSuffix(), source, batch);
+        }
+        PartitionRouter router = config.getPartitionRouter();
+        return insertAll(router.getStreamingTableId(batch.getPartition()),
+                router.getTemplateSuffix(batch.getPartition()), source, batch);
+    }
 
-        while (responses.hasNext()) {
-            TableDataInsertAllResponse response = responses.next();
-            if(response == null){
-                continue;
+    /**
+     * Sends given batch with insertAll requests.
+     *
+     * Rows failing with a retryable error are sent again, as long as the retry policy allows, rows that still fail are
+     * spilled to the replay file. Rows BigQuery rejects as invalid are logged with their line number and written to
+     * the dead letter file if there is one.
+     *
+     * @param templateSuffix null if rows are inserted in to the table itself
+     * @return number of rows that could not be inserted
+     * @throws IOException if the request failed and rows could not be spilled to a replay file
+     */
+    private int insertAll(String tableId, String templateSuffix, String source, InsertAllBatch batch)
+            throws IOException, InterruptedException {
+        RetryPolicy retryPolicy = config.getRetryPolicy();
+        UploadMetrics metrics = config.getMetrics();
+        List<Integer> pending = new ArrayList<>(batch.size());
+        for(int i=0; i < batch.size(); i++){
+            pending.add(i);
+        }
+        int failed = 0;
+        for(int attempt = 1; ; attempt++){
+            TableDataInsertAllResponse response;
+            long start = System.nanoTime();
+            try {
+                response = insertAll(tableId, new InsertAllContent(requestBuffers.get(), templateSuffix, batch,
+                        pending));
+            } catch (IOException e) {
+                metrics.observe(UploadMetrics.INSERT_ALL, start);
+                if(retryPolicy.canRetry(e, attempt)){
+                    metrics.increment(UploadMetrics.ROWS_RETRIED, pending.size());
+                    LOGGER.warn("insertAll of lines {}-{} failed: {}, retrying ({} rows)", batch.getFirstLineNumber(),
+                            batch.getLastLineNumber(), e.getMessage(), pending.size());
+                    retryPolicy.backoff(attempt);
+                    continue;
+                }
+                if(config.getReplayFile() == null){
+                    throw e;
+                }
+                LOGGER.error("insertAll of lines {}-{} failed: {}", batch.getFirstLineNumber(),
+                        batch.getLastLineNumber(), e.getMessage());
+                failed += spill(tableId, templateSuffix, batch, pending);
+                metrics.increment(UploadMetrics.ROWS_FAILED, failed);
+                return failed;
+            }
+            metrics.observe(UploadMetrics.INSERT_ALL, start);
+            if(attempt == 1){
+                metrics.increment(UploadMetrics.BYTES_SENT, batch.getSizeInBytes());
+            }
+            if(response.getInsertErrors() == null || response.getInsertErrors().isEmpty()){
+                metrics.increment(UploadMetrics.ROWS_SENT, pending.size());
+                metrics.increment(UploadMetrics.ROWS_FAILED, failed);
+                return failed;
+            }
+            metrics.increment(UploadMetrics.ROWS_SENT, pending.size() - response.getInsertErrors().size());
+            List<Integer> retry = new ArrayList<>();
+            for(TableDataInsertAllResponse.InsertErrors insertErrors : response.getInsertErrors()){
+                int index = pending.get(insertErrors.getIndex().intValue());
+                if(RetryPolicy.isRetryable(insertErrors)){
+                    retry.add(index);
+                    continue;
+                }
+                failed++;
+                long lineNumber = batch.getLineNumber(index);
+                List<String> reasons = new ArrayList<>();
+                for(ErrorProto e : insertErrors.getErrors()){
+                    LOGGER.error(String.format("Failed to insert line %s: %s (reason: %s)", lineNumber,
+                            e.getMessage(), e.getReason()));
+                    reasons.add(e.getReason() + ": " + e.getMessage());
+                }
+                if(config.getDeadLetterFile() != null){
+                    config.getDeadLetterFile().write(source, lineNumber, batch.getRow(index), reasons);
+                }
+            }
+            if(retry.isEmpty()){
+                metrics.increment(UploadMetrics.ROWS_FAILED, failed);
+                return failed;
             }
-            if(response.getInsertErrors() != null && !response.getInsertErrors().isEmpty()){
-                LOGGER.error(response.toString());
-            }else {
-                LOGGER.debug(response.toString());
+            Collections.sort(retry);
+            if(!retryPolicy.canRetry(attempt)){
+                LOGGER.error("Failed to insert {} rows of lines {}-{} after {} attempts", retry.size(),
+                        batch.getFirstLineNumber(), batch.getLastLineNumber(), attempt);
+                failed += spill(tableId, templateSuffix, batch, retry);
+                metrics.increment(UploadMetrics.ROWS_FAILED, failed);
+                return failed;
             }
+            metrics.increment(UploadMetrics.ROWS_RETRIED, retry.size());
+            LOGGER.debug("Retrying {} rows of lines {}-{}", retry.size(), batch.getFirstLineNumber(),
+                    batch.getLastLineNumber());
+            pending = retry;
+            retryPolicy.backoff(attempt);
         }
-        LOGGER.info("Streaming doUpload of table {} completed", config.getTableId());
     }
 
-    @Override
-    void doUpload(String tableId, AbstractInputStreamContent content) {
-        throw new UnsupportedOperationException("Not implemented yet");
+    /**
+     * Sends an insertAll request with given body, see {@link InsertAllContent}
+     *
+     * @throws GoogleJsonResponseException if BigQuery answered with an error
+     */
+    private TableDataInsertAllResponse insertAll(String tableId, HttpContent content) throws IOException {
+        Bigquery bigquery = config.getBigQuery();
+        Map<String, String> parameters = new HashMap<>();
+        parameters.put("projectId", config.getProjectId());
+        parameters.put("datasetId", config.getDatasetId());
+        parameters.put("tableId", tableId);
+        HttpRequest request = bigquery.getRequestFactory().buildPostRequest(
+                new GenericUrl(UriTemplate.expand(bigquery.getBaseUrl(), INSERT_ALL_PATH, parameters, true)), content);
+        request.setParser(bigquery.getObjectParser());
+        request.setThrowExceptionOnExecuteError(false);
+        if(config.isCompressRequests()){
+            request.setEncoding(new GZipEncoding());
+        }
+        HttpResponse response = request.execute();
+        if(!response.isSuccessStatusCode()){
+            throw GoogleJsonResponseException.from(bigquery.getJsonFactory(), response);
+        }
+        return response.parseAs(TableDataInsertAllResponse.class);
+    }
+
+    /**
+     * Spills given rows of a batch to the replay file, if there is one
+     *
+     * @return number of rows spilled or lost
+     */
+    private int spill(String tableId, String templateSuffix, InsertAllBatch batch, List<Integer> rows){
+        ReplayFile replayFile = config.getReplayFile();
+        if(replayFile == null){
+            LOGGER.error("{} rows of lines {}-{} were not inserted, there is no -replayFile to spill them to",
+                    rows.size(), batch.getFirstLineNumber(), batch.getLastLineNumber());
+            return rows.size();
+        }
+        for(int i : rows){
+            replayFile.write(tableId, templateSuffix, batch.getInsertId(i), batch.getRow(i));
+        }
+        LOGGER.warn("Spilled {} rows of lines {}-{} to {}", rows.size(), batch.getFirstLineNumber(),
+                batch.getLastLineNumber(), replayFile.getFile());
+        return rows.size();
     }
 }
@@ -0,0 +1,202 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.services.bigquery.Bigquery;
+import com.google.api.services.bigquery.model.Table;
+import com.google.api.services.bigquery.model.TableReference;
+import com.google.api.services.bigquery.model.TableSchema;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Caches whether tables exist and their schema, so that table metadata is not fetched again for every upload.
+ *
+ * Entries expire after the TTL. If a file is given, entries are persisted to it and a later run starts with them, so a
+ * run within the TTL of the previous one makes no table metadata calls.
+ *
+ * @author Vivek Pandey
+ */
+public class TableMetadataCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TableMetadataCache.class);
+
+    private final Bigquery bigquery;
+    private final String projectId;
+    private final String datasetId;
+    private final File file;
+    private final long ttlMs;
+    private final ObjectMapper om = new ObjectMapper();
+    private Map<String, Entry> entries;
+
+    /**
+     * @param file file entries are persisted to, null to only cache in this process
+     * @param ttlMs time after which an entry is fetched again
+     */
+    public TableMetadataCache(BigQueryConfig config, File file, long ttlMs) {
+        this.bigquery = config.getBigQuery();
+        this.projectId = config.getProjectId();
+        this.datasetId = config.getDatasetId();
+        this.file = file;
+        this.ttlMs = ttlMs;
+    }
+
+    /**
+     * @return table with its reference and schema, null if it does not exist
+     */
+    public synchronized Table get(String tableId){
+        Entry e = load().get(key(tableId));
+        if(e == null || isExpired(e)){
+            e = fetch(tableId);
+        }
+        return e.exists ? toTable(tableId, e) : null;
+    }
+
+    /**
+     * Schema of given table to load data with.
+     *
+     * The known schema is used if it is still fresh, otherwise the fallback schema is used without fetching the table,
+     * as long as it is the same as the schema last seen, or no schema was seen yet.
+     *
+     * @param fallback schema the table is expected to have, such as the one given with -schemaFile, can be null
+     * @return null if the table does not exist and there is no fallback schema
+     */
+    public synchronized TableSchema getSchema(String tableId, TableSchema fallback){
+        Entry e = load().get(key(tableId));
+        if(e != null && !isExpired(e) && e.exists){
+            return parseSchema(e.schema);
+        }
+        if(fallback != null && (e == null || !e.exists || fallback.equals(parseSchema(e.schema)))){
+            return fallback;
+        }
+        Table t = get(tableId);
+        return t == null ? null : t.getSchema();
+    }
+
+    /**
+     * Records a table that was just created
+     */
+    public synchronized void put(Table table){
+        Entry e = new Entry();
+        e.exists = true;
+        e.schema = table.getSchema() == null ? null : toJson(table.getSchema());
+        e.fetchedAt = System.currentTimeMillis();
+        load().put(key(table.getTableReference().getTableId()), e);
+        save();
+    }
+
+    /**
+     * Drops what is known of given table, it is fetched again when it is needed next
+     */
+    public synchronized void invalidate(String tableId){
+        if(load().remove(key(tableId)) != null){
+            save();
+        }
+    }
+
+    private Entry fetch(String tableId){
+        Entry e = new Entry();
+        try {
+            Table t = bigquery.tables().get(projectId, datasetId, tableId).execute();
+            e.exists = true;
+            e.schema = t.getSchema() == null ? null : toJson(t.getSchema());
+        } catch (HttpResponseException ex){
+            if(ex.getStatusCode() != 404){
+                throw new RuntimeException("Failed to get table: "+tableId+": "+ ex.getMessage(), ex);
+            }
+            LOGGER.info("Table {} not found", tableId);
+        } catch (IOException ex) {
+            throw new RuntimeException("Failed to get table: "+tableId+": "+ ex.getMessage(), ex);
+        }
+        e.fetchedAt = System.currentTimeMillis();
+        entries.put(key(tableId), e);
+        save();
+        return e;
+    }
+
+    private boolean isExpired(Entry e){
+        return System.currentTimeMillis() - e.fetchedAt > ttlMs;
+    }
+
+    private Table toTable(String tableId, Entry e){
+        return new Table()
+                .setTableReference(new TableReference()
+                        .setProjectId(projectId)
+                        .setDatasetId(datasetId)
+                        .setTableId(tableId))
+                .setSchema(parseSchema(e.schema));
+    }
+
+    private String key(String tableId){
+        return projectId + ":" + datasetId + "." + tableId;
+    }
+
+    private String toJson(TableSchema schema){
+        try {
+            return bigquery.getJsonFactory().toString(schema);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize table schema: "+e.getMessage(), e);
+        }
+    }
+
+    private TableSchema parseSchema(String schema){
+        if(schema == null){
+            return null;
+        }
+        try {
+            return bigquery.getJsonFactory().fromString(schema, TableSchema.class);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to parse table schema: "+e.getMessage(), e);
+        }
+    }
+
+    private Map<String, Entry> load(){
+        if(entries != null){
+            return entries;
+        }
+        entries = new HashMap<>();
+        if(file != null && file.exists()){
+            try {
+                entries.putAll(om.<Map<String, Entry>>readValue(file, new TypeReference<Map<String, Entry>>() {}));
+            } catch (IOException e) {
+                // only a cache, start over
+                LOGGER.warn("Ignoring invalid table metadata cache {}: {}", file, e.getMessage());
+            }
+        }
+        return entries;
+    }
+
+    private void save(){
+        if(file == null){
+            return;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            om.writeValue(tmp, entries);
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save table metadata cache {}: {}", file, e.getMessage());
+        }
+    }
+
+    static class Entry {
+        @JsonProperty("exists")
+        public boolean exists;
+
+        /** table schema JSON */
+        @JsonProperty("schema")
+        public String schema;
+
+        @JsonProperty("fetchedAt")
+        public long fetchedAt;
+    }
+}
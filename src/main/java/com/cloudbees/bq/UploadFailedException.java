@@ -0,0 +1,17 @@
+package com.cloudbees.bq;
+
+/**
+ * Thrown when a record file can not be uploaded for a reason that retrying does not fix, such as a missing table or
+ * an unreadable record file.
+ *
+ * @author Vivek Pandey
+ */
+class UploadFailedException extends RuntimeException {
+    UploadFailedException(String message) {
+        super(message);
+    }
+
+    UploadFailedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
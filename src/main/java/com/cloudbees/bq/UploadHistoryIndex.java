@@ -0,0 +1,189 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Local copy of upload history statuses by file name, so that checking whether a file was already uploaded does not
+ * need a query to BigQuery. upload_history in BigQuery stays authoritative, the index is only filled from it and from
+ * statuses recorded by this uploader.
+ *
+ * The index is kept in an append-only log of JSON records, one per status change. Only statuses the index did not
+ * have are appended, so the log only holds duplicate or invalid records when several runs append to it at once or a
+ * run was interrupted while appending. It is loaded on first use, and compacted then if it has any.
+ *
+ * @author Vivek Pandey
+ */
+public class UploadHistoryIndex {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadHistoryIndex.class);
+
+    private final File file;
+    private final ObjectMapper om = new ObjectMapper();
+    private Map<String, Set<UploadHistory.Status>> statuses;
+
+    public UploadHistoryIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return statuses recorded for given file name, null if the index knows nothing about it
+     */
+    public synchronized Set<UploadHistory.Status> get(String name){
+        Set<UploadHistory.Status> s = load().get(name);
+        return s == null ? null : Collections.unmodifiableSet(EnumSet.copyOf(s));
+    }
+
+    /**
+     * Adds statuses of file names looked up in or written to BigQuery
+     */
+    public synchronized void update(Map<String, Set<UploadHistory.Status>> remote){
+        load();
+        Map<String, Set<UploadHistory.Status>> added = new HashMap<>();
+        for(Map.Entry<String, Set<UploadHistory.Status>> e : remote.entrySet()){
+            Set<UploadHistory.Status> s = statuses.get(e.getKey());
+            if(s == null){
+                s = EnumSet.noneOf(UploadHistory.Status.class);
+                statuses.put(e.getKey(), s);
+            }
+            Set<UploadHistory.Status> a = EnumSet.noneOf(UploadHistory.Status.class);
+            for(UploadHistory.Status status : e.getValue()){
+                if(s.add(status)){
+                    a.add(status);
+                }
+            }
+            if(!a.isEmpty()){
+                added.put(e.getKey(), a);
+            }
+        }
+        if(!added.isEmpty()){
+            append(added);
+        }
+    }
+
+    private Map<String, Set<UploadHistory.Status>> load(){
+        if(statuses != null){
+            return statuses;
+        }
+        statuses = new HashMap<>();
+        int logSize = 0;
+        if(file.exists()){
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    logSize++;
+                    Entry e;
+                    try {
+                        e = om.readValue(line, Entry.class);
+                    } catch (IOException ex) {
+                        // partially written last record of an interrupted run
+                        LOGGER.warn("Ignoring invalid upload history index record: " + line);
+                        continue;
+                    }
+                    Set<UploadHistory.Status> s = statuses.get(e.name);
+                    if (s == null) {
+                        s = EnumSet.noneOf(UploadHistory.Status.class);
+                        statuses.put(e.name, s);
+                    }
+                    s.add(e.status);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read upload history index " + file.getAbsolutePath() + ": "
+                        + e.getMessage(), e);
+            }
+            LOGGER.info("Loaded upload history of {} files from {}", statuses.size(), file);
+            if(logSize > statusCount()){
+                compact();
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Appends given statuses, that are already added to the in memory index, to the log
+     */
+    private void append(Map<String, ? extends Set<UploadHistory.Status>> added){
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true),
+                StandardCharsets.UTF_8))) {
+            write(writer, added);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write upload history index " + file.getAbsolutePath() + ": "
+                    + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Rewrites the log with one record per status
+     */
+    private void compact(){
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            int logSize;
+            try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                logSize = write(writer, statuses);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.debug("Compacted upload history index {} to {} records", file, logSize);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to compact upload history index " + file.getAbsolutePath() + ": "
+                    + e.getMessage(), e);
+        }
+    }
+
+    private int write(Writer writer, Map<String, ? extends Set<UploadHistory.Status>> entries) throws IOException {
+        int n = 0;
+        long now = System.currentTimeMillis();
+        for(Map.Entry<String, ? extends Set<UploadHistory.Status>> e : entries.entrySet()){
+            for(UploadHistory.Status status : e.getValue()){
+                Entry entry = new Entry();
+                entry.name = e.getKey();
+                entry.status = status;
+                entry.timestamp = now;
+                writer.write(om.writeValueAsString(entry));
+                writer.write('\n');
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private int statusCount(){
+        int n = 0;
+        for(Set<UploadHistory.Status> s : statuses.values()){
+            n += s.size();
+        }
+        return n;
+    }
+
+    static class Entry{
+        @JsonProperty("name")
+        public String name;
+
+        @JsonProperty("status")
+        public UploadHistory.Status status;
+
+        @JsonProperty("timestamp")
+        public long timestamp;
+    }
+}
@@ -0,0 +1,152 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.services.bigquery.model.ErrorProto;
+import com.google.api.services.bigquery.model.TableDataInsertAllRequest;
+import com.google.api.services.bigquery.model.TableDataInsertAllResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+
+import static com.cloudbees.bq.BigQueryConfig.UPLOAD_HISTORY_TABLE_ID;
+
+/**
+ * Buffers upload history records and writes them to upload_history with a single insertAll request, instead of a load
+ * job per status change.
+ *
+ * Records are written when {@link #flush()} is called, once an upload started and once it is done, or when the buffer
+ * is full. Records that could not be written because of a retryable error stay buffered and are sent with the next
+ * flush, invalid records are logged and dropped. Records are added to the upload history index only once they are
+ * written, so that the index never knows of an upload upload_history does not. One writer is shared by all uploads of
+ * a run, see {@link BigQueryConfig#getUploadHistoryWriter()}.
+ *
+ * @author Vivek Pandey
+ */
+class UploadHistoryWriter {
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadHistoryWriter.class);
+    private static final int MAX_BUFFERED_RECORDS = 500;
+
+    private final BigQueryConfig config;
+    private final ObjectMapper om;
+    private final List<TableDataInsertAllRequest.Rows> buffer = new ArrayList<>();
+    // records of the buffered rows, by the same index
+    private final List<UploadHistory> records = new ArrayList<>();
+
+    UploadHistoryWriter(BigQueryConfig config) {
+        this.config = config;
+        this.om = new ObjectMapper();
+        // the date format upload_history expects
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS z");
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        om.setDateFormat(sdf);
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized void write(UploadHistory uploadHistory){
+        Map<String, Object> json = om.convertValue(uploadHistory, Map.class);
+        // file is a REPEATED record in upload-history.json
+        json.put("file", Collections.singletonList(json.get("file")));
+        buffer.add(new TableDataInsertAllRequest.Rows()
+                .setInsertId(String.format("%s/%s/%s", uploadHistory.uploadFile.name, uploadHistory.status,
+                        uploadHistory.timestamp.getTime()))
+                .setJson(json));
+        records.add(uploadHistory);
+        if(buffer.size() >= MAX_BUFFERED_RECORDS){
+            flush();
+        }
+    }
+
+    /**
+     * Writes buffered records to upload_history
+     *
+     * @return false if records could not be written and stay buffered
+     */
+    synchronized boolean flush(){
+        if(buffer.isEmpty()){
+            return true;
+        }
+        long start = System.nanoTime();
+        try {
+            LOGGER.info(String.format("Uploading %s records to table: %s", buffer.size(), UPLOAD_HISTORY_TABLE_ID));
+            TableDataInsertAllResponse response = config.getBigQuery().tabledata().insertAll(
+                    config.getProjectId(),
+                    config.getDatasetId(),
+                    UPLOAD_HISTORY_TABLE_ID,
+                    new TableDataInsertAllRequest().setRows(buffer))
+                    .execute();
+            List<TableDataInsertAllRequest.Rows> retry = new ArrayList<>();
+            List<UploadHistory> retryRecords = new ArrayList<>();
+            Set<Integer> failed = new HashSet<>();
+            if(response.getInsertErrors() != null){
+                for(TableDataInsertAllResponse.InsertErrors insertErrors : response.getInsertErrors()){
+                    int index = insertErrors.getIndex().intValue();
+                    TableDataInsertAllRequest.Rows row = buffer.get(index);
+                    failed.add(index);
+                    if(RetryPolicy.isRetryable(insertErrors)){
+                        retry.add(row);
+                        retryRecords.add(records.get(index));
+                        continue;
+                    }
+                    for(ErrorProto e : insertErrors.getErrors()){
+                        LOGGER.error(String.format("Failed to write %s record %s: %s", UPLOAD_HISTORY_TABLE_ID,
+                                row.getJson(), e.getMessage()));
+                    }
+                }
+            }
+            index(failed);
+            buffer.clear();
+            buffer.addAll(retry);
+            records.clear();
+            records.addAll(retryRecords);
+            if(!retry.isEmpty()){
+                LOGGER.warn(String.format("Failed to write %s records to %s, they are sent again with the next flush",
+                        retry.size(), UPLOAD_HISTORY_TABLE_ID));
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            LOGGER.error(String.format("Failed to write %s records to %s: %s", buffer.size(), UPLOAD_HISTORY_TABLE_ID,
+                    e.getMessage()), e);
+            return false;
+        } finally {
+            config.getMetrics().phase(UploadMetrics.PHASE_HISTORY_WRITE, start);
+        }
+    }
+
+    /**
+     * Adds the statuses of the buffered records that were written to the upload history index
+     *
+     * @param failed indexes of the buffered records that were not written
+     */
+    private void index(Set<Integer> failed){
+        UploadHistoryIndex index = config.getUploadHistoryIndex();
+        if(index == null){
+            return;
+        }
+        Map<String, Set<UploadHistory.Status>> written = new HashMap<>();
+        for(int i=0; i < records.size(); i++){
+            if(failed.contains(i)){
+                continue;
+            }
+            UploadHistory record = records.get(i);
+            Set<UploadHistory.Status> s = written.get(record.uploadFile.name);
+            if(s == null){
+                s = EnumSet.noneOf(UploadHistory.Status.class);
+                written.put(record.uploadFile.name, s);
+            }
+            s.add(record.status);
+        }
+        index.update(written);
+    }
+}
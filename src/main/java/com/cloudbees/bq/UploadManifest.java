@@ -0,0 +1,92 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Upload jobs of a manifest file, a JSON list of the record files to upload and the tables to upload them to, run
+ * together in one process:
+ *
+ * <pre>
+ * [
+ *   {"tableId": "plugin_extensions", "schemaFile": "schema/jenkins-extensions-schema.json", "bqFile": "ext.bq",
+ *    "uploadType": "extension", "writeDisposition": "WRITE_TRUNCATE"},
+ *   {"tableId": "jenkins_usage", "bqFile": "census.bq", "uploadType": "census", "streaming": true}
+ * ]
+ * </pre>
+ *
+ * Files are relative to the directory of the manifest. Settings a job leaves out are those given on the command line.
+ *
+ * @author Vivek Pandey
+ */
+class UploadManifest {
+    private static final ObjectMapper OM = new ObjectMapper();
+
+    static class Job {
+        @JsonProperty("tableId")
+        public String tableId;
+
+        @JsonProperty("bqFile")
+        public File bqFile;
+
+        /** census or extension */
+        @JsonProperty("uploadType")
+        public String uploadType;
+
+        @JsonProperty("schemaFile")
+        public File schemaFile;
+
+        @JsonProperty("writeDisposition")
+        public String writeDisposition;
+
+        @JsonProperty("streaming")
+        public Boolean streaming;
+
+        @JsonProperty("createTable")
+        public Boolean createTable;
+
+        @JsonProperty("transform")
+        public String transform;
+
+        @Override
+        public String toString() {
+            return tableId + " <- " + (bqFile == null ? null : bqFile.getName());
+        }
+    }
+
+    /**
+     * @throws IOException if the manifest can not be read or a job is missing a setting it can not do without
+     */
+    static List<Job> load(File manifest) throws IOException {
+        List<Job> jobs = OM.readValue(manifest, new TypeReference<List<Job>>() {});
+        if(jobs == null || jobs.isEmpty()){
+            throw new IOException("No jobs in " + manifest);
+        }
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        for(int i=0; i < jobs.size(); i++){
+            Job job = jobs.get(i);
+            String name = "job " + (i + 1) + " of " + manifest.getName();
+            if(job.tableId == null){
+                throw new IOException(name + " has no tableId");
+            }
+            if(job.bqFile == null){
+                throw new IOException(name + " has no bqFile");
+            }
+            if(!"census".equals(job.uploadType) && !"extension".equals(job.uploadType)){
+                throw new IOException(name + ": uploadType must be one of census or extension");
+            }
+            job.bqFile = resolve(dir, job.bqFile);
+            job.schemaFile = resolve(dir, job.schemaFile);
+        }
+        return jobs;
+    }
+
+    private static File resolve(File dir, File file){
+        return file == null || file.isAbsolute() ? file : new File(dir, file.getPath());
+    }
+}
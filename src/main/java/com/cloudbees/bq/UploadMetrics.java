@@ -0,0 +1,281 @@
+package com.cloudbees.bq;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges, latency histograms and phase timings of a run, exported as a JSON summary and as a Prometheus textfile
+ * (for the node_exporter textfile collector).
+ *
+ * Counters and histograms are created on first use, metric names follow Prometheus conventions: counters end in
+ * _total, latencies are in seconds. Thread safe.
+ *
+ * @author Vivek Pandey
+ */
+public class UploadMetrics {
+    private static final String PREFIX = "bq_uploader_";
+    private static final JsonFactory JSON = new JsonFactory();
+
+    public static final String ROWS_READ = "rows_read_total";
+    public static final String BYTES_READ = "bytes_read_total";
+    public static final String ROWS_SENT = "rows_sent_total";
+    public static final String BYTES_SENT = "bytes_sent_total";
+    public static final String ROWS_FAILED = "rows_failed_total";
+    public static final String ROWS_REJECTED = "rows_rejected_total";
+    public static final String ROWS_RETRIED = "rows_retried_total";
+    public static final String REQUESTS_RETRIED = "requests_retried_total";
+    public static final String LOAD_JOBS = "load_jobs_total";
+    public static final String LOAD_JOBS_FAILED = "load_jobs_failed_total";
+
+    public static final String INSERT_ALL = "insert_all_seconds";
+    public static final String LOAD_JOB_INSERT = "load_job_insert_seconds";
+    public static final String LOAD_JOB_POLL = "load_job_poll_seconds";
+    public static final String MEMORY_WAIT = "memory_wait_seconds";
+
+    public static final String MEMORY_BUDGET = "memory_budget_bytes";
+    public static final String MEMORY_USED_MAX = "memory_used_max_bytes";
+
+    public static final String PHASE_AUTH = "auth";
+    public static final String PHASE_TABLE_CHECK = "table_check";
+    public static final String PHASE_DEDUP_QUERY = "dedup_query";
+    public static final String PHASE_UPLOAD = "upload";
+    public static final String PHASE_HISTORY_WRITE = "history_write";
+
+    /** Upper bounds of histogram buckets, in seconds */
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+
+    private final long startedAt = System.nanoTime();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> phases = new ConcurrentHashMap<>();
+
+    public void increment(String counter, long n){
+        AtomicLong c = counters.get(counter);
+        if(c == null){
+            counters.putIfAbsent(counter, new AtomicLong());
+            c = counters.get(counter);
+        }
+        c.addAndGet(n);
+    }
+
+    public long get(String counter){
+        AtomicLong c = counters.get(counter);
+        return c == null ? 0 : c.get();
+    }
+
+    /**
+     * Sets a gauge, such as a high-water mark
+     */
+    public void set(String gauge, long value){
+        AtomicLong g = gauges.get(gauge);
+        if(g == null){
+            gauges.putIfAbsent(gauge, new AtomicLong());
+            g = gauges.get(gauge);
+        }
+        g.set(value);
+    }
+
+    /**
+     * Records latency of a call that started at given {@link System#nanoTime()}
+     */
+    public void observe(String histogram, long startNanos){
+        histogram(histograms, histogram).observe(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records time spent in a phase of the run that started at given {@link System#nanoTime()}. A phase that is
+     * entered several times, such as upload, adds up.
+     */
+    public void phase(String phase, long startNanos){
+        histogram(phases, phase).observe(System.nanoTime() - startNanos);
+    }
+
+    private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String name){
+        Histogram h = histograms.get(name);
+        if(h == null){
+            histograms.putIfAbsent(name, new Histogram());
+            h = histograms.get(name);
+        }
+        return h;
+    }
+
+    public String toJson(){
+        StringWriter w = new StringWriter();
+        try (JsonGenerator g = JSON.createGenerator(w)) {
+            g.useDefaultPrettyPrinter();
+            g.writeStartObject();
+            double elapsed = seconds(System.nanoTime() - startedAt);
+            g.writeNumberField("elapsedSeconds", elapsed);
+            g.writeNumberField("rowsPerSecond", elapsed > 0 ? get(ROWS_SENT) / elapsed : 0);
+            g.writeNumberField("bytesPerSecond", elapsed > 0 ? get(BYTES_SENT) / elapsed : 0);
+            g.writeObjectFieldStart("counters");
+            for(Map.Entry<String, AtomicLong> e : new TreeMap<>(counters).entrySet()){
+                g.writeNumberField(e.getKey(), e.getValue().get());
+            }
+            g.writeEndObject();
+            g.writeObjectFieldStart("gauges");
+            for(Map.Entry<String, AtomicLong> e : new TreeMap<>(gauges).entrySet()){
+                g.writeNumberField(e.getKey(), e.getValue().get());
+            }
+            g.writeEndObject();
+            g.writeObjectFieldStart("latencies");
+            for(Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()){
+                g.writeFieldName(e.getKey());
+                e.getValue().writeJson(g);
+            }
+            g.writeEndObject();
+            g.writeObjectFieldStart("phases");
+            for(Map.Entry<String, Histogram> e : new TreeMap<>(phases).entrySet()){
+                g.writeNumberField(e.getKey(), seconds(e.getValue().sum.get()));
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to serialize metrics: " + e.getMessage(), e);
+        }
+        return w.toString();
+    }
+
+    public String toPrometheus(){
+        StringBuilder b = new StringBuilder();
+        b.append("# TYPE ").append(PREFIX).append("elapsed_seconds gauge\n");
+        b.append(PREFIX).append("elapsed_seconds ").append(seconds(System.nanoTime() - startedAt)).append('\n');
+        for(Map.Entry<String, AtomicLong> e : new TreeMap<>(counters).entrySet()){
+            b.append("# TYPE ").append(PREFIX).append(e.getKey()).append(" counter\n");
+            b.append(PREFIX).append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+        }
+        for(Map.Entry<String, AtomicLong> e : new TreeMap<>(gauges).entrySet()){
+            b.append("# TYPE ").append(PREFIX).append(e.getKey()).append(" gauge\n");
+            b.append(PREFIX).append(e.getKey()).append(' ').append(e.getValue().get()).append('\n');
+        }
+        for(Map.Entry<String, Histogram> e : new TreeMap<>(histograms).entrySet()){
+            e.getValue().writePrometheus(b, PREFIX + e.getKey());
+        }
+        if(!phases.isEmpty()){
+            b.append("# TYPE ").append(PREFIX).append("phase_seconds counter\n");
+            for(Map.Entry<String, Histogram> e : new TreeMap<>(phases).entrySet()){
+                b.append(PREFIX).append("phase_seconds{phase=\"").append(e.getKey()).append("\"} ")
+                        .append(seconds(e.getValue().sum.get())).append('\n');
+            }
+        }
+        return b.toString();
+    }
+
+    /**
+     * Writes the JSON summary and/or the Prometheus textfile, replacing them atomically so that a reader never sees a
+     * partly written file
+     *
+     * @param json null to not write the JSON summary
+     * @param prometheus null to not write the Prometheus textfile
+     */
+    public void write(File json, File prometheus){
+        if(json != null){
+            write(json, toJson());
+        }
+        if(prometheus != null){
+            write(prometheus, toPrometheus());
+        }
+    }
+
+    private static void write(File file, String content){
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            try (Writer w = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+                w.write(content);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write metrics to " + file.getAbsolutePath() + ": " + e.getMessage(),
+                    e);
+        }
+    }
+
+    private static double seconds(long nanos){
+        return nanos / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+
+        private void observe(long nanos){
+            double s = seconds(nanos);
+            for(int i=0; i < BUCKETS.length; i++){
+                if(s <= BUCKETS[i]){
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+        }
+
+        /**
+         * @return upper bound of the bucket given quantile falls in, an estimate good enough to spot regressions
+         */
+        private double quantile(double q){
+            long n = count.get();
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for(int i=0; i < BUCKETS.length; i++){
+                seen += buckets.get(i);
+                if(seen >= rank){
+                    return BUCKETS[i];
+                }
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        private void writeJson(JsonGenerator g) throws IOException {
+            long n = count.get();
+            g.writeStartObject();
+            g.writeNumberField("count", n);
+            g.writeNumberField("sumSeconds", seconds(sum.get()));
+            g.writeNumberField("meanSeconds", n > 0 ? seconds(sum.get()) / n : 0);
+            if(n > 0){
+                writeQuantile(g, "p50Seconds", quantile(0.5));
+                writeQuantile(g, "p99Seconds", quantile(0.99));
+            }
+            g.writeEndObject();
+        }
+
+        private static void writeQuantile(JsonGenerator g, String name, double value) throws IOException {
+            if(Double.isInfinite(value)){
+                g.writeStringField(name, "+Inf");
+            }else{
+                g.writeNumberField(name, value);
+            }
+        }
+
+        private void writePrometheus(StringBuilder b, String name){
+            b.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for(int i=0; i < BUCKETS.length; i++){
+                cumulative += buckets.get(i);
+                b.append(name).append("_bucket{le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative)
+                        .append('\n');
+            }
+            b.append(name).append("_bucket{le=\"+Inf\"} ").append(count.get()).append('\n');
+            b.append(name).append("_sum ").append(seconds(sum.get())).append('\n');
+            b.append(name).append("_count ").append(count.get()).append('\n');
+        }
+    }
+}
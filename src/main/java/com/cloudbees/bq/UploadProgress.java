@@ -0,0 +1,63 @@
+package com.cloudbees.bq;
+
+import com.google.api.client.googleapis.media.MediaHttpUploader;
+import com.google.api.client.googleapis.media.MediaHttpUploaderProgressListener;
+
+/**
+ * Tracks bytes sent by an upload and reports them, along with throughput, to an {@link UploadProgressListener}.
+ *
+ * @author Vivek Pandey
+ */
+class UploadProgress implements MediaHttpUploaderProgressListener {
+    private final String name;
+    private final long totalBytes;
+    private final UploadProgressListener listener;
+    private final UploadMetrics metrics;
+    private final long startedAt = System.nanoTime();
+    private long startOffset = -1;
+    private long lastBytesSent;
+
+    UploadProgress(String name, long totalBytes, UploadProgressListener listener, UploadMetrics metrics) {
+        this.name = name;
+        this.totalBytes = totalBytes;
+        this.listener = listener;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Reports bytes sent so far. Throughput only counts bytes sent by this run, not the ones confirmed by an earlier
+     * run of a resumed upload.
+     */
+    void update(long bytesSent){
+        if(startOffset < 0){
+            startOffset = bytesSent;
+        }
+        if(lastBytesSent < startOffset){
+            lastBytesSent = startOffset;
+        }
+        if(bytesSent > lastBytesSent){
+            metrics.increment(UploadMetrics.BYTES_SENT, bytesSent - lastBytesSent);
+            lastBytesSent = bytesSent;
+        }
+        double seconds = (System.nanoTime() - startedAt)/1000000000.0;
+        double bytesPerSecond = seconds > 0 ? (bytesSent - startOffset)/seconds : 0;
+        listener.progressChanged(name, bytesSent, totalBytes, bytesPerSecond);
+    }
+
+    /**
+     * Marks where a resumed upload starts from
+     */
+    void resumedAt(long offset){
+        startOffset = offset;
+    }
+
+    @Override
+    public void progressChanged(MediaHttpUploader uploader) {
+        if(uploader.getUploadState() == MediaHttpUploader.UploadState.INITIATION_COMPLETE){
+            startOffset = 0;
+        }else if(uploader.getUploadState() == MediaHttpUploader.UploadState.MEDIA_IN_PROGRESS
+                || uploader.getUploadState() == MediaHttpUploader.UploadState.MEDIA_COMPLETE){
+            update(uploader.getNumBytesUploaded());
+        }
+    }
+}
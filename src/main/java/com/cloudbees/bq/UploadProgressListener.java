@@ -0,0 +1,38 @@
+package com.cloudbees.bq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gets notified as load job media is uploaded, after each chunk.
+ *
+ * @author Vivek Pandey
+ */
+public interface UploadProgressListener {
+    /**
+     * @param name name of the upload
+     * @param bytesSent bytes the server confirmed so far
+     * @param totalBytes size of the upload, -1 if not known upfront
+     * @param bytesPerSecond average throughput since this run of the upload started
+     */
+    void progressChanged(String name, long bytesSent, long totalBytes, double bytesPerSecond);
+
+    /**
+     * Logs upload progress
+     */
+    UploadProgressListener LOGGING = new UploadProgressListener() {
+        private final Logger LOGGER = LoggerFactory.getLogger(UploadProgressListener.class);
+
+        @Override
+        public void progressChanged(String name, long bytesSent, long totalBytes, double bytesPerSecond) {
+            if(totalBytes > 0){
+                LOGGER.info(String.format("%s: uploaded %.2f of %.2f MB (%.0f%%), %.2f MB/s", name,
+                        bytesSent/1000000.00, totalBytes/1000000.00, bytesSent*100.0/totalBytes,
+                        bytesPerSecond/1000000.00));
+            }else{
+                LOGGER.info(String.format("%s: uploaded %.2f MB, %.2f MB/s", name, bytesSent/1000000.00,
+                        bytesPerSecond/1000000.00));
+            }
+        }
+    };
+}
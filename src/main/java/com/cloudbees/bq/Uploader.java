@@ -1,21 +1,28 @@
 package com.cloudbees.bq;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.api.client.http.AbstractInputStreamContent;
-import com.google.api.client.http.ByteArrayContent;
+import com.google.api.services.bigquery.model.GetQueryResultsResponse;
 import com.google.api.services.bigquery.model.QueryRequest;
 import com.google.api.services.bigquery.model.QueryResponse;
 import com.google.api.services.bigquery.model.TableCell;
 import com.google.api.services.bigquery.model.TableRow;
+import com.google.api.services.bigquery.model.TableSchema;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
 
 import static com.cloudbees.bq.BigQueryConfig.UPLOAD_HISTORY_TABLE_ID;
@@ -27,8 +34,11 @@ public abstract class Uploader {
     protected final ObjectMapper om;
     protected final BigQueryConfig config;
     protected final SimpleDateFormat sdf;
+    private final UploadHistoryWriter historyWriter;
+    private final Map<String, SchemaValidator> validators = new HashMap<>();
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Uploader.class);
+    private static final int MAX_NAMES_PER_QUERY = 1000;
 
 
     public Uploader(BigQueryConfig config) {
@@ -37,31 +47,45 @@ public abstract class Uploader {
         this.sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS z");
         this.sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
         om.setDateFormat(sdf);
+        this.historyWriter = config.getUploadHistoryWriter();
     }
 
     protected void recordUploadStatus(File uploadFile, UploadHistory.Status status){
         UploadHistory uploadHistory = new UploadHistory();
         uploadHistory.uploadFile = new UploadHistory.UploadFile();
-        uploadHistory.uploadFile.name = uploadFile.getName();
+        uploadHistory.uploadFile.name = getUploadName(uploadFile);
         uploadHistory.uploadFile.sizeInMB = (float) (Math.round((uploadFile.length()/1000000.00)*100.0)/100.0);
         uploadHistory.uploadFile.timestamp = getFileTimestamp(uploadFile);
         uploadHistory.uploadFile.type = config.getUploadType();
         uploadHistory.timestamp = new Date();
         uploadHistory.status = status;
-        try {
-            LOGGER.info(String.format("Uploading to table: %s, status: %s", UPLOAD_HISTORY_TABLE_ID, status));
-            doUpload(UPLOAD_HISTORY_TABLE_ID, new ByteArrayContent("application/octet-stream", om.writeValueAsString(uploadHistory).getBytes("UTF-8")));
-        } catch (UnsupportedEncodingException | JsonProcessingException e) {
-            LOGGER.error("JSON serialization failed: "+e.getMessage(), e);
-            throw new RuntimeException(e);
+        LOGGER.info(String.format("Recording to table: %s, status: %s", UPLOAD_HISTORY_TABLE_ID, status));
+        historyWriter.write(uploadHistory);
+    }
+
+    /**
+     * Name under which given file is recorded in upload history.
+     *
+     * A gzip compressed census file is recorded the way census_data_preparer.rb names its uncompressed copy, by the
+     * part of the name just before .gz (usage.20130107.gz is recorded as 20130107), so compressed and uncompressed
+     * uploads of the same census file are recognized as the same upload.
+     */
+    protected String getUploadName(File uploadFile){
+        if(!RecordFiles.isGzip(uploadFile)){
+            return uploadFile.getName();
         }
+        String name = RecordFiles.stripGzipExtension(uploadFile.getName());
+        if(config.getUploadType() == UploadHistory.Type.CENSUS){
+            name = name.substring(name.lastIndexOf('.') + 1);
+        }
+        return name;
     }
 
     private Date getFileTimestamp(File uploadFile){
         if(config.getUploadType() == UploadHistory.Type.CENSUS){
             SimpleDateFormat df = new SimpleDateFormat("yyyyMMddhhmmss");
             try {
-                return df.parse(uploadFile.getName());
+                return df.parse(getUploadName(uploadFile));
             } catch (ParseException e) {
                 LOGGER.error("Failed to parse census timestamp from filename: "+uploadFile.getAbsolutePath(),e);
                 throw new RuntimeException(e);
@@ -71,48 +95,54 @@ public abstract class Uploader {
         }
     }
 
-    public final void upload(File content) {
+    /**
+     * @return false if the file was skipped because of a previous attempt
+     */
+    public final boolean upload(File content) {
+        Set<UploadHistory.Status> previousStatuses = null;
+        if(config.getUploadType() == UploadHistory.Type.CENSUS){
+            //check if this file is already uploaded
+            String name = getUploadName(content);
+            previousStatuses = getUploadStatuses(Collections.singletonList(name)).get(name);
+        }
+        return upload(content, previousStatuses);
+    }
+
+    /**
+     * Uploads given file unless a previous attempt to upload it was recorded.
+     *
+     * @param previousStatuses statuses recorded in upload history for the file, as looked up by
+     *                         {@link #getUploadStatuses(Collection)}, null or empty if there were none
+     * @return false if the file was skipped because of a previous attempt
+     */
+    public final boolean upload(File content, Set<UploadHistory.Status> previousStatuses) {
         boolean error=false;
         boolean started = false;
-        boolean failed = false;
         boolean completed = false;
         try{
-            if(config.getUploadType() == UploadHistory.Type.CENSUS){
-                //check if this file is already uploaded
-                QueryRequest queryRequest = new QueryRequest();
-                queryRequest.setQuery(String.format("select status from [%s:%s.%s] where file.name='%s'", config.getProjectId(),
-                        config.getDatasetId(), UPLOAD_HISTORY_TABLE_ID, content.getName()));
-                QueryResponse response = config.getBigQuery().jobs().query(config.getProjectId(), queryRequest).execute();
-                if(response.getRows() != null) {
-                    for (TableRow row : response.getRows()) {
-                        for (TableCell cell : row.getF()) {
-                            if (cell.getV() == null) {
-                                continue;
-                            }
-                            UploadHistory.Status s = UploadHistory.Status.valueOf((String) cell.getV());
-                            if (s == UploadHistory.Status.STARTED) {
-                                started = true;
-                            } else if (s == UploadHistory.Status.FAILED) {
-                                failed = true;
-                            } else if (s == UploadHistory.Status.COMPLETED) {
-                                completed = true;
-                            }
-                        }
-                    }
-                    if (started || failed || completed) {
-                        LOGGER.error("There was previous attempt to upload file: " + content.getName());
-                        return;
-                    }
+            if(previousStatuses != null && !previousStatuses.isEmpty()){
+                if (previousStatuses.contains(UploadHistory.Status.COMPLETED) || !canResume(content)) {
+                    LOGGER.error("There was previous attempt to upload file: " + content.getName());
+                    return false;
                 }
+                LOGGER.info("Resuming previous attempt to upload file: " + content.getName());
             }
             started = true;
             recordUploadStatus(content, UploadHistory.Status.STARTED);
+            // written before the upload starts, so that a run killed while uploading does not leave it unrecorded
+            if(!historyWriter.flush()){
+                throw new RuntimeException("Failed to record upload of " + content.getName() + " in "
+                        + UPLOAD_HISTORY_TABLE_ID);
+            }
 
             LOGGER.info("Uploading " + config.getUploadType() + " data, file: "+ content.getName());
+            long start = System.nanoTime();
             doUpload(config.getTableId(), content);
+            config.getMetrics().phase(UploadMetrics.PHASE_UPLOAD, start);
 
             completed = true;
             recordUploadStatus(content, UploadHistory.Status.COMPLETED);
+            return true;
         }catch (Exception e){
             error = true;
             LOGGER.error("Upload failed: "+e.getMessage(), e);
@@ -121,9 +151,159 @@ public abstract class Uploader {
             if(started && !completed && error){
                 recordUploadStatus(content, UploadHistory.Status.FAILED);
             }
+            historyWriter.flush();
+        }
+    }
+
+    /**
+     * Looks up statuses recorded in upload history for given file names.
+     *
+     * Names found in the local upload history index, if there is one, are answered from it. Others are looked up in
+     * BigQuery, with one query for up to {@value #MAX_NAMES_PER_QUERY} names, and added to the index.
+     *
+     * @return statuses by file name, names with no recorded upload are left out
+     */
+    public Map<String, Set<UploadHistory.Status>> getUploadStatuses(Collection<String> names){
+        Map<String, Set<UploadHistory.Status>> statuses = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+        UploadHistoryIndex index = config.getUploadHistoryIndex();
+        for(String name : names){
+            Set<UploadHistory.Status> s = index == null || config.isReconcileHistory() ? null : index.get(name);
+            if(s != null){
+                statuses.put(name, s);
+            }else{
+                pending.add(name);
+            }
+        }
+        if(pending.isEmpty()){
+            return statuses;
+        }
+        long start = System.nanoTime();
+        Map<String, Set<UploadHistory.Status>> remote = queryUploadStatuses(pending);
+        config.getMetrics().phase(UploadMetrics.PHASE_DEDUP_QUERY, start);
+        if(index != null){
+            index.update(remote);
+        }
+        statuses.putAll(remote);
+        return statuses;
+    }
+
+    private Map<String, Set<UploadHistory.Status>> queryUploadStatuses(List<String> pending){
+        Map<String, Set<UploadHistory.Status>> statuses = new HashMap<>();
+        for(int i=0; i < pending.size(); i += MAX_NAMES_PER_QUERY){
+            StringBuilder in = new StringBuilder();
+            for(String name : pending.subList(i, Math.min(pending.size(), i + MAX_NAMES_PER_QUERY))){
+                if(in.length() > 0){
+                    in.append(',');
+                }
+                in.append('\'').append(name.replace("\\", "\\\\").replace("'", "\\'")).append('\'');
+            }
+            String query = String.format("select file.name, status from [%s:%s.%s] where file.name in (%s)",
+                    config.getProjectId(), config.getDatasetId(), UPLOAD_HISTORY_TABLE_ID, in);
+            try {
+                for (TableRow row : query(query)) {
+                    List<TableCell> cells = row.getF();
+                    if (cells.get(0).getV() == null || cells.get(1).getV() == null) {
+                        continue;
+                    }
+                    String name = (String) cells.get(0).getV();
+                    Set<UploadHistory.Status> s = statuses.get(name);
+                    if (s == null) {
+                        s = EnumSet.noneOf(UploadHistory.Status.class);
+                        statuses.put(name, s);
+                    }
+                    s.add(UploadHistory.Status.valueOf((String) cells.get(1).getV()));
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException("Failed to query "+UPLOAD_HISTORY_TABLE_ID+": "+e.getMessage(), e);
+            }
+        }
+        return statuses;
+    }
+
+    /**
+     * Runs given legacy SQL query and gives all its result rows
+     */
+    private List<TableRow> query(String query) throws IOException, InterruptedException {
+        QueryRequest queryRequest = new QueryRequest();
+        queryRequest.setQuery(query);
+        QueryResponse response = config.getBigQuery().jobs().query(config.getProjectId(), queryRequest).execute();
+        List<TableRow> rows = new ArrayList<>();
+        if(response.getRows() != null){
+            rows.addAll(response.getRows());
+        }
+        boolean complete = Boolean.TRUE.equals(response.getJobComplete());
+        String pageToken = response.getPageToken();
+        while(!complete || pageToken != null){
+            GetQueryResultsResponse results = config.getBigQuery().jobs()
+                    .getQueryResults(config.getProjectId(), response.getJobReference().getJobId())
+                    .setPageToken(pageToken)
+                    .execute();
+            complete = Boolean.TRUE.equals(results.getJobComplete());
+            if(!complete){
+                Thread.sleep(config.getPollingIntervalInSec()*1000);
+                continue;
+            }
+            if(results.getRows() != null){
+                rows.addAll(results.getRows());
+            }
+            pageToken = results.getPageToken();
+        }
+        return rows;
+    }
+
+    /**
+     * Schema to load given table with, from -schemaFile if it is the configured table, or from the table. A partition
+     * rows are routed to is loaded with the schema of the configured table.
+     *
+     * @return null if the table does not exist and there is no -schemaFile
+     */
+    protected TableSchema getSchema(String tableId){
+        if(config.getPartitionRouter() != null){
+            tableId = config.getPartitionRouter().getBaseTableId(tableId);
+        }
+        return config.getTableMetadataCache().getSchema(tableId,
+                tableId.equals(config.getTableId()) ? config.getSchema() : null);
+    }
+
+    /**
+     * Creates the processor transforming and validating rows of given record file, as configured
+     */
+    protected RowProcessor createRowProcessor(String tableId, File content){
+        return new RowProcessor(content.getName(), config.getRowTransformer(),
+                config.isValidateRows() ? getSchemaValidator(tableId) : null, config.getDeadLetterFile(),
+                config.getMetrics());
+    }
+
+    private synchronized SchemaValidator getSchemaValidator(String tableId){
+        SchemaValidator validator = validators.get(tableId);
+        if(validator == null){
+            TableSchema schema = getSchema(tableId);
+            if(schema == null){
+                throw new RuntimeException("Can not validate rows, table "+tableId+" does not exist and there is no -schemaFile");
+            }
+            validator = SchemaValidator.compile(schema);
+            validators.put(tableId, validator);
+        }
+        return validator;
+    }
+
+    /**
+     * Logs a line that can not be uploaded and writes it to the dead letter file, if there is one
+     */
+    protected void reject(String source, String line, long lineNumber, String reason){
+        LOGGER.error("Rejected line {} of {}: {}", lineNumber, source, reason);
+        if(config.getDeadLetterFile() != null){
+            config.getDeadLetterFile().write(source, lineNumber, line, Collections.singletonList(reason));
         }
     }
 
+    /**
+     * Tells whether an earlier attempt to upload given file, that did not complete, can be resumed
+     */
+    protected boolean canResume(File content){
+        return false;
+    }
+
     abstract void doUpload(String tableId, File content);
-    abstract void doUpload(String tableId, AbstractInputStreamContent content);
 }
@@ -0,0 +1,104 @@
+package com.cloudbees.bq;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.args4j.CmdLineParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the uploader end to end against {@link FakeBigQuery}, with no network or GCP project.
+ *
+ * @author Vivek Pandey
+ */
+public class MainTest extends TestCase {
+    private static final int ROWS = 500;
+
+    private File dir;
+    private File recordFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        dir = Files.createTempDirectory("bq-upload-test").toFile();
+        recordFile = new File(dir, "extensions.json");
+        try(PrintWriter w = new PrintWriter(Files.newBufferedWriter(recordFile.toPath(), StandardCharsets.UTF_8))){
+            for(int i=0; i < ROWS; i++){
+                w.println("{\"gav\": \"org.jenkins-ci.plugins:plugin" + i + ":1.0\", \"displayName\": \"Plugin " + i
+                        + "\", \"url\": \"https://plugins.jenkins.io/plugin" + i + "\", \"extensions\": []}");
+            }
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    public void testLoadJob() throws Exception {
+        FakeBigQuery fake = new FakeBigQuery(null);
+        assertTrue(run(fake));
+        assertEquals(ROWS, fake.getRowCount("t"));
+    }
+
+    public void testStreamingUpload() throws Exception {
+        FakeBigQuery fake = new FakeBigQuery(null);
+        assertTrue(run(fake, "-streamingUpload", "-maxBatchRows", "100"));
+        assertEquals(ROWS, fake.getRowCount("t"));
+    }
+
+    /**
+     * The first load job fails with backendError, the file is loaded again with a new job
+     */
+    public void testLoadJobRetriedAfterJobError() throws Exception {
+        FakeBigQuery fake = new FakeBigQuery("jobErrors=0.8,seed=2");
+        assertTrue(run(fake));
+        assertEquals(ROWS, fake.getRowCount("t"));
+    }
+
+    /**
+     * Rows failing with backendError are sent again until they are all inserted
+     */
+    public void testStreamingRetriesRowErrors() throws Exception {
+        FakeBigQuery fake = new FakeBigQuery("rowErrors=0.1,seed=1");
+        assertTrue(run(fake, "-streamingUpload", "-maxBatchRows", "100"));
+        assertEquals(ROWS, fake.getRowCount("t"));
+    }
+
+    public void testFailedUpload() throws Exception {
+        FakeBigQuery fake = new FakeBigQuery("jobErrors=1");
+        assertFalse(run(fake, "-maxRetries", "0"));
+        assertEquals(0, fake.getRowCount("t"));
+    }
+
+    /**
+     * Uploads the record file to table t of the fake, creating the table
+     *
+     * @return false if the upload failed
+     */
+    private boolean run(FakeBigQuery fake, String... options) throws Exception {
+        List<String> args = new ArrayList<>(Arrays.asList("-projectId", "p", "-datasetId", "d", "-tableId", "t",
+                "-uploadType", "extension", "-createTable", "-schemaFile", schemaFile().getPath(),
+                "-bqFile", recordFile.getPath()));
+        args.addAll(Arrays.asList(options));
+        Main main = new Main();
+        CmdLineParser p = new CmdLineParser(main);
+        p.parseArgument(args.toArray(new String[args.size()]));
+        assertTrue(main.validate(p));
+        return main.run(fake);
+    }
+
+    private static File schemaFile() throws IOException {
+        File schema = new File("schema/jenkins-extensions-schema.json");
+        if(!schema.exists()){
+            throw new IOException("Run from the project directory, " + schema + " not found");
+        }
+        return schema;
+    }
+}
@@ -0,0 +1,104 @@
+package com.cloudbees.bq;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * insertIds derived with -insertIdHash must stay the same as Guava's murmur3_128 hash of the same chars, whichever
+ * way the chars are fed to the hasher, or retried rows would no longer be deduplicated.
+ *
+ * @author Vivek Pandey
+ */
+public class Murmur3HasherTest extends TestCase {
+    private static final int MAX_LENGTH = 33;
+
+    private final Random random = new Random(42);
+    private final Murmur3Hasher hasher = new Murmur3Hasher();
+
+    public void testPutCharsMatchesGuava() {
+        for(int length = 0; length <= MAX_LENGTH; length++){
+            String s = randomChars(length);
+            assertHash(s, expected(s), hasher.reset().putChars(s).finish());
+        }
+    }
+
+    public void testPutCharArrayMatchesGuava() {
+        for(int length = 0; length <= MAX_LENGTH; length++){
+            String s = randomChars(length);
+            // not starting at the beginning of the array
+            char[] chars = ("xyz" + s + "xyz").toCharArray();
+            assertHash(s, expected(s), hasher.reset().putChars(chars, 3, length).finish());
+        }
+    }
+
+    public void testPutCharMatchesGuava() {
+        for(int length = 0; length <= MAX_LENGTH; length++){
+            String s = randomChars(length);
+            hasher.reset();
+            for(int i=0; i < length; i++){
+                hasher.putChar(s.charAt(i));
+            }
+            assertHash(s, expected(s), hasher.finish());
+        }
+    }
+
+    /**
+     * Chars put one at a time leave a block partly filled, the block paths of putChars must carry on from there
+     */
+    public void testMixedPutsMatchGuava() {
+        for(int length = 0; length <= MAX_LENGTH; length++){
+            String s = randomChars(length);
+            HashCode expected = expected(s);
+            for(int split = 0; split <= length; split++){
+                hasher.reset();
+                for(int i=0; i < split; i++){
+                    hasher.putChar(s.charAt(i));
+                }
+                hasher.putChars(s.substring(split));
+                assertHash(s + " split at " + split, expected, hasher.finish());
+
+                hasher.reset().putChars(s.substring(0, split));
+                for(int i=split; i < length; i++){
+                    hasher.putChar(s.charAt(i));
+                }
+                assertHash(s + " split at " + split, expected, hasher.finish());
+
+                char[] chars = s.toCharArray();
+                hasher.reset().putChars(chars, 0, split).putChars(chars, split, length - split);
+                assertHash(s + " split at " + split, expected, hasher.finish());
+            }
+        }
+    }
+
+    public void testPutLongMatchesGuava() {
+        for(int length = 0; length <= MAX_LENGTH; length++){
+            String s = randomChars(length);
+            long value = random.nextLong();
+            HashCode expected = Hashing.murmur3_128().newHasher().putUnencodedChars(s).putLong(value).hash();
+            assertHash(s, expected, hasher.reset().putChars(s).putLong(value).finish());
+        }
+    }
+
+    private static HashCode expected(String s){
+        return Hashing.murmur3_128().hashUnencodedChars(s);
+    }
+
+    private static void assertHash(String chars, HashCode expected, Murmur3Hasher actual){
+        assertEquals("h1 of " + chars, expected.asLong(), actual.getH1());
+        assertEquals("hex of " + chars, expected.toString(), actual.toHex());
+    }
+
+    /**
+     * @return chars of the whole char range, so that the high bits of each char are mixed in too
+     */
+    private String randomChars(int length){
+        StringBuilder s = new StringBuilder(length);
+        for(int i=0; i < length; i++){
+            s.append((char) random.nextInt(Character.MAX_VALUE + 1));
+        }
+        return s.toString();
+    }
+}